@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.AmplitudePrefixSums;
+import nz.ac.auckland.lablet.microphone.AmplitudeSummary;
+
+import java.util.Random;
+
+
+public class AmplitudePrefixSumsTest extends TestCase {
+    final static private int CHUNK_SIZE = AmplitudePrefixSums.BLOCK_SIZE * AmplitudePrefixSums.CHUNK_BLOCKS;
+
+    private AmplitudeSummary.ISampleSource createSource(final float[] samples) {
+        return new AmplitudeSummary.ISampleSource() {
+            @Override
+            public float get(int index) {
+                return samples[index];
+            }
+        };
+    }
+
+    private float[] createSamples(int length) {
+        Random random = new Random(7);
+        float[] samples = new float[length];
+        for (int i = 0; i < length; i++)
+            samples[i] = random.nextInt(65536) - 32768;
+        return samples;
+    }
+
+    private void assertSums(float[] samples, int start, int end, AmplitudeSummary.Statistics statistics) {
+        double sum = 0;
+        double sumSq = 0;
+        for (int i = start; i < end; i++) {
+            sum += samples[i];
+            sumSq += (double)samples[i] * samples[i];
+        }
+        assertEquals(end - start, statistics.count);
+        assertEquals(sum, statistics.sum, 1e-6 * Math.abs(sum) + 1);
+        assertEquals(sumSq, statistics.sumSq, 1e-9 * sumSq + 1);
+    }
+
+    @SmallTest
+    public void testQuery() {
+        final float[] samples = createSamples(3 * CHUNK_SIZE + 100);
+        AmplitudePrefixSums prefixSums = new AmplitudePrefixSums();
+        // add in bunches that are not aligned with the blocks
+        for (int i = 0; i < samples.length; i += 10000) {
+            final int length = Math.min(10000, samples.length - i);
+            float[] bunch = new float[length];
+            System.arraycopy(samples, i, bunch, 0, length);
+            prefixSums.add(bunch);
+        }
+        assertEquals(samples.length, prefixSums.getSampleCount());
+
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        final AmplitudeSummary.ISampleSource source = createSource(samples);
+        final int[][] ranges = {{0, samples.length}, {0, 1}, {5, 5}, {255, 257}, {100, 300}, {100, 9000},
+                {CHUNK_SIZE - 1, CHUNK_SIZE + 1}, {1000, 2 * CHUNK_SIZE + 12345},
+                {samples.length - 10, samples.length}, {samples.length - 300, samples.length}};
+        for (int[] range : ranges) {
+            prefixSums.query(range[0], range[1], source, statistics);
+            assertSums(samples, range[0], range[1], statistics);
+        }
+
+        // clipped to the available samples
+        prefixSums.query(samples.length - 10, samples.length + 100, source, statistics);
+        assertSums(samples, samples.length - 10, samples.length, statistics);
+    }
+
+    @SmallTest
+    public void testDiscardAndSnapshot() {
+        final float[] samples = createSamples(3 * CHUNK_SIZE);
+        AmplitudePrefixSums prefixSums = new AmplitudePrefixSums();
+        prefixSums.add(samples);
+
+        AmplitudePrefixSums snapshot = prefixSums.snapshot();
+        prefixSums.discardBefore(CHUNK_SIZE + 10);
+        prefixSums.add(new float[]{1, 2, 3});
+        assertEquals(CHUNK_SIZE + 10, prefixSums.getFirstSample());
+
+        final AmplitudeSummary.ISampleSource source = createSource(samples);
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        // the discarded samples are excluded
+        prefixSums.query(0, samples.length, source, statistics);
+        assertSums(samples, CHUNK_SIZE + 10, samples.length, statistics);
+
+        // the snapshot still sees the old data
+        assertEquals(samples.length, snapshot.getSampleCount());
+        snapshot.query(0, samples.length + 3, source, statistics);
+        assertSums(samples, 0, samples.length, statistics);
+    }
+}
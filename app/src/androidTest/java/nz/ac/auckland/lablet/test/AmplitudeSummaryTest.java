@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.AmplitudeSummary;
+import nz.ac.auckland.lablet.microphone.AudioAmplitudePlotDataAdapter;
+
+import java.util.Random;
+
+
+public class AmplitudeSummaryTest extends TestCase {
+    @SmallTest
+    public void testStatisticsMatchRawData() {
+        Random random = new Random(3);
+        AudioAmplitudePlotDataAdapter adapter = new AudioAmplitudePlotDataAdapter();
+        for (int bunch = 0; bunch < 60; bunch++) {
+            float[] amplitudes = new float[4096];
+            for (int i = 0; i < amplitudes.length; i++)
+                amplitudes[i] = random.nextInt(65536) - 32768;
+            adapter.addData(amplitudes);
+        }
+
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        final int size = adapter.getSize();
+        for (int test = 0; test < 50; test++) {
+            int start = random.nextInt(size);
+            int end = start + 1 + random.nextInt(size - start);
+            adapter.getStatistics(start, end, statistics);
+
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            double sum = 0;
+            double sumSq = 0;
+            for (int i = start; i < end; i++) {
+                float value = adapter.getY(i).floatValue();
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                sumSq += (double)value * value;
+            }
+            assertEquals(end - start, statistics.count);
+            assertEquals(min, statistics.min, 1e-6);
+            assertEquals(max, statistics.max, 1e-6);
+            assertEquals(sum, statistics.sum, 1e-6 * (end - start));
+            assertEquals(sumSq, statistics.sumSq, 1e-6 * (end - start));
+        }
+    }
+}
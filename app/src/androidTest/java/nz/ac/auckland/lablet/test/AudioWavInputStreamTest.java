@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+public class AudioWavInputStreamTest extends TestCase {
+    private File writeFile(ByteBuffer buffer) throws IOException {
+        File file = File.createTempFile("test", ".wav");
+        file.deleteOnExit();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(buffer.array(), 0, buffer.position());
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private File createWavFile(short[] samples) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(44 + samples.length * 2);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes()).putInt(36 + samples.length * 2).put("WAVE".getBytes());
+        buffer.put("fmt ".getBytes()).putInt(16).putShort((short)1).putShort((short)1).putInt(44100)
+                .putInt(44100 * 2).putShort((short)2).putShort((short)16);
+        buffer.put("data".getBytes()).putInt(samples.length * 2);
+        for (short sample : samples)
+            buffer.putShort(sample);
+        return writeFile(buffer);
+    }
+
+    /**
+     * Creates a wav file with additional chunks around the fmt chunk. The samples are given as 16 bit values and are
+     * converted to the target format.
+     */
+    private File createWavFile(int format, int bitsPerSample, int channels, boolean extensible, short[] samples)
+            throws IOException {
+        final int blockAlign = channels * bitsPerSample / 8;
+        final int frames = samples.length / channels;
+        ByteBuffer buffer = ByteBuffer.allocate(200 + frames * blockAlign);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes()).putInt(0).put("WAVE".getBytes());
+        // odd sized chunk that needs padding
+        buffer.put("LIST".getBytes()).putInt(3).put(new byte[]{1, 2, 3, 0});
+        buffer.put("fmt ".getBytes()).putInt(extensible ? 40 : 16);
+        buffer.putShort((short)(extensible ? 0xFFFE : format)).putShort((short)channels).putInt(48000)
+                .putInt(48000 * blockAlign).putShort((short)blockAlign).putShort((short)bitsPerSample);
+        if (extensible) {
+            buffer.putShort((short)22).putShort((short)bitsPerSample).putInt(0);
+            buffer.putShort((short)format).put(new byte[14]);
+        }
+        buffer.put("fact".getBytes()).putInt(4).putInt(frames);
+        buffer.put("data".getBytes()).putInt(frames * blockAlign);
+        for (short sample : samples) {
+            if (format == AudioWavInputStream.FORMAT_IEEE_FLOAT)
+                buffer.putFloat(sample / 32768f);
+            else if (bitsPerSample == 8)
+                buffer.put((byte)((sample >> 8) + 128));
+            else if (bitsPerSample == 16)
+                buffer.putShort(sample);
+            else if (bitsPerSample == 24)
+                buffer.put((byte)0).putShort(sample);
+            else
+                buffer.putInt(sample << 16);
+        }
+        return writeFile(buffer);
+    }
+
+    private File createRF64File(short[] samples) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(84 + samples.length * 2);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RF64".getBytes()).putInt(0xFFFFFFFF).put("WAVE".getBytes());
+        buffer.put("ds64".getBytes()).putInt(28).putLong(72 + samples.length * 2).putLong(samples.length * 2)
+                .putLong(samples.length).putInt(0);
+        buffer.put("fmt ".getBytes()).putInt(16).putShort((short)1).putShort((short)1).putInt(44100)
+                .putInt(44100 * 2).putShort((short)2).putShort((short)16);
+        buffer.put("data".getBytes()).putInt(0xFFFFFFFF);
+        for (short sample : samples)
+            buffer.putShort(sample);
+        // trailing data that doesn't belong to the data chunk
+        buffer.putInt(0x12345678);
+        return writeFile(buffer);
+    }
+
+    private void checkFormat(int format, int bitsPerSample, int channels, boolean extensible) throws IOException {
+        final int frames = 5000;
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short)(i * 7919 & 0xFF00);
+
+        AudioWavInputStream inputStream = new AudioWavInputStream(createWavFile(format, bitsPerSample, channels,
+                extensible, samples));
+        try {
+            assertEquals(48000, inputStream.getSampleRate());
+            assertEquals(channels, inputStream.getChannelCount());
+            assertEquals(frames, inputStream.getSampleCount());
+
+            float[] data = new float[frames];
+            assertEquals(frames, inputStream.readAmplitudes(data, 0, frames));
+            assertEquals(-1, inputStream.readAmplitudes(data, 0, frames));
+            for (int i = 0; i < frames; i++) {
+                float expected = 0;
+                for (int c = 0; c < channels; c++)
+                    expected += samples[i * channels + c];
+                expected /= channels;
+                assertEquals(expected, data[i], 0.01f);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @SmallTest
+    public void testReadAmplitudesAndSeek() throws IOException {
+        short[] samples = new short[100000];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short)(i * 7919);
+        AudioWavInputStream inputStream = new AudioWavInputStream(createWavFile(samples));
+        try {
+            assertEquals(samples.length, inputStream.getSampleCount());
+
+            float[] data = new float[samples.length + 10];
+            int position = 0;
+            while (true) {
+                int read = inputStream.readAmplitudes(data, position, 12345);
+                if (read < 0)
+                    break;
+                position += read;
+            }
+            assertEquals(samples.length, position);
+            for (int i = 0; i < samples.length; i++)
+                assertEquals((float)samples[i], data[i]);
+
+            inputStream.seekToSample(54321);
+            assertEquals(54321, inputStream.getSamplePosition());
+            float[] block = new float[3];
+            assertEquals(3, inputStream.readAmplitudes(block, 0, 3));
+            assertEquals((float)samples[54321], block[0]);
+            assertEquals((float)samples[54323], block[2]);
+
+            inputStream.rewind();
+            assertEquals(1, inputStream.readAmplitudes(block, 0, 1));
+            assertEquals((float)samples[0], block[0]);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @SmallTest
+    public void testFormats() throws IOException {
+        checkFormat(AudioWavInputStream.FORMAT_PCM, 8, 2, false);
+        checkFormat(AudioWavInputStream.FORMAT_PCM, 16, 3, false);
+        checkFormat(AudioWavInputStream.FORMAT_PCM, 24, 1, false);
+        checkFormat(AudioWavInputStream.FORMAT_PCM, 24, 2, true);
+        checkFormat(AudioWavInputStream.FORMAT_PCM, 32, 2, false);
+        checkFormat(AudioWavInputStream.FORMAT_IEEE_FLOAT, 32, 1, false);
+        checkFormat(AudioWavInputStream.FORMAT_IEEE_FLOAT, 32, 4, true);
+    }
+
+    @SmallTest
+    public void testRF64() throws IOException {
+        short[] samples = new short[1000];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short)(i * 7919);
+        AudioWavInputStream inputStream = new AudioWavInputStream(createRF64File(samples));
+        try {
+            assertEquals(samples.length, inputStream.getSampleCount());
+            float[] data = new float[samples.length];
+            assertEquals(samples.length, inputStream.readAmplitudes(data, 0, samples.length));
+            for (int i = 0; i < samples.length; i++)
+                assertEquals((float)samples[i], data[i]);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+import nz.ac.auckland.lablet.misc.AudioWavOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+
+
+public class AudioWavOutputStreamTest extends TestCase {
+    private byte[] toBytes(short[] samples, int start, int end) {
+        byte[] bytes = new byte[(end - start) * 2];
+        for (int i = start; i < end; i++) {
+            bytes[(i - start) * 2] = (byte)samples[i];
+            bytes[(i - start) * 2 + 1] = (byte)(samples[i] >> 8);
+        }
+        return bytes;
+    }
+
+    private void checkFile(File file, short[] samples, int count) throws IOException {
+        AudioWavInputStream inputStream = new AudioWavInputStream(file);
+        try {
+            assertEquals(44100, inputStream.getSampleRate());
+            assertEquals(count, inputStream.getSampleCount());
+            float[] data = new float[count];
+            assertEquals(count, inputStream.readAmplitudes(data, 0, count));
+            for (int i = 0; i < count; i++)
+                assertEquals((float)samples[i], data[i]);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @SmallTest
+    public void testWriteAndRead() throws IOException {
+        short[] samples = new short[300000];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short)(i * 7919);
+
+        File file = File.createTempFile("test", ".wav");
+        file.deleteOnExit();
+        AudioWavOutputStream outputStream = new AudioWavOutputStream(file, 1, 44100);
+        outputStream.setPreallocationSize(1024 * 1024);
+        try {
+            final int half = samples.length / 2;
+            int position = 0;
+            while (position < half) {
+                final int end = Math.min(half, position + 1234);
+                outputStream.write(toBytes(samples, position, end));
+                position = end;
+            }
+            // an unclosed file must be readable up to the last flush
+            outputStream.flush();
+            checkFile(file, samples, half);
+
+            outputStream.write(toBytes(samples, half, samples.length));
+        } finally {
+            outputStream.close();
+        }
+        assertEquals(AudioWavOutputStream.HEADER_SIZE + samples.length * 2, file.length());
+        checkFile(file, samples, samples.length);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.Decimator;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+import nz.ac.auckland.lablet.misc.AudioWavOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+
+
+public class DecimatorTest extends TestCase {
+    final static private int SAMPLE_RATE = 44100;
+
+    private float[] sine(int length, float frequency, float amplitude) {
+        float[] samples = new float[length];
+        for (int i = 0; i < length; i++)
+            samples[i] = (float)(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        return samples;
+    }
+
+    private float maxAbs(float[] samples, int start, int end) {
+        float max = 0;
+        for (int i = start; i < end; i++)
+            max = Math.max(max, Math.abs(samples[i]));
+        return max;
+    }
+
+    @SmallTest
+    public void testFactor() {
+        assertEquals(1, Decimator.getFactor(SAMPLE_RATE, 0));
+        assertEquals(1, Decimator.getFactor(SAMPLE_RATE, 20000));
+        // the decimated range still contains the max frequency
+        for (float maxFrequency : new float[]{8000, 5000, 2000, 1000, 500}) {
+            final int factor = Decimator.getFactor(SAMPLE_RATE, maxFrequency);
+            assertTrue(factor > 1);
+            assertEquals(0, SAMPLE_RATE % factor);
+            assertTrue(SAMPLE_RATE / factor / 2 > maxFrequency);
+        }
+    }
+
+    @SmallTest
+    public void testFilter() {
+        final int factor = Decimator.getFactor(SAMPLE_RATE, 2000);
+        final float nyquist = SAMPLE_RATE / factor / 2;
+        final int length = SAMPLE_RATE;
+
+        float[] passed = Decimator.decimate(sine(length, 1000, 10000), length, factor);
+        assertEquals((length + factor - 1) / factor, passed.length);
+        // ignore the edges where the filter sees the zeros outside of the stream
+        final int edge = 100;
+        assertEquals(10000, maxAbs(passed, edge, passed.length - edge), 100);
+
+        // a frequency above the decimated Nyquist frequency would alias, it has to be removed (-60 dB)
+        float[] stopped = Decimator.decimate(sine(length, nyquist * 1.3f, 10000), length, factor);
+        assertTrue(maxAbs(stopped, edge, stopped.length - edge) < 10);
+    }
+
+    @SmallTest
+    public void testReadPart() throws IOException {
+        final int length = 100000;
+        final float[] samples = sine(length, 440, 8000);
+        File file = File.createTempFile("test", ".wav");
+        file.deleteOnExit();
+        AudioWavOutputStream outputStream = new AudioWavOutputStream(file, 1, SAMPLE_RATE);
+        try {
+            byte[] bytes = new byte[length * 2];
+            for (int i = 0; i < length; i++) {
+                short value = (short)samples[i];
+                bytes[i * 2] = (byte)value;
+                bytes[i * 2 + 1] = (byte)(value >> 8);
+            }
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+
+        final int factor = 7;
+        AudioWavInputStream inputStream = new AudioWavInputStream(file);
+        try {
+            final float[] whole = new float[(int)Decimator.getOutputCount(length, factor)];
+            assertEquals(whole.length, Decimator.Reader.read(inputStream, factor, 0, whole, whole.length));
+
+            // parts are the same as the parts of the whole stream
+            for (int first : new int[]{0, 10, 5000, whole.length - 50}) {
+                final float[] part = new float[100];
+                final int read = Decimator.Reader.read(inputStream, factor, first, part, part.length);
+                assertEquals(Math.min(part.length, whole.length - first), read);
+                for (int i = 0; i < read; i++)
+                    assertEquals(whole[first + i], part[i], 0.01f);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}
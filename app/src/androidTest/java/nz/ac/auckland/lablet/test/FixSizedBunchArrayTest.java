@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.FixSizedBunchArray;
+
+
+public class FixSizedBunchArrayTest extends TestCase {
+    final private int bunchSize = 3;
+
+    private float[] makeBunch(int value) {
+        float[] bunch = new float[bunchSize];
+        for (int i = 0; i < bunchSize; i++)
+            bunch[i] = value * bunchSize + i;
+        return bunch;
+    }
+
+    // bunch i holds the values [first + i) * bunchSize, (first + i + 1) * bunchSize)
+    private void assertBunches(FixSizedBunchArray array, int first, int count) {
+        assertEquals(count, array.getBunchCount());
+        assertEquals(count * bunchSize, array.size());
+        for (int i = 0; i < count * bunchSize; i++)
+            assertEquals((float)(first * bunchSize + i), array.getFloat(i));
+
+        float[] copy = new float[count * bunchSize];
+        array.copy(0, copy, 0, copy.length);
+        for (int i = 0; i < copy.length; i++)
+            assertEquals((float)(first * bunchSize + i), copy[i]);
+    }
+
+    @SmallTest
+    public void testRemoveFirstBunchesWraps() {
+        FixSizedBunchArray array = new FixSizedBunchArray(bunchSize);
+        int first = 0;
+        int next = 0;
+        // keep a window of 10 bunches so that head and tail go around the ring many times
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 7; i++)
+                array.add(makeBunch(next++));
+            if (array.getBunchCount() > 10) {
+                final int remove = array.getBunchCount() - 10;
+                array.removeFirstBunches(remove);
+                first += remove;
+            }
+            assertBunches(array, first, next - first);
+        }
+
+        // copy across bunch boundaries starting in the middle of a bunch
+        float[] copy = new float[2 * bunchSize];
+        array.copy(bunchSize + 1, copy, 0, copy.length);
+        for (int i = 0; i < copy.length; i++)
+            assertEquals((float)((first + 1) * bunchSize + 1 + i), copy[i]);
+
+        // removing more than available empties the array
+        array.removeFirstBunches(1000);
+        assertEquals(0, array.getBunchCount());
+        array.add(makeBunch(next));
+        assertBunches(array, next, 1);
+    }
+
+    @SmallTest
+    public void testSnapshotIsolation() {
+        FixSizedBunchArray array = new FixSizedBunchArray(bunchSize);
+        for (int i = 0; i < 12; i++)
+            array.add(makeBunch(i));
+        array.removeFirstBunches(4);
+
+        FixSizedBunchArray snapshot = new FixSizedBunchArray(array);
+        assertBunches(snapshot, 4, 8);
+
+        // appends and discards of the original must not change the snapshot, even after the original wrapped over
+        // the slots the snapshot uses
+        int first = 4;
+        for (int i = 12; i < 100; i++) {
+            array.add(makeBunch(i));
+            array.removeFirstBunches(1);
+            first++;
+        }
+        assertBunches(array, first, 8);
+        assertBunches(snapshot, 4, 8);
+
+        // and the other way around
+        snapshot.removeFirstBunches(2);
+        snapshot.add(makeBunch(12));
+        assertBunches(snapshot, 6, 7);
+        assertBunches(array, first, 8);
+
+        array.clear();
+        assertBunches(snapshot, 6, 7);
+
+        // both append to the same shared ring
+        array = new FixSizedBunchArray(bunchSize);
+        for (int i = 0; i < 5; i++)
+            array.add(makeBunch(i));
+        snapshot = new FixSizedBunchArray(array);
+        array.add(makeBunch(5));
+        snapshot.add(makeBunch(5));
+        snapshot.getBunch(5)[0] = -1;
+        assertBunches(array, 0, 6);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.FrequencyMapConverter;
+import nz.ac.auckland.lablet.microphone.ParallelFourier;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+import nz.ac.auckland.lablet.misc.AudioWavOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+
+public class FrequencyMapConverterTest extends TestCase {
+    // several conversion chunks
+    final static private int N_SAMPLES = 44100 * 10 + 123;
+
+    private float[] samples;
+    private File wavFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        samples = new float[N_SAMPLES];
+        byte[] bytes = new byte[N_SAMPLES * 2];
+        for (int i = 0; i < N_SAMPLES; i++) {
+            final short sample = (short)(10000 * Math.sin(i * 0.01 + i * (double)i * 1e-8) + (i * 7919 % 200));
+            samples[i] = sample;
+            bytes[2 * i] = (byte)sample;
+            bytes[2 * i + 1] = (byte)(sample >> 8);
+        }
+        wavFile = File.createTempFile("test", ".wav");
+        AudioWavOutputStream outputStream = new AudioWavOutputStream(wavFile, 1, 44100);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        wavFile.delete();
+        super.tearDown();
+    }
+
+    private float[] readFrequencyFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            FloatBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            float[] frequencies = new float[buffer.remaining()];
+            buffer.get(frequencies);
+            return frequencies;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private float[] convert(int nWorkers, int windowSize, float stepFactor) throws IOException {
+        File outFile = File.createTempFile("test", ".freq");
+        AudioWavInputStream audioWavInputStream = new AudioWavInputStream(wavFile);
+        try {
+            assertTrue(FrequencyMapConverter.convert(new ParallelFourier(1), nWorkers, audioWavInputStream, 1,
+                    windowSize, stepFactor, false, outFile, null, null));
+            return readFrequencyFile(outFile);
+        } finally {
+            audioWavInputStream.close();
+            outFile.delete();
+        }
+    }
+
+    /**
+     * The pipeline must give the same result as transforming the whole audio data at once, in particular for the
+     * windows that straddle two chunks.
+     */
+    @SmallTest
+    public void testSameAsWholeTransform() throws IOException {
+        final int[] windowSizes = {256, 4096, 16384};
+        // step widths that don't divide the chunk size
+        final float[] stepFactors = {0.1f, 0.3f, 0.5f, 1f};
+        for (int windowSize : windowSizes) {
+            for (float stepFactor : stepFactors) {
+                final float[] expected = new ParallelFourier(1).transform(samples, samples.length, windowSize,
+                        stepFactor);
+                for (int nWorkers : new int[]{1, 2, 4}) {
+                    final float[] frequencies = convert(nWorkers, windowSize, stepFactor);
+                    final String message = windowSize + " " + stepFactor + " " + nWorkers;
+                    assertEquals(message, expected.length, frequencies.length);
+                    for (int i = 0; i < expected.length; i++) {
+                        if (expected[i] != frequencies[i])
+                            fail(message + ": differs at " + i);
+                    }
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    public void testCancel() throws IOException {
+        File outFile = File.createTempFile("test", ".freq");
+        AudioWavInputStream audioWavInputStream = new AudioWavInputStream(wavFile);
+        final int[] calls = {0};
+        try {
+            assertFalse(FrequencyMapConverter.convert(new ParallelFourier(1), 2, audioWavInputStream, 1, 256, 0.1f,
+                    false, outFile, new FrequencyMapConverter.ICancelSignal() {
+                        @Override
+                        public boolean isCanceled() {
+                            return ++calls[0] > 1;
+                        }
+                    }, null));
+        } finally {
+            audioWavInputStream.close();
+            outFile.delete();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.AudioFrequencyMapAdapter;
+
+import java.util.Random;
+
+
+public class FrequencyMapPyramidTest extends TestCase {
+    @SmallTest
+    public void testAggregatedColumns() {
+        final int bunchSize = 8;
+        final int bunchCount = 37;
+        Random random = new Random(1);
+        float[][] columns = new float[bunchCount][bunchSize];
+        AudioFrequencyMapAdapter adapter = new AudioFrequencyMapAdapter(0.5f);
+        for (float[] column : columns) {
+            for (int i = 0; i < bunchSize; i++)
+                column[i] = random.nextFloat();
+            adapter.addData(column);
+        }
+
+        assertEquals(1, adapter.getReduction(1));
+        assertEquals(4, adapter.getReduction(5));
+        assertEquals(32, adapter.getReduction(1000));
+
+        final int reduction = 8;
+        for (int index = 0; index < bunchCount; index++) {
+            float[] aggregated = adapter.getY(index, reduction, null);
+            final int blockStart = index / reduction * reduction;
+            if (blockStart + reduction > bunchCount) {
+                // incomplete block at the end, the bunch itself is returned
+                assertEquals(columns[index][0], aggregated[0]);
+                continue;
+            }
+            for (int i = 0; i < bunchSize; i++) {
+                float max = 0;
+                for (int a = blockStart; a < blockStart + reduction; a++)
+                    max = Math.max(max, columns[a][i]);
+                assertEquals(max, aggregated[i]);
+            }
+        }
+
+        // a clone must not see data that is added later
+        AudioFrequencyMapAdapter clone = adapter.clone(null);
+        for (int i = 0; i < 64; i++)
+            adapter.addData(new float[bunchSize]);
+        assertEquals(32, clone.getReduction(1000));
+        assertEquals(64, adapter.getReduction(1000));
+    }
+
+    @SmallTest
+    public void testFloatBudget() {
+        final int bunchSize = 1024;
+        final int bunchCount = 100000;
+        // all levels together take at most twice the first level, which has to fit into 4M floats
+        int firstLevel = 1;
+        while (2 * ((long)bunchCount * bunchSize >> firstLevel) > 4 * 1024 * 1024)
+            firstLevel++;
+
+        AudioFrequencyMapAdapter adapter = new AudioFrequencyMapAdapter(0.5f);
+        adapter.setExpectedBunchCount(bunchCount);
+        for (int i = 0; i < 64; i++)
+            adapter.addData(new float[bunchSize]);
+        assertEquals(1 << firstLevel, adapter.getReduction(1 << firstLevel));
+        assertEquals(1, adapter.getReduction((1 << firstLevel) - 1));
+
+        // short recordings keep the finest level
+        adapter.clear();
+        adapter.setExpectedBunchCount(100);
+        for (int i = 0; i < 64; i++)
+            adapter.addData(new float[bunchSize]);
+        assertEquals(2, adapter.getReduction(2));
+    }
+}
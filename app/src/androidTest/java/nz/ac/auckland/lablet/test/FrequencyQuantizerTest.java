@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.FrequencyQuantizer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+
+public class FrequencyQuantizerTest extends TestCase {
+    // half a code in dB
+    final static private double MAX_ERROR_DB = FrequencyQuantizer.DYNAMIC_RANGE_DB / 254 / 2 + 0.01;
+
+    private double toDb(float magnitude, float scale) {
+        return 20 * Math.log10(magnitude / scale);
+    }
+
+    @SmallTest
+    public void testRoundTrip() {
+        final int bunchSize = 512;
+        final float[] magnitudes = new float[bunchSize];
+        Random random = new Random(5);
+        for (int i = 0; i < bunchSize; i++)
+            magnitudes[i] = (float)Math.pow(10, 3 - 5 * random.nextDouble());
+
+        final byte[] codes = new byte[bunchSize];
+        final float scale = FrequencyQuantizer.encode(magnitudes, 0, bunchSize, codes, 0);
+        final float[] decoded = new float[bunchSize];
+        FrequencyQuantizer.decode(codes, 0, bunchSize, scale, decoded);
+        for (int i = 0; i < bunchSize; i++)
+            assertEquals(toDb(magnitudes[i], scale), toDb(decoded[i], scale), MAX_ERROR_DB);
+
+        // the same through a column record
+        final byte[] records = FrequencyQuantizer.encodeRecords(magnitudes, bunchSize);
+        assertEquals(FrequencyQuantizer.getRecordSize(bunchSize), records.length);
+        final float[] fromRecord = new float[bunchSize];
+        FrequencyQuantizer.decodeRecord(ByteBuffer.wrap(records).order(ByteOrder.nativeOrder()), 0, bunchSize,
+                new byte[bunchSize], fromRecord);
+        for (int i = 0; i < bunchSize; i++)
+            assertEquals(decoded[i], fromRecord[i]);
+    }
+
+    @SmallTest
+    public void testOutOfRange() {
+        final float[] magnitudes = {1000, 0, 1000 * (float)Math.pow(10, -FrequencyQuantizer.DYNAMIC_RANGE_DB / 20 - 1)};
+        final byte[] codes = new byte[magnitudes.length];
+        final float scale = FrequencyQuantizer.encode(magnitudes, 0, magnitudes.length, codes, 0);
+        assertEquals(1000f, scale);
+        final float[] decoded = new float[magnitudes.length];
+        FrequencyQuantizer.decode(codes, 0, magnitudes.length, scale, decoded);
+        assertEquals(1000f, decoded[0], 0.01f);
+        assertEquals(0f, decoded[1]);
+        assertEquals(0f, decoded[2]);
+
+        // silence
+        final float[] silence = new float[magnitudes.length];
+        assertEquals(0f, FrequencyQuantizer.encode(silence, 0, silence.length, codes, 0));
+        FrequencyQuantizer.decode(codes, 0, silence.length, 0, decoded);
+        for (float magnitude : decoded)
+            assertEquals(0f, magnitude);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.MagnitudeHistogram;
+
+
+public class MagnitudeHistogramTest extends TestCase {
+    // the bin center is at most half a bin, i.e., 1/16 of the magnitude, away
+    final static private float BIN_RATIO = 1.07f;
+
+    private void assertNear(float expected, float actual) {
+        assertTrue(expected + " != " + actual, actual <= expected * BIN_RATIO && actual >= expected / BIN_RATIO);
+    }
+
+    @SmallTest
+    public void testQuantile() {
+        MagnitudeHistogram histogram = new MagnitudeHistogram();
+        assertEquals(0f, histogram.getQuantile(0.5f));
+
+        // magnitudes from 1 to 10000
+        final float[] magnitudes = new float[10000];
+        for (int i = 0; i < magnitudes.length; i++)
+            magnitudes[i] = i + 1;
+        histogram.add(magnitudes);
+        assertEquals(magnitudes.length, histogram.getCount());
+
+        assertNear(1, histogram.getQuantile(0));
+        assertNear(5000, histogram.getQuantile(0.5f));
+        assertNear(9900, histogram.getQuantile(0.99f));
+        assertNear(10000, histogram.getQuantile(1));
+    }
+
+    @SmallTest
+    public void testMerge() {
+        final float[] low = new float[1000];
+        final float[] high = new float[3000];
+        for (int i = 0; i < low.length; i++)
+            low[i] = 10;
+        for (int i = 0; i < high.length; i++)
+            high[i] = 1000;
+
+        MagnitudeHistogram histogram = new MagnitudeHistogram();
+        histogram.add(low);
+        MagnitudeHistogram other = new MagnitudeHistogram();
+        other.add(high, 1000, 2000);
+        histogram.merge(other);
+
+        assertEquals(3000, histogram.getCount());
+        assertNear(10, histogram.getQuantile(0.3f));
+        assertNear(1000, histogram.getQuantile(0.4f));
+
+        MagnitudeHistogram copy = histogram.copy();
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+        assertEquals(3000, copy.getCount());
+    }
+}
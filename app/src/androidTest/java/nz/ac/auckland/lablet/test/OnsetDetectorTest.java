@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.OnsetDetector;
+
+import java.util.Random;
+
+
+public class OnsetDetectorTest extends TestCase {
+    final static private int N_BINS = 256;
+    final static private float COLUMN_PERIOD = 10;
+
+    final private Random random = new Random(3);
+
+    // noise plus a decaying broadband burst at each onset column
+    private float[] createColumn(int column, int[] onsets) {
+        float gain = 1;
+        for (int onset : onsets) {
+            if (column >= onset)
+                gain += 30 * Math.exp(-(column - onset) / 5.0);
+        }
+        float[] magnitudes = new float[N_BINS];
+        for (int i = 0; i < N_BINS; i++)
+            magnitudes[i] = gain * (50 + 100 * random.nextFloat());
+        return magnitudes;
+    }
+
+    @SmallTest
+    public void testOnsets() {
+        final int[] onsets = {100, 250, 400, 415};
+        OnsetDetector detector = new OnsetDetector(COLUMN_PERIOD);
+        for (int column = 0; column < 600; column++)
+            detector.add(createColumn(column, onsets));
+        detector.flush();
+
+        assertEquals(600, detector.getColumnCount());
+        assertEquals(onsets.length, detector.getOnsetCount());
+        for (int i = 0; i < onsets.length; i++) {
+            assertEquals(onsets[i], detector.getOnsetColumn(i));
+            assertTrue(detector.getOnsetStrength(i) > 0);
+        }
+    }
+
+    @SmallTest
+    public void testNoise() {
+        OnsetDetector detector = new OnsetDetector(COLUMN_PERIOD);
+        for (int column = 0; column < 1000; column++)
+            detector.add(createColumn(column, new int[0]));
+        detector.flush();
+        assertEquals(0, detector.getOnsetCount());
+
+        // silence
+        detector = new OnsetDetector(COLUMN_PERIOD);
+        for (int column = 0; column < 100; column++)
+            detector.add(new float[N_BINS]);
+        detector.flush();
+        assertEquals(0, detector.getOnsetCount());
+    }
+
+    @SmallTest
+    public void testStreaming() {
+        final int[] onsets = {50, 197};
+        OnsetDetector detector = new OnsetDetector(COLUMN_PERIOD);
+        for (int column = 0; column < 200; column++) {
+            detector.add(createColumn(column, onsets));
+            // an onset is found after a short look ahead
+            if (column == 60)
+                assertEquals(1, detector.getOnsetCount());
+        }
+        // the last onset needs the end of the stream
+        assertEquals(1, detector.getOnsetCount());
+        detector.flush();
+        assertEquals(2, detector.getOnsetCount());
+        assertEquals(197, detector.getOnsetColumn(1));
+    }
+
+    @SmallTest
+    public void testDiscardOnsets() {
+        // a live stream that only keeps the onsets of the last 300 columns
+        final int[] onsets = new int[40];
+        for (int i = 0; i < onsets.length; i++)
+            onsets[i] = 50 + 100 * i;
+        OnsetDetector detector = new OnsetDetector(COLUMN_PERIOD);
+        for (int column = 0; column < 4100; column++) {
+            detector.add(createColumn(column, onsets));
+            if (column % 100 == 0)
+                detector.discardOnsetsBefore(Math.max(0, column - 300));
+        }
+        detector.flush();
+
+        assertEquals(onsets.length, detector.getOnsetCount());
+        // onsets 0 to 36 are before column 3700
+        assertEquals(37, detector.getFirstOnset());
+        for (int i = detector.getFirstOnset(); i < detector.getOnsetCount(); i++)
+            assertEquals(onsets[i], detector.getOnsetColumn(i));
+
+        // discarding everything keeps the count
+        detector.discardOnsetsBefore(5000);
+        assertEquals(onsets.length, detector.getFirstOnset());
+        assertEquals(onsets.length, detector.getOnsetCount());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.ParallelFourier;
+
+import java.util.Random;
+
+
+public class ParallelFourierTest extends TestCase {
+    private float[] createSignal(int length) {
+        Random random = new Random(42);
+        float[] signal = new float[length];
+        for (int i = 0; i < length; i++)
+            signal[i] = (float)(10000 * Math.sin(2 * Math.PI * 440 * i / 44100) + 1000 * random.nextGaussian());
+        return signal;
+    }
+
+    private double[] referenceDFT(float[] data, int offset, int windowSize) {
+        double[] out = new double[windowSize / 2];
+        for (int k = 0; k < out.length; k++) {
+            double real = 0;
+            double imag = 0;
+            for (int i = 0; i < windowSize; i++) {
+                double window = 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (windowSize - 1));
+                double value = data[offset + i] * window;
+                real += value * Math.cos(2 * Math.PI * k * i / windowSize);
+                imag -= value * Math.sin(2 * Math.PI * k * i / windowSize);
+            }
+            out[k] = Math.sqrt(real * real + imag * imag);
+        }
+        return out;
+    }
+
+    @SmallTest
+    public void testAgainstReference() {
+        final int windowSize = 256;
+        final float stepFactor = 0.5f;
+        float[] signal = createSignal(2048);
+
+        ParallelFourier fourier = new ParallelFourier(1);
+        float[] frequencies = fourier.transform(signal, signal.length, windowSize, stepFactor);
+        assertEquals(15 * windowSize / 2, frequencies.length);
+
+        for (int step = 0; step < 15; step++) {
+            double[] reference = referenceDFT(signal, step * windowSize / 2, windowSize);
+            double max = 0;
+            for (double value : reference)
+                max = Math.max(max, value);
+            for (int k = 0; k < reference.length; k++)
+                assertEquals(reference[k], frequencies[step * windowSize / 2 + k], max * 1e-4);
+        }
+    }
+
+    @SmallTest
+    public void testParallelEqualsSequential() {
+        final int windowSize = 1024;
+        final float stepFactor = 0.1f;
+        float[] signal = createSignal(44100);
+
+        ParallelFourier sequential = new ParallelFourier(1);
+        ParallelFourier parallel = new ParallelFourier(4);
+        float[] expected = sequential.transform(signal, signal.length, windowSize, stepFactor);
+        float[] result = new float[ParallelFourier.getOutputSize(signal.length, windowSize, stepFactor)];
+        parallel.transform(signal, signal.length, windowSize, stepFactor, result);
+        parallel.release();
+
+        assertEquals(expected.length, result.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], result[i]);
+    }
+
+    @SmallTest
+    public void testInterrupted() {
+        final int windowSize = 1024;
+        final float stepFactor = 0.1f;
+        float[] signal = createSignal(44100);
+
+        ParallelFourier parallel = new ParallelFourier(4);
+        try {
+            // waiting for the workers fails right away
+            Thread.currentThread().interrupt();
+            assertNull(parallel.transform(signal, signal.length, windowSize, stepFactor));
+            // the interrupt is kept for the caller
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+            parallel.release();
+        }
+    }
+}
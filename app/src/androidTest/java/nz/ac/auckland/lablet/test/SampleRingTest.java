@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.SampleRing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class SampleRingTest extends TestCase {
+    final private static long TIMEOUT = 10 * 1000;
+
+    private void produce(SampleRing ring, int value) {
+        SampleRing.Slot slot = ring.claim();
+        slot.data[0] = (byte)value;
+        slot.size = 1;
+        ring.publish();
+    }
+
+    @SmallTest
+    public void testConsumerOrder() throws InterruptedException {
+        final int slotCount = 2000;
+        final SampleRing ring = new SampleRing(4, 2);
+        final List<List<Integer>> received = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < 3; c++) {
+            final SampleRing.Consumer consumer = ring.addConsumer();
+            final List<Integer> values = new ArrayList<>();
+            final Random random = new Random(c);
+            received.add(values);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    SampleRing.Slot slot;
+                    while ((slot = consumer.next()) != null) {
+                        values.add(slot.data[0] & 0xFF);
+                        // consumers of different speed
+                        if (random.nextInt(50) == 0)
+                            Thread.yield();
+                        consumer.release();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+
+        for (int i = 0; i < slotCount; i++)
+            produce(ring, i);
+        ring.close();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT);
+            assertFalse(thread.isAlive());
+        }
+
+        for (List<Integer> values : received) {
+            assertEquals(slotCount, values.size());
+            for (int i = 0; i < slotCount; i++)
+                assertEquals(i & 0xFF, (int)values.get(i));
+        }
+    }
+
+    @SmallTest
+    public void testBackPressure() throws InterruptedException {
+        final int capacity = 4;
+        final SampleRing ring = new SampleRing(capacity, 2);
+        final SampleRing.Consumer fast = ring.addConsumer();
+        final SampleRing.Consumer slow = ring.addConsumer();
+        final AtomicInteger produced = new AtomicInteger(0);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < capacity + 2; i++) {
+                    produce(ring, i);
+                    produced.incrementAndGet();
+                }
+            }
+        };
+        producer.start();
+
+        // the fast consumer keeps up but the slow one does not read anything: the producer stops a ring ahead
+        for (int i = 0; i < capacity; i++) {
+            assertEquals(i, fast.next().data[0]);
+            fast.release();
+        }
+        Thread.sleep(200);
+        assertEquals(capacity, produced.get());
+        assertTrue(producer.isAlive());
+
+        // each released slot of the slow consumer frees one slot for the producer
+        assertEquals(0, slow.next().data[0]);
+        slow.release();
+        assertEquals(capacity, fast.next().data[0]);
+        fast.release();
+        Thread.sleep(200);
+        assertEquals(capacity + 1, produced.get());
+
+        assertEquals(1, slow.next().data[0]);
+        slow.release();
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        assertEquals(capacity + 2, produced.get());
+    }
+
+    @SmallTest
+    public void testCloseDrainsSlots() throws InterruptedException {
+        final SampleRing ring = new SampleRing(8, 2);
+        SampleRing.Consumer consumer = ring.addConsumer();
+        for (int i = 0; i < 3; i++)
+            produce(ring, i);
+        ring.close();
+
+        for (int i = 0; i < 3; i++) {
+            SampleRing.Slot slot = consumer.next();
+            assertNotNull(slot);
+            assertEquals(i, slot.data[0]);
+            consumer.release();
+        }
+        assertNull(consumer.next());
+        assertNull(consumer.next());
+
+        // a waiting consumer is woken up by close
+        final SampleRing waitingRing = new SampleRing(8, 2);
+        final SampleRing.Consumer waitingConsumer = waitingRing.addConsumer();
+        final List<SampleRing.Slot> result = new ArrayList<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                SampleRing.Slot slot = waitingConsumer.next();
+                assertNotNull(slot);
+                waitingConsumer.release();
+                result.add(waitingConsumer.next());
+            }
+        };
+        thread.start();
+        produce(waitingRing, 7);
+        Thread.sleep(100);
+        waitingRing.close();
+        thread.join(TIMEOUT);
+        assertFalse(thread.isAlive());
+        assertEquals(1, result.size());
+        assertNull(result.get(0));
+    }
+}
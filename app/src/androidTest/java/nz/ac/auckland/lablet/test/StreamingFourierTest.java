@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.ParallelFourier;
+import nz.ac.auckland.lablet.microphone.StreamingFourier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+public class StreamingFourierTest extends TestCase {
+    private float[] createSignal(int length) {
+        Random random = new Random(42);
+        float[] signal = new float[length];
+        for (int i = 0; i < length; i++)
+            signal[i] = (float)(10000 * Math.sin(2 * Math.PI * 440 * i / 44100) + 1000 * random.nextGaussian());
+        return signal;
+    }
+
+    /**
+     * Feeds the signal in pieces whose sizes are unrelated to the window size, starting with the given size.
+     */
+    private List<float[]> stream(StreamingFourier streamingFourier, float[] signal, int firstPieceSize) {
+        final List<float[]> columns = new ArrayList<>();
+        final StreamingFourier.IListener listener = new StreamingFourier.IListener() {
+            @Override
+            public void onNewFrequencies(float[] frequencies) {
+                columns.add(frequencies);
+            }
+        };
+        int position = 0;
+        int pieceSize = firstPieceSize;
+        while (position < signal.length) {
+            final int length = Math.min(pieceSize, signal.length - position);
+            streamingFourier.addData(signal, position, length, listener);
+            position += length;
+            pieceSize = pieceSize * 3 % 5001 + 1;
+        }
+        return columns;
+    }
+
+    private void assertSameAsBatch(float[] signal, int windowSize, float stepFactor, List<float[]> columns) {
+        final String message = windowSize + " " + stepFactor;
+        final float[] expected = new ParallelFourier(1).transform(signal, signal.length, windowSize, stepFactor);
+        final int bunchSize = windowSize / 2;
+        assertEquals(message, expected.length, columns.size() * bunchSize);
+        for (int i = 0; i < columns.size(); i++) {
+            for (int k = 0; k < bunchSize; k++)
+                assertEquals(message, expected[i * bunchSize + k], columns.get(i)[k]);
+        }
+    }
+
+    @SmallTest
+    public void testSameAsBatch() {
+        final float[] signal = createSignal(30000);
+        for (int windowSize : new int[]{256, 512, 4096}) {
+            for (float stepFactor : new float[]{0.01f, 0.15f, 0.5f, 1f, 2.5f}) {
+                for (int firstPieceSize : new int[]{1, 7, 1000, 12345}) {
+                    StreamingFourier streamingFourier = new StreamingFourier(windowSize, stepFactor);
+                    assertSameAsBatch(signal, windowSize, stepFactor,
+                            stream(streamingFourier, signal, firstPieceSize));
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    public void testReset() {
+        final int windowSize = 512;
+        final float stepFactor = 0.3f;
+        final float[] signal = createSignal(10000);
+
+        StreamingFourier streamingFourier = new StreamingFourier(windowSize, stepFactor);
+        stream(streamingFourier, createSignal(777), 5);
+        // nothing of the previous stream must leak into the new one
+        streamingFourier.reset();
+        assertSameAsBatch(signal, windowSize, stepFactor, stream(streamingFourier, signal, 3));
+    }
+}
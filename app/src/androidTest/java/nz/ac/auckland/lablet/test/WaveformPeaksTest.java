@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.test;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import nz.ac.auckland.lablet.microphone.AmplitudeSummary;
+import nz.ac.auckland.lablet.microphone.AudioAmplitudePlotDataAdapter;
+import nz.ac.auckland.lablet.microphone.WaveformPeaks;
+import nz.ac.auckland.lablet.misc.AudioWavOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+
+
+public class WaveformPeaksTest extends TestCase {
+    private File createWavFile(short[] samples) throws IOException {
+        File file = File.createTempFile("test", ".wav");
+        file.deleteOnExit();
+        WaveformPeaks.getPeakFile(file).deleteOnExit();
+        AudioWavOutputStream outputStream = new AudioWavOutputStream(file, 1, 44100);
+        try {
+            byte[] bytes = new byte[samples.length * 2];
+            for (int i = 0; i < samples.length; i++) {
+                bytes[i * 2] = (byte)samples[i];
+                bytes[i * 2 + 1] = (byte)(samples[i] >> 8);
+            }
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private void checkRange(WaveformPeaks peaks, short[] samples, int start, int end) {
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        assertTrue(peaks.getStatistics(start, end, statistics));
+
+        // the peaks cover the range extended to the block borders
+        AmplitudeSummary.Statistics exact = new AmplitudeSummary.Statistics();
+        exact.reset();
+        for (int i = start; i < end; i++)
+            exact.add(samples[i]);
+        assertTrue(statistics.min <= exact.min);
+        assertTrue(statistics.max >= exact.max);
+        assertTrue(statistics.count >= end - start);
+        assertTrue(statistics.count < (end - start) * 3);
+    }
+
+    @SmallTest
+    public void testCreateAndQuery() throws IOException {
+        short[] samples = new short[300001];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short)(i * 7919 % 20000 - 10000 + (i / 1000));
+        File audioFile = createWavFile(samples);
+
+        assertNull(WaveformPeaks.open(audioFile));
+        WaveformPeaks created = WaveformPeaks.create(audioFile);
+        WaveformPeaks peaks = WaveformPeaks.open(audioFile);
+        assertNotNull(peaks);
+        assertEquals(44100, peaks.getSampleRate());
+        assertEquals(samples.length, peaks.getSampleCount());
+        assertEquals(samples.length, created.getSampleCount());
+
+        // whole file, the statistics of all blocks together are exact
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        assertTrue(peaks.getStatistics(0, samples.length, statistics));
+        AmplitudeSummary.Statistics exact = new AmplitudeSummary.Statistics();
+        exact.reset();
+        for (short sample : samples)
+            exact.add(sample);
+        assertEquals(exact.min, statistics.min);
+        assertEquals(exact.max, statistics.max);
+        assertEquals(exact.count, statistics.count);
+        assertEquals(exact.getMean(), statistics.getMean(), 0.01f);
+        assertEquals(exact.getStd(), statistics.getStd(), 1f);
+
+        checkRange(peaks, samples, 0, 256);
+        checkRange(peaks, samples, 1000, 2000);
+        checkRange(peaks, samples, 12345, 123456);
+        checkRange(peaks, samples, 290000, samples.length);
+
+        // too small for the peaks
+        assertFalse(peaks.getStatistics(100, 300, statistics));
+    }
+
+    @SmallTest
+    public void testFileSums() throws IOException {
+        short[] samples = new short[200003];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short)(i * 7919 % 20000 - 10000 + (i / 1000));
+        File audioFile = createWavFile(samples);
+        AudioAmplitudePlotDataAdapter adapter = new AudioAmplitudePlotDataAdapter();
+        adapter.setDataFile(audioFile, WaveformPeaks.create(audioFile));
+
+        // unaligned borders, ranges within a block and the incomplete last block
+        final int[][] ranges = {{0, samples.length}, {1, 255}, {100, 300}, {255, 257}, {1000, 70001},
+                {12345, 123456}, {65535, 131073}, {199999, samples.length}};
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        for (int[] range : ranges) {
+            double sum = 0;
+            double sumSq = 0;
+            for (int i = range[0]; i < range[1]; i++) {
+                sum += samples[i];
+                sumSq += (double)samples[i] * samples[i];
+            }
+            final double amplitudeMax = 65535;
+            adapter.getSums(range[0], range[1], statistics);
+            assertEquals(range[1] - range[0], statistics.count);
+            // the block sums are stored as floats
+            assertEquals(sum / amplitudeMax, statistics.sum, 1e-6 * statistics.count);
+            assertEquals(sumSq / (amplitudeMax * amplitudeMax), statistics.sumSq, 1e-6 * statistics.sumSq + 1e-6);
+        }
+        adapter.clear();
+    }
+
+    @SmallTest
+    public void testOutdatedPeakFile() throws IOException {
+        short[] samples = new short[10000];
+        File audioFile = createWavFile(samples);
+        WaveformPeaks.create(audioFile);
+        assertNotNull(WaveformPeaks.open(audioFile));
+
+        createWavFile(new short[20000]).renameTo(audioFile);
+        assertNull(WaveformPeaks.open(audioFile));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Running sums of the amplitudes and of the squared amplitudes.
+ *
+ * For each block of BLOCK_SIZE samples the sums of all samples before the block are stored, so the sum, the mean or
+ * the RMS of an arbitrary sample range is the difference of two stored values plus the raw samples of the partial
+ * blocks at the borders. Thus a query reads at most 2 * BLOCK_SIZE raw samples and the sums only take 16 bytes per
+ * block.
+ *
+ * The block sums are stored in chunks of CHUNK_BLOCKS blocks. Chunks at the start can be discarded without changing
+ * the sums of the remaining samples. Stored sums are never modified, so a snapshot can share the chunks with the
+ * original.
+ */
+public class AmplitudePrefixSums {
+    final static public int BLOCK_SIZE = 256;
+    final static public int CHUNK_BLOCKS = 1024;
+    final static private int CHUNK_SIZE = BLOCK_SIZE * CHUNK_BLOCKS;
+
+    final private List<double[]> sumChunks;
+    final private List<double[]> sumSqChunks;
+    // chunk index of the first stored chunk
+    private int firstChunk = 0;
+    // samples before this index have been discarded
+    private int firstSample = 0;
+    private int sampleCount = 0;
+    // sums of all samples
+    private double sum = 0;
+    private double sumSq = 0;
+
+    public AmplitudePrefixSums() {
+        sumChunks = new ArrayList<>();
+        sumSqChunks = new ArrayList<>();
+    }
+
+    private AmplitudePrefixSums(AmplitudePrefixSums parent) {
+        sumChunks = new ArrayList<>(parent.sumChunks);
+        sumSqChunks = new ArrayList<>(parent.sumSqChunks);
+        firstChunk = parent.firstChunk;
+        firstSample = parent.firstSample;
+        sampleCount = parent.sampleCount;
+        sum = parent.sum;
+        sumSq = parent.sumSq;
+    }
+
+    /**
+     * @return a read only copy that is not affected by later changes
+     */
+    public AmplitudePrefixSums snapshot() {
+        return new AmplitudePrefixSums(this);
+    }
+
+    public void add(float[] samples) {
+        for (float sample : samples) {
+            if (sampleCount % BLOCK_SIZE == 0) {
+                final int block = (sampleCount / BLOCK_SIZE) % CHUNK_BLOCKS;
+                if (block == 0) {
+                    sumChunks.add(new double[CHUNK_BLOCKS]);
+                    sumSqChunks.add(new double[CHUNK_BLOCKS]);
+                }
+                final int chunk = sumChunks.size() - 1;
+                sumChunks.get(chunk)[block] = sum;
+                sumSqChunks.get(chunk)[block] = sumSq;
+            }
+            sum += sample;
+            sumSq += (double)sample * sample;
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Discards the samples before sampleIndex; the raw samples of the source must be available from there on.
+     */
+    public void discardBefore(int sampleIndex) {
+        firstSample = Math.max(firstSample, Math.min(sampleIndex, sampleCount));
+        final int chunks = Math.min(sumChunks.size(), firstSample / CHUNK_SIZE - firstChunk);
+        if (chunks <= 0)
+            return;
+        sumChunks.subList(0, chunks).clear();
+        sumSqChunks.subList(0, chunks).clear();
+        firstChunk += chunks;
+    }
+
+    /**
+     * @return index of the first sample that has not been discarded
+     */
+    public int getFirstSample() {
+        return firstSample;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    // index must be at a block start
+    private double getPrefix(List<double[]> chunks, double total, int index) {
+        if (index == sampleCount)
+            return total;
+        return chunks.get(index / CHUNK_SIZE - firstChunk)[(index / BLOCK_SIZE) % CHUNK_BLOCKS];
+    }
+
+    static private void addSamples(AmplitudeSummary.ISampleSource source, int start, int end,
+                                   AmplitudeSummary.Statistics statistics) {
+        for (int i = start; i < end; i++) {
+            final float sample = source.get(i);
+            statistics.sum += sample;
+            statistics.sumSq += (double)sample * sample;
+        }
+        statistics.count += Math.max(0, end - start);
+    }
+
+    /**
+     * Calculates sum, sum of squares and count of the samples [start, end).
+     *
+     * The range is clipped to the stored samples. Min and max of the statistics are not set.
+     *
+     * @param start first sample index
+     * @param end sample index after the last sample
+     * @param source the raw samples, used for the partial blocks at the borders
+     * @param statistics the result
+     */
+    public void query(int start, int end, AmplitudeSummary.ISampleSource source,
+                      AmplitudeSummary.Statistics statistics) {
+        statistics.reset();
+        start = Math.max(start, firstSample);
+        end = Math.min(end, sampleCount);
+        if (start >= end)
+            return;
+        final int innerStart = Math.min((start + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE, end);
+        final int innerEnd = Math.max(end == sampleCount ? end : end / BLOCK_SIZE * BLOCK_SIZE, innerStart);
+        addSamples(source, start, innerStart, statistics);
+        if (innerStart < innerEnd) {
+            statistics.sum += getPrefix(sumChunks, sum, innerEnd) - getPrefix(sumChunks, sum, innerStart);
+            statistics.sumSq += getPrefix(sumSqChunks, sumSq, innerEnd) - getPrefix(sumSqChunks, sumSq, innerStart);
+            statistics.count += innerEnd - innerStart;
+        }
+        addSamples(source, innerEnd, end, statistics);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+
+/**
+ * Min, max, sum and sum of squares of amplitude blocks at several block sizes.
+ *
+ * The block summaries are updated while samples are appended. A query for an arbitrary sample range combines the
+ * biggest blocks that fit into the range and only reads the raw samples at the unaligned borders. Thus the cost of a
+ * query does not depend on the length of the range.
+ *
+ * Blocks at the start can be discarded, e.g., when only the last seconds of a live recording are kept. Stored blocks
+ * are never modified, so a snapshot can share the block arrays with the original.
+ */
+public class AmplitudeSummary {
+    public interface ISampleSource {
+        float get(int index);
+    }
+
+    /**
+     * Statistics of a range of samples.
+     */
+    static public class Statistics {
+        public float min;
+        public float max;
+        public double sum;
+        public double sumSq;
+        public int count;
+
+        public void reset() {
+            min = Float.MAX_VALUE;
+            max = -Float.MAX_VALUE;
+            sum = 0;
+            sumSq = 0;
+            count = 0;
+        }
+
+        public void add(float value) {
+            if (value < min)
+                min = value;
+            if (value > max)
+                max = value;
+            sum += value;
+            sumSq += (double)value * value;
+            count++;
+        }
+
+        public float getMean() {
+            if (count == 0)
+                return 0;
+            return (float)(sum / count);
+        }
+
+        /**
+         * @return the sample standard deviation
+         */
+        public float getStd() {
+            if (count < 2)
+                return 0;
+            final double variance = (count * sumSq - sum * sum) / ((double)count * (count - 1));
+            if (variance <= 0)
+                return 0;
+            return (float)Math.sqrt(variance);
+        }
+
+        public void scale(float factor) {
+            min *= factor;
+            max *= factor;
+            if (factor < 0) {
+                float tmp = min;
+                min = max;
+                max = tmp;
+            }
+            sum *= factor;
+            sumSq *= factor * factor;
+        }
+    }
+
+    static private class Level {
+        final int blockSize;
+        float[] min;
+        float[] max;
+        double[] sum;
+        double[] sumSq;
+        // block index of the first stored block
+        int firstBlock = 0;
+        // array position of the first stored block
+        int offset = 0;
+        int count = 0;
+
+        // block that is currently filled
+        final Statistics pending = new Statistics();
+
+        public Level(int blockSize) {
+            this.blockSize = blockSize;
+            allocate(64);
+            pending.reset();
+        }
+
+        private Level(Level parent) {
+            blockSize = parent.blockSize;
+            min = parent.min;
+            max = parent.max;
+            sum = parent.sum;
+            sumSq = parent.sumSq;
+            firstBlock = parent.firstBlock;
+            offset = parent.offset;
+            count = parent.count;
+        }
+
+        private void allocate(int capacity) {
+            min = new float[capacity];
+            max = new float[capacity];
+            sum = new double[capacity];
+            sumSq = new double[capacity];
+        }
+
+        public boolean contains(int block) {
+            return block >= firstBlock && block < firstBlock + count;
+        }
+
+        public void append(Statistics block) {
+            if (offset + count == min.length) {
+                // reallocate instead of moving the blocks in place, the old arrays might be shared with a snapshot
+                final int capacity = count * 2 > min.length ? min.length * 2 : min.length;
+                final float[] oldMin = min;
+                final float[] oldMax = max;
+                final double[] oldSum = sum;
+                final double[] oldSumSq = sumSq;
+                allocate(capacity);
+                System.arraycopy(oldMin, offset, min, 0, count);
+                System.arraycopy(oldMax, offset, max, 0, count);
+                System.arraycopy(oldSum, offset, sum, 0, count);
+                System.arraycopy(oldSumSq, offset, sumSq, 0, count);
+                offset = 0;
+            }
+            final int position = offset + count;
+            min[position] = block.min;
+            max[position] = block.max;
+            sum[position] = block.sum;
+            sumSq[position] = block.sumSq;
+            count++;
+        }
+
+        public void discardBefore(int sampleIndex) {
+            final int blocks = Math.min(count, sampleIndex / blockSize - firstBlock);
+            if (blocks <= 0)
+                return;
+            firstBlock += blocks;
+            offset += blocks;
+            count -= blocks;
+        }
+
+        public void mergeInto(int block, Statistics statistics) {
+            final int position = offset + block - firstBlock;
+            if (min[position] < statistics.min)
+                statistics.min = min[position];
+            if (max[position] > statistics.max)
+                statistics.max = max[position];
+            statistics.sum += sum[position];
+            statistics.sumSq += sumSq[position];
+            statistics.count += blockSize;
+        }
+    }
+
+    final static public int BASE_BLOCK_SIZE = 64;
+    final static public int LEVEL_FACTOR = 8;
+    final static public int N_LEVELS = 5;
+
+    final private Level[] levels = new Level[N_LEVELS];
+    private int sampleCount = 0;
+
+    public AmplitudeSummary() {
+        int blockSize = BASE_BLOCK_SIZE;
+        for (int i = 0; i < N_LEVELS; i++) {
+            levels[i] = new Level(blockSize);
+            blockSize *= LEVEL_FACTOR;
+        }
+    }
+
+    private AmplitudeSummary(AmplitudeSummary parent) {
+        for (int i = 0; i < N_LEVELS; i++)
+            levels[i] = new Level(parent.levels[i]);
+        sampleCount = parent.sampleCount;
+    }
+
+    /**
+     * @return a read only copy that is not affected by later changes
+     */
+    public AmplitudeSummary snapshot() {
+        return new AmplitudeSummary(this);
+    }
+
+    public void add(float[] samples) {
+        final Level base = levels[0];
+        for (float sample : samples) {
+            base.pending.add(sample);
+            if (base.pending.count == BASE_BLOCK_SIZE)
+                completeBlock(0);
+        }
+        sampleCount += samples.length;
+    }
+
+    private void completeBlock(int levelIndex) {
+        final Level level = levels[levelIndex];
+        level.append(level.pending);
+
+        if (levelIndex + 1 < N_LEVELS) {
+            final Statistics parent = levels[levelIndex + 1].pending;
+            if (level.pending.min < parent.min)
+                parent.min = level.pending.min;
+            if (level.pending.max > parent.max)
+                parent.max = level.pending.max;
+            parent.sum += level.pending.sum;
+            parent.sumSq += level.pending.sumSq;
+            parent.count += level.pending.count;
+            if (parent.count == levels[levelIndex + 1].blockSize)
+                completeBlock(levelIndex + 1);
+        }
+        level.pending.reset();
+    }
+
+    /**
+     * Drops the blocks that end before sampleIndex.
+     */
+    public void discardBefore(int sampleIndex) {
+        for (Level level : levels)
+            level.discardBefore(sampleIndex);
+    }
+
+    /**
+     * Calculates the statistics of the samples [start, end).
+     *
+     * @param source raw sample access for the borders of the range
+     * @param statistics the result
+     */
+    public void query(int start, int end, ISampleSource source, Statistics statistics) {
+        statistics.reset();
+        if (end > sampleCount)
+            end = sampleCount;
+
+        int position = start;
+        while (position < end) {
+            Level fittingLevel = null;
+            for (int i = N_LEVELS - 1; i >= 0; i--) {
+                final Level level = levels[i];
+                if (position % level.blockSize != 0 || position + level.blockSize > end)
+                    continue;
+                if (!level.contains(position / level.blockSize))
+                    continue;
+                fittingLevel = level;
+                break;
+            }
+            if (fittingLevel == null) {
+                statistics.add(source.get(position));
+                position++;
+                continue;
+            }
+            fittingLevel.mergeInto(position / fittingLevel.blockSize, statistics);
+            position += fittingLevel.blockSize;
+        }
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+}
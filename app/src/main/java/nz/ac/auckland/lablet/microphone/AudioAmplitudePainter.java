@@ -77,31 +77,22 @@ public class AudioAmplitudePainter extends ArrayConcurrentPainter {
         if (count > dataSize)
             count = dataSize;
 
-        final int samplesPerPixel = getSamplesPerPixel(payload);
+        int samplesPerPixel = getSamplesPerPixel(payload);
+        if (samplesPerPixel < 1)
+            samplesPerPixel = 1;
 
         Path outerPath = new Path();
         Path innerPath = new Path();
 
+        final AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
         for (int i = 0; i < count; i += samplesPerPixel) {
-            float min = Float.MAX_VALUE;
-            float max = Float.MIN_VALUE;
-            float ampSum = 0;
-            float ampSquareSum = 0;
-            for (int a = 0; a < samplesPerPixel; a++) {
-                int index = i + a;
-                if (start + index >= dataSize)
-                    break;
-                float value = adapter.getY(start + index).floatValue();
-                ampSum += value;
-                ampSquareSum += Math.pow(value, 2);
-                if (value < min)
-                    min = value;
-                if (value > max)
-                    max = value;
-            }
-            float average = ampSum / samplesPerPixel;
-            float std = (float) Math.sqrt((samplesPerPixel * ampSquareSum + Math.pow(ampSum, 2))
-                    / (samplesPerPixel * (samplesPerPixel - 1)));
+            adapter.getStatistics(start + i, Math.min(start + i + samplesPerPixel, dataSize), statistics);
+            if (statistics.count == 0)
+                break;
+            final float min = statistics.min;
+            final float max = statistics.max;
+            final float average = statistics.getMean();
+            final float std = statistics.getStd();
 
             // drawing
             float x = adapter.getX(start + i).floatValue();
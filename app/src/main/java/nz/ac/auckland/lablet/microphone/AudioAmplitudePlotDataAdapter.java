@@ -7,95 +7,13 @@
  */
 package nz.ac.auckland.lablet.microphone;
 
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
 import nz.ac.auckland.lablet.views.plotview.*;
 
-import java.util.*;
+import java.io.File;
+import java.io.IOException;
 
 
-class FixSizedBunchArray extends AbstractList<Float> {
-    final public List<float[]> list;
-    public int bunchSize = -1;
-    public int size = 0;
-
-    public FixSizedBunchArray(int bunchSize) {
-        this.list = new ArrayList<>();
-        this.bunchSize = bunchSize;
-    }
-
-    // creates a shallow copy
-    public FixSizedBunchArray(FixSizedBunchArray array) {
-        this.list = new ArrayList<>(array.list);
-        this.bunchSize = array.bunchSize;
-        this.size = array.size;
-    }
-
-    public void add(float[] data) {
-        if (bunchSize == -1)
-            bunchSize = data.length;
-        if (bunchSize != data.length)
-            throw new RuntimeException();
-        list.add(data);
-        size += bunchSize;
-    }
-
-    public void clear() {
-        bunchSize = -1;
-        list.clear();
-        size = 0;
-    }
-
-    @Override
-    public Iterator<Float> iterator() {
-        return new Iterator<Float>() {
-            int position = 0;
-            @Override
-            public boolean hasNext() {
-                return position < size();
-            }
-
-            @Override
-            public Float next() {
-                float value = get(position);
-                position++;
-                return value;
-            }
-
-            @Override
-            public void remove() {
-                throw new RuntimeException("not allowed");
-            }
-        };
-    }
-
-    @Override
-    public Float get(int index) {
-        float[] data = list.get(index / bunchSize);
-        return data[index % bunchSize];
-    }
-
-    @Override
-    public int size() {
-        return size;
-    }
-
-    public float[] getBunch(int bunchIndex) {
-        return list.get(bunchIndex);
-    }
-
-    public void removeBunch(int bunchIndex) {
-        list.remove(bunchIndex);
-        size -= bunchSize;
-    }
-
-    public int getBunchCount() {
-        return list.size();
-    }
-
-    public int getBunchSize() {
-        return bunchSize;
-    }
-}
-
 public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
     private IDataBackend data;
     private float amplitudeMax = 65535;
@@ -103,24 +21,33 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
 
     private int discardDataTime = -1;
 
-    interface IDataBackend {
+    interface IDataBackend extends AmplitudeSummary.ISampleSource {
         int size();
         float get(int index);
         int getBunchSize();
         void add(float[] data);
         void clear();
+        void getStatistics(int start, int end, AmplitudeSummary.Statistics statistics);
+        // like getStatistics but only sum, sum of squares and count are set
+        void getSums(int start, int end, AmplitudeSummary.Statistics statistics);
         IDataBackend clone();
     }
 
     static class MemoryBackend implements IDataBackend {
         private FixSizedBunchArray data = null;
+        private AmplitudeSummary summary;
+        private AmplitudePrefixSums prefixSums;
 
         public MemoryBackend(int length) {
             data = new FixSizedBunchArray(length);
+            summary = new AmplitudeSummary();
+            prefixSums = new AmplitudePrefixSums();
         }
 
         private MemoryBackend(MemoryBackend parent) {
             data = new FixSizedBunchArray(parent.data);
+            summary = parent.summary.snapshot();
+            prefixSums = parent.prefixSums.snapshot();
         }
 
         @Override
@@ -130,7 +57,7 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
 
         @Override
         public float get(int index) {
-            return data.get(index);
+            return data.getFloat(index);
         }
 
         @Override
@@ -141,11 +68,25 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
         @Override
         public void add(float[] data) {
             this.data.add(data);
+            summary.add(data);
+            prefixSums.add(data);
         }
 
         @Override
         public void clear() {
             data.clear();
+            summary = new AmplitudeSummary();
+            prefixSums = new AmplitudePrefixSums();
+        }
+
+        @Override
+        public void getStatistics(int start, int end, AmplitudeSummary.Statistics statistics) {
+            summary.query(start, end, this, statistics);
+        }
+
+        @Override
+        public void getSums(int start, int end, AmplitudeSummary.Statistics statistics) {
+            prefixSums.query(start, end, this, statistics);
         }
 
         @Override
@@ -156,14 +97,20 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
 
     class DiscardMemoryBackend implements IDataBackend {
         private FixSizedBunchArray data = null;
+        private AmplitudeSummary summary;
+        private AmplitudePrefixSums prefixSums;
         int discardedBunches = 0;
 
         public DiscardMemoryBackend(int length) {
             data = new FixSizedBunchArray(length);
+            summary = new AmplitudeSummary();
+            prefixSums = new AmplitudePrefixSums();
         }
 
         private DiscardMemoryBackend(DiscardMemoryBackend parent) {
             data = new FixSizedBunchArray(parent.data);
+            summary = parent.summary.snapshot();
+            prefixSums = parent.prefixSums.snapshot();
             discardedBunches = parent.discardedBunches;
         }
 
@@ -178,7 +125,7 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
 
         @Override
         public float get(int index) {
-            return data.get(index - getDiscardOffset());
+            return data.getFloat(index - getDiscardOffset());
         }
 
         @Override
@@ -195,27 +142,178 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
                 int bunches = (int)Math.ceil(discardDataTime * bunchRate / 1000);
                 int bunchesToDiscard = data.getBunchCount() - bunches;
                 if (bunchesToDiscard > 0) {
-                    for (int i = 0; i < bunchesToDiscard; i++)
-                        data.removeBunch(0);
+                    data.removeFirstBunches(bunchesToDiscard);
                     discardedBunches += bunchesToDiscard;
+                    summary.discardBefore(getDiscardOffset());
+                    prefixSums.discardBefore(getDiscardOffset());
                 }
             }
 
             data.add(amplitudes);
+            summary.add(amplitudes);
+            prefixSums.add(amplitudes);
         }
 
         @Override
         public void clear() {
             data.clear();
+            summary = new AmplitudeSummary();
+            prefixSums = new AmplitudePrefixSums();
             discardedBunches = 0;
         }
 
+        @Override
+        public void getStatistics(int start, int end, AmplitudeSummary.Statistics statistics) {
+            summary.query(start, end, this, statistics);
+        }
+
+        @Override
+        public void getSums(int start, int end, AmplitudeSummary.Statistics statistics) {
+            prefixSums.query(start, end, this, statistics);
+        }
+
         @Override
         public IDataBackend clone() {
             return new DiscardMemoryBackend(this);
         }
     }
 
+    /**
+     * Backend for a wav file.
+     *
+     * The statistics are taken from the {@link WaveformPeaks}; the audio file is only read for ranges that are smaller
+     * than the smallest peak block. The backend is read only, data can't be added.
+     *
+     * Clones share the audio stream of the backend that opened it. The painters drop their clones without clearing
+     * them, so only the opening backend closes the stream in {@link #clear()}; clearing a clone doesn't affect the
+     * others. Reads after the stream has been closed return no samples.
+     */
+    static class FileBackend implements IDataBackend {
+        final private WaveformPeaks peaks;
+        final private AudioWavInputStream audioStream;
+        // if this backend opened the stream, i.e., is not a clone
+        final private boolean ownsStream;
+        final private int size;
+        final private float[] buffer;
+
+        public FileBackend(File audioFile, WaveformPeaks peaks) throws IOException {
+            this.peaks = peaks;
+            this.audioStream = new AudioWavInputStream(audioFile);
+            this.ownsStream = true;
+            this.size = (int)Math.min(Integer.MAX_VALUE, Math.min(peaks.getSampleCount(),
+                    audioStream.getSampleCount()));
+            this.buffer = new float[peaks.getMinBlockSize()];
+        }
+
+        private FileBackend(FileBackend parent) {
+            this.peaks = parent.peaks;
+            this.audioStream = parent.audioStream;
+            this.ownsStream = false;
+            this.size = parent.size;
+            this.buffer = new float[parent.buffer.length];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public float get(int index) {
+            if (readSamples(index, 1) < 1)
+                return 0;
+            return buffer[0];
+        }
+
+        /**
+         * Reads samples into the buffer.
+         *
+         * @return number of samples read
+         */
+        private int readSamples(int start, int count) {
+            synchronized (audioStream) {
+                try {
+                    audioStream.seekToSample(start);
+                    final int read = audioStream.readAmplitudes(buffer, 0, Math.min(count, buffer.length));
+                    return Math.max(0, read);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return 0;
+                }
+            }
+        }
+
+        @Override
+        public int getBunchSize() {
+            return buffer.length;
+        }
+
+        @Override
+        public void add(float[] data) {
+            throw new IllegalStateException("File backed amplitude data is read only");
+        }
+
+        @Override
+        public void clear() {
+            if (!ownsStream)
+                return;
+            synchronized (audioStream) {
+                try {
+                    audioStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void getStatistics(int start, int end, AmplitudeSummary.Statistics statistics) {
+            if (peaks.getStatistics(start, end, statistics))
+                return;
+            final int read = readSamples(start, Math.min(end, size) - start);
+            for (int i = 0; i < read; i++)
+                statistics.add(buffer[i]);
+        }
+
+        @Override
+        public void getSums(int start, int end, AmplitudeSummary.Statistics statistics) {
+            statistics.reset();
+            start = Math.max(0, start);
+            end = Math.min(end, size);
+            if (start >= end)
+                return;
+            // whole blocks from the peaks, the unaligned borders from the audio file
+            final int blockSize = peaks.getMinBlockSize();
+            final int innerStart = Math.min((start + blockSize - 1) / blockSize * blockSize, end);
+            int innerEnd = end == peaks.getSampleCount() ? end : end / blockSize * blockSize;
+            if (innerEnd < innerStart)
+                innerEnd = innerStart;
+            addSamples(start, innerStart, statistics);
+            peaks.addBlockSums(innerStart, innerEnd, statistics);
+            addSamples(innerEnd, end, statistics);
+        }
+
+        private void addSamples(int start, int end, AmplitudeSummary.Statistics statistics) {
+            while (start < end) {
+                final int read = readSamples(start, end - start);
+                if (read == 0)
+                    return;
+                for (int i = 0; i < read; i++) {
+                    final float sample = buffer[i];
+                    statistics.sum += sample;
+                    statistics.sumSq += (double)sample * sample;
+                }
+                statistics.count += read;
+                start += read;
+            }
+        }
+
+        @Override
+        public IDataBackend clone() {
+            return new FileBackend(this);
+        }
+    }
+
     public void addData(float amplitudes[]) {
         if (amplitudes.length == 0)
             return;
@@ -233,6 +331,23 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
         notifyDataAdded(index, amplitudes.length);
     }
 
+    /**
+     * Shows the amplitudes of a wav file.
+     *
+     * The audio data is not loaded into memory, the waveform is taken from the peak file of the audio file.
+     *
+     * @param audioFile the wav file
+     * @param peaks the peaks of the audio file, see {@link WaveformPeaks#open(File)}
+     * @throws IOException
+     */
+    public void setDataFile(File audioFile, WaveformPeaks peaks) throws IOException {
+        if (data != null)
+            data.clear();
+        data = new FileBackend(audioFile, peaks);
+        sampleRate = peaks.getSampleRate();
+        notifyAllDataChanged();
+    }
+
     public void clear() {
         if (data == null)
             return;
@@ -243,6 +358,7 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
 
     public AudioAmplitudePlotDataAdapter clone(Region1D region) {
         AudioAmplitudePlotDataAdapter adapter = new AudioAmplitudePlotDataAdapter();
+        adapter.sampleRate = sampleRate;
         if (data != null)
             adapter.data = data.clone();
         return adapter;
@@ -262,6 +378,72 @@ public class AudioAmplitudePlotDataAdapter extends AbstractXYDataAdapter {
         return data.get(index) / amplitudeMax;
     }
 
+    /**
+     * Calculates min, max, sum and sum of squares of the normalized amplitudes [start, end).
+     *
+     * The cost does not depend on the length of the range, so it can be used to get the envelope for each pixel.
+     *
+     * @param start first sample index
+     * @param end sample index after the last sample
+     * @param statistics the result
+     */
+    public void getStatistics(int start, int end, AmplitudeSummary.Statistics statistics) {
+        if (data == null) {
+            statistics.reset();
+            return;
+        }
+        data.getStatistics(start, end, statistics);
+        statistics.scale(1.f / amplitudeMax);
+    }
+
+    /**
+     * Calculates sum, sum of squares and count of the normalized amplitudes [start, end).
+     *
+     * For recorded data this takes constant time, see {@link AmplitudePrefixSums}. Min and max are not set. Samples
+     * that have already been discarded are not included.
+     *
+     * @param start first sample index
+     * @param end sample index after the last sample
+     * @param statistics the result
+     */
+    public void getSums(int start, int end, AmplitudeSummary.Statistics statistics) {
+        if (data == null) {
+            statistics.reset();
+            return;
+        }
+        data.getSums(start, end, statistics);
+        statistics.scale(1.f / amplitudeMax);
+    }
+
+    /**
+     * @return the mean of the normalized amplitudes [start, end), i.e., the DC offset
+     */
+    public float getMean(int start, int end) {
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        getSums(start, end, statistics);
+        return statistics.getMean();
+    }
+
+    /**
+     * @return the root mean square of the normalized amplitudes [start, end)
+     */
+    public float getRms(int start, int end) {
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        getSums(start, end, statistics);
+        if (statistics.count == 0)
+            return 0;
+        return (float)Math.sqrt(statistics.sumSq / statistics.count);
+    }
+
+    /**
+     * @return the sum of the squared normalized amplitudes [start, end)
+     */
+    public double getEnergy(int start, int end) {
+        AmplitudeSummary.Statistics statistics = new AmplitudeSummary.Statistics();
+        getSums(start, end, statistics);
+        return statistics.sumSq;
+    }
+
     @Override
     public Range getRange(Number leftReal, Number rightReal) {
         if (data == null)
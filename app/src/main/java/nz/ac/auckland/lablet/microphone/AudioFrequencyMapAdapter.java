@@ -11,7 +11,8 @@ import android.graphics.RectF;
 import nz.ac.auckland.lablet.views.plotview.*;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
 
 
 public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
@@ -20,6 +21,15 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
         void add(float frequencies[]);
         int getBunchSize();
         float[] getBunch(int index);
+
+        /**
+         * Gets a bunch and avoids allocations where possible.
+         *
+         * @param index bunch index
+         * @param buffer can be used to store the bunch, may be null
+         * @return either buffer or an internal array; in both cases the returned data must not be modified
+         */
+        float[] getBunch(int index, float[] buffer);
         int getBunchCount();
         IDataBackend clone();
     }
@@ -55,6 +65,11 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
             return data.getBunch(index);
         }
 
+        @Override
+        public float[] getBunch(int index, float[] buffer) {
+            return getBunch(index);
+        }
+
         @Override
         public int getBunchCount() {
             return data.getBunchCount();
@@ -66,6 +81,133 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
         }
     }
 
+    /**
+     * Keeps the bunches quantized to one byte per frequency, see {@link FrequencyQuantizer}.
+     *
+     * A clone is a snapshot: it shares the arrays but only sees the bunches that existed when it was created. Appends
+     * only write behind the shared part or reallocate the arrays.
+     */
+    static private class QuantizedMemoryBackend implements IDataBackend {
+        final static private int MIN_CAPACITY = 16;
+
+        final private int bunchSize;
+        private byte[][] codes;
+        private float[] scales;
+        private int bunchCount;
+
+        public QuantizedMemoryBackend(int bunchSize) {
+            this.bunchSize = bunchSize;
+            clear();
+        }
+
+        private QuantizedMemoryBackend(QuantizedMemoryBackend parent) {
+            this.bunchSize = parent.bunchSize;
+            this.codes = parent.codes;
+            this.scales = parent.scales;
+            this.bunchCount = parent.bunchCount;
+        }
+
+        @Override
+        public void clear() {
+            // don't touch the shared arrays
+            codes = new byte[MIN_CAPACITY][];
+            scales = new float[MIN_CAPACITY];
+            bunchCount = 0;
+        }
+
+        @Override
+        public void add(float[] frequencies) {
+            if (bunchCount == codes.length) {
+                codes = Arrays.copyOf(codes, bunchCount * 2);
+                scales = Arrays.copyOf(scales, bunchCount * 2);
+            }
+            final byte[] bunch = new byte[bunchSize];
+            scales[bunchCount] = FrequencyQuantizer.encode(frequencies, 0, bunchSize, bunch, 0);
+            codes[bunchCount] = bunch;
+            bunchCount++;
+        }
+
+        @Override
+        public int getBunchSize() {
+            return bunchSize;
+        }
+
+        @Override
+        public float[] getBunch(int index) {
+            return getBunch(index, null);
+        }
+
+        @Override
+        public float[] getBunch(int index, float[] buffer) {
+            if (buffer == null || buffer.length < bunchSize)
+                buffer = new float[bunchSize];
+            FrequencyQuantizer.decode(codes[index], 0, bunchSize, scales[index], buffer);
+            return buffer;
+        }
+
+        @Override
+        public int getBunchCount() {
+            return bunchCount;
+        }
+
+        @Override
+        public IDataBackend clone() {
+            return new QuantizedMemoryBackend(this);
+        }
+    }
+
+    /**
+     * Read only view on frequencies that are stored bunch after bunch in one array, e.g., a detail. The array is
+     * shared with the owner and with the clones, so it must not be modified.
+     */
+    static private class ArrayBackend implements IDataBackend {
+        final private float[] frequencies;
+        final private int bunchSize;
+
+        public ArrayBackend(float[] frequencies, int bunchSize) {
+            this.frequencies = frequencies;
+            this.bunchSize = bunchSize;
+        }
+
+        @Override
+        public void clear() {
+            // the array belongs to the owner
+        }
+
+        @Override
+        public void add(float[] frequencies) {
+            throw new IllegalStateException("Array backed frequency data is read only");
+        }
+
+        @Override
+        public int getBunchSize() {
+            return bunchSize;
+        }
+
+        @Override
+        public float[] getBunch(int index) {
+            return getBunch(index, null);
+        }
+
+        @Override
+        public float[] getBunch(int index, float[] buffer) {
+            if (buffer == null || buffer.length < bunchSize)
+                buffer = new float[bunchSize];
+            System.arraycopy(frequencies, index * bunchSize, buffer, 0, bunchSize);
+            return buffer;
+        }
+
+        @Override
+        public int getBunchCount() {
+            return frequencies.length / bunchSize;
+        }
+
+        @Override
+        public IDataBackend clone() {
+            return this;
+        }
+    }
+
     private class DiscardMemoryBackend implements IDataBackend {
         FixSizedBunchArray data;
         int discardedBunches = 0;
@@ -94,9 +236,10 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
                 int bunches = (int)Math.ceil(discardDataTime * bunchRate / 1000);
                 int bunchesToDiscard = data.getBunchCount() - bunches;
                 if (bunchesToDiscard > 0) {
-                    for (int i = 0; i < bunchesToDiscard; i++)
-                        data.removeBunch(0);
+                    data.removeFirstBunches(bunchesToDiscard);
                     discardedBunches += bunchesToDiscard;
+                    if (onsetDetector != null)
+                        onsetDetector.discardOnsetsBefore(discardedBunches);
                 }
             }
             data.add(frequencies);
@@ -112,6 +255,11 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
             return data.getBunch(index - discardedBunches);
         }
 
+        @Override
+        public float[] getBunch(int index, float[] buffer) {
+            return getBunch(index);
+        }
+
         @Override
         public int getBunchCount() {
             return discardedBunches + data.getBunchCount();
@@ -124,10 +272,24 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
     }
 
     private IDataBackend data = null;
+    // aggregated columns for zoomed out views, null if not available
+    private FrequencyMapPyramid pyramid = null;
+    // quantile sketch of the magnitudes, null if not available
+    private MagnitudeHistogram histogram = null;
+    // onsets in the data, null if not available
+    private OnsetDetector onsetDetector = null;
     private int sampleRate = 44100;
     private float stepFactor;
+    // time of the first bunch in ms, e.g., if the data is only a detail of a longer recording
+    private float timeOffset = 0;
 
     private int discardDataTime = -1;
+    // keep the data of addData quantized
+    private boolean quantized = false;
+    // number of bunches that addData will add, -1 if unknown
+    private int expectedBunchCount = -1;
+    // changes whenever the data changes, e.g., to detect if cached renderings are outdated
+    private int dataVersion = 0;
 
     public AudioFrequencyMapAdapter(float stepFactor) {
         setStepFactor(stepFactor);
@@ -148,6 +310,7 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
             stepFactor = 0.01f;
 
         this.stepFactor = stepFactor;
+        dataVersion++;
     }
 
     /**
@@ -160,16 +323,75 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
         this.discardDataTime = discardDataTime;
     }
 
+    /**
+     * If set the data added with {@link #addData(float[])} is kept with one byte per frequency.
+     *
+     * Takes effect on the next data after {@link #clear()}. Not used for discarded data.
+     */
+    public void setQuantized(boolean quantized) {
+        this.quantized = quantized;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * Sets the number of bunches that will be added with {@link #addData(float[])}, so that the aggregated columns
+     * fit into the pyramid memory budget.
+     *
+     * Takes effect on the next data after {@link #clear()}.
+     *
+     * @param expectedBunchCount the bunch count or -1 if unknown
+     */
+    public void setExpectedBunchCount(int expectedBunchCount) {
+        this.expectedBunchCount = expectedBunchCount;
+    }
+
+    // without an expected bunch count the pyramid starts at minFirstLevel
+    private int getPyramidFirstLevel(int bunchSize, int minFirstLevel) {
+        if (expectedBunchCount < 0)
+            return minFirstLevel;
+        return Math.max(minFirstLevel, FrequencyMapPyramid.getFirstLevel(expectedBunchCount, bunchSize,
+                FrequencyMapPyramid.MAX_FLOATS));
+    }
+
     public float getStepFactor() {
         return stepFactor;
     }
 
+    /**
+     * Sets the sample rate of the transformed audio data, e.g., the rate after decimation.
+     *
+     * The frequency range of the data is half the sample rate.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+        dataVersion++;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the frequency of the upper end of the last frequency bin
+     */
+    public float getMaxFrequency() {
+        return sampleRate / 2f;
+    }
+
     public void clear() {
         if (data == null)
             return;
 
         data.clear();
         data = null;
+        pyramid = null;
+        histogram = null;
+        onsetDetector = null;
+        timeOffset = 0;
+        dataVersion++;
         notifyAllDataChanged();
     }
 
@@ -177,8 +399,8 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
         if (data == null)
             return new Range(0, -1);
 
-        int leftIndex = Math.round(leftReal.floatValue() / ((2 * data.getBunchSize()) * 1000  * stepFactor) * sampleRate);
-        int rightIndex = Math.round(rightReal.floatValue() / ((2 * data.getBunchSize()) * 1000 * stepFactor) * sampleRate);
+        int leftIndex = Math.round((leftReal.floatValue() - timeOffset) / ((2 * data.getBunchSize()) * 1000  * stepFactor) * sampleRate);
+        int rightIndex = Math.round((rightReal.floatValue() - timeOffset) / ((2 * data.getBunchSize()) * 1000 * stepFactor) * sampleRate);
         leftIndex -= 1;
         rightIndex ++;
         if (leftIndex < 0)
@@ -195,37 +417,123 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
 
     public void addData(float frequencies[]) {
         if (data == null) {
-            if (discardDataTime < 0)
+            if (discardDataTime < 0 && quantized) {
+                data = new QuantizedMemoryBackend(frequencies.length);
+                // aggregated floats would otherwise take more memory than the quantized data
+                pyramid = new FrequencyMapPyramid(frequencies.length, getPyramidFirstLevel(frequencies.length, 3));
+            } else if (discardDataTime < 0) {
                 data = new MemoryBackend(frequencies.length);
-            else
+                pyramid = new FrequencyMapPyramid(frequencies.length, getPyramidFirstLevel(frequencies.length, 1));
+            } else
                 data = new DiscardMemoryBackend(frequencies.length);
+            histogram = new MagnitudeHistogram();
+            onsetDetector = new OnsetDetector(getX(1) - getX(0));
         }
 
         int oldSize = data.getBunchCount();
         data.add(frequencies);
+        if (pyramid != null)
+            pyramid.add(frequencies);
+        histogram.add(frequencies);
+        onsetDetector.add(frequencies);
+        dataVersion++;
 
         notifyDataAdded(oldSize, 1);
     }
 
-    public void setDataFile(File file, int windowSize) throws FileNotFoundException {
+    public void setDataFile(File file, int windowSize) throws IOException {
+        setDataFile(new FrequencyFileReader(file, windowSize), null, null, null);
+    }
+
+    /**
+     * Sets a frequency file whose pyramid has already been built, e.g., in a background thread.
+     *
+     * @param fileReader the file data
+     * @param pyramid can be null
+     * @param histogram magnitudes of the file data, can be null
+     * @param onsetDetector onsets in the file data, can be null
+     */
+    void setDataFile(FrequencyFileReader fileReader, FrequencyMapPyramid pyramid, MagnitudeHistogram histogram,
+                     OnsetDetector onsetDetector) {
         if (data != null)
             data.clear();
-        data = new FrequencyFileReader(file, windowSize);
+        data = fileReader;
+        this.pyramid = pyramid;
+        this.histogram = histogram;
+        this.onsetDetector = onsetDetector;
+        dataVersion++;
+        notifyAllDataChanged();
+    }
+
+    /**
+     * Sets the frequencies of a part of a recording, e.g., a detail that has been calculated with a smaller step.
+     *
+     * @param frequencies bunch after bunch, the array is used without copying and must not be modified
+     * @param bunchSize number of frequencies per bunch
+     * @param timeOffset time of the first bunch in ms
+     */
+    void setDetailData(float[] frequencies, int bunchSize, float timeOffset) {
+        if (data != null)
+            data.clear();
+        data = new ArrayBackend(frequencies, bunchSize);
+        // details are only shown zoomed in, no aggregated columns needed
+        pyramid = null;
+        histogram = null;
+        onsetDetector = null;
+        this.timeOffset = timeOffset;
+        dataVersion++;
         notifyAllDataChanged();
     }
 
     public AudioFrequencyMapAdapter clone(Region1D region) {
         AudioFrequencyMapAdapter adapter = new AudioFrequencyMapAdapter(stepFactor);
+        adapter.sampleRate = sampleRate;
         if (data != null)
             adapter.data = data.clone();
+        if (pyramid != null)
+            adapter.pyramid = pyramid.snapshot();
+        adapter.timeOffset = timeOffset;
+        adapter.dataVersion = dataVersion;
         return adapter;
     }
 
+    /**
+     * @return quantile sketch of the magnitudes of the data or null if not available, must not be modified
+     */
+    public MagnitudeHistogram getMagnitudeHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Gets the onsets in the data.
+     *
+     * The onsets of data that is added bunch by bunch are updated with each bunch, see {@link OnsetDetector}. Use
+     * {@link #getX(int)} to get the time of an onset column.
+     *
+     * @return the onset detector that has been fed with the data or null if not available, must not be modified
+     */
+    public OnsetDetector getOnsetDetector() {
+        return onsetDetector;
+    }
+
+    int getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * @return number of frequencies per bunch (half the window size)
+     */
+    public int getBunchSize() {
+        if (data == null)
+            return 0;
+        return data.getBunchSize();
+    }
+
     // returns time in milli seconds
     public float getX(int index) {
         // bunch size is half the window size so multiply it by 2
         float time = (float)(data.getBunchSize() * 2) / sampleRate * index * stepFactor;
-        return time * 1000;
+        return time * 1000 + timeOffset;
     }
 
     /**
@@ -237,10 +545,53 @@ public class AudioFrequencyMapAdapter extends CloneablePlotDataAdapter {
     }
 
     public float[] getY(int index) {
+        return getY(index, null);
+    }
+
+    /**
+     * Gets the frequencies at a certain index without allocating memory if possible.
+     *
+     * @param index bunch index
+     * @param buffer may be used to store the frequencies, can be null
+     * @return the frequencies, must not be modified
+     */
+    public float[] getY(int index, float[] buffer) {
         // Handle the hack, see getSize
         if (index >= data.getBunchCount())
-            return data.getBunch(data.getBunchCount() - 1);
-        return data.getBunch(index);
+            index = data.getBunchCount() - 1;
+        return data.getBunch(index, buffer);
+    }
+
+    /**
+     * Finds the biggest reduction for which aggregated columns are available.
+     *
+     * @param maxReduction number of bunches that may be aggregated into one column, e.g., the bunches per pixel
+     * @return a power of two not bigger than maxReduction, or 1 if there are no aggregated columns
+     */
+    public int getReduction(int maxReduction) {
+        if (pyramid == null)
+            return 1;
+        return pyramid.getReduction(maxReduction);
+    }
+
+    /**
+     * Gets the per frequency maximum of the bunches [index / reduction * reduction, (index / reduction + 1) *
+     * reduction).
+     *
+     * If the aggregated column is not available yet, e.g., at the end of the data, the bunch at index is returned.
+     *
+     * @param index bunch index
+     * @param reduction reduction returned by {@link #getReduction(int)}
+     * @param buffer may be used to store the frequencies, can be null
+     * @return the frequencies, must not be modified
+     */
+    public float[] getY(int index, int reduction, float[] buffer) {
+        if (reduction <= 1 || pyramid == null)
+            return getY(index, buffer);
+        final int columnIndex = index / reduction;
+        if (columnIndex >= pyramid.getColumnCount(reduction))
+            return getY(index, buffer);
+        return pyramid.getColumn(reduction, columnIndex, buffer);
     }
 
     @Override
@@ -8,58 +8,250 @@
 package nz.ac.auckland.lablet.microphone;
 
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import nz.ac.auckland.lablet.views.plotview.*;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
+/**
+ * Paints the frequency map.
+ *
+ * The frequencies are first converted to heat map levels (one byte per pixel) which are then colored through a
+ * palette. The levels of the last rendered range are kept, so when only the contrast or the brightness changes the
+ * range is just mapped through the new palette, the frequency data is not touched again. The same holds for the
+ * automatic contrast, see {@link #setAutoContrast(MagnitudeHistogram, int)}.
+ *
+ * The levels are rendered in vertical strips that run concurrently and write disjoint columns of one level image,
+ * which is then drawn at once.
+ */
 public class AudioFrequencyMapConcurrentPainter extends ArrayConcurrentPainter {
-    final private int[] heatMap = new int[512];
+    /**
+     * The levels of a rendered range and the parameters they have been rendered for.
+     */
+    static private class LevelImage {
+        final RectF realDataRect;
+        final IScale yScale;
+        final int width;
+        final int height;
+        final int rangeMin;
+        final int rangeMax;
+        final int dataVersion;
+        final byte[] levels;
+
+        public LevelImage(RectF realDataRect, IScale yScale, int width, int height, Range range, int dataVersion,
+                          byte[] levels) {
+            this.realDataRect = new RectF(realDataRect);
+            this.yScale = yScale;
+            this.width = width;
+            this.height = height;
+            this.rangeMin = range.min;
+            this.rangeMax = range.max;
+            this.dataVersion = dataVersion;
+            this.levels = levels;
+        }
 
-    public AudioFrequencyMapConcurrentPainter(CloneablePlotDataAdapter dataAdapter) {
-        super(dataAdapter);
+        public boolean matches(RectF realDataRect, IScale yScale, int width, int height, Range range,
+                               int dataVersion) {
+            return this.realDataRect.equals(realDataRect) && this.yScale == yScale && this.width == width
+                    && this.height == height && rangeMin == range.min && rangeMax == range.max
+                    && this.dataVersion == dataVersion;
+        }
+    }
 
-        setMaxDirtyRanges(-1);
+    /**
+     * Renders the levels of the data points in [stripStart, stripEnd) into the columns of a shared level image.
+     *
+     * A pixel column is written by the strip that contains its first data point, i.e., when strips start at data
+     * points that begin a new pixel, strips write disjoint columns and can be rendered concurrently.
+     */
+    private class StripRenderer {
+        final private AudioFrequencyMapAdapter adapter;
+        final private Matrix rangeMatrix;
+        final private RectF realDataRect;
+        final private int reduction;
+        final private int stepSize;
+        // end of all strips
+        final private int end;
+        final private int xStartPixel;
+        final private IScale yScale;
+        final private int screenRectWidth;
+        final private int screenRectHeight;
+        final private byte[] levels;
+
+        final private byte[] columnLevels;
+        final private float[] frequencyBuffer;
+        final private float[] mergeBuffer;
+        final private float[] screenPoint = new float[2];
+
+        public StripRenderer(ArrayRenderPayload payload, AudioFrequencyMapAdapter adapter, int reduction,
+                             int stepSize, int end, int xStartPixel, IScale yScale, int screenRectWidth,
+                             int screenRectHeight, byte[] levels) {
+            this.adapter = adapter;
+            this.rangeMatrix = new Matrix(payload.getRangeMatrix());
+            this.realDataRect = payload.getRealDataRect();
+            this.reduction = reduction;
+            this.stepSize = stepSize;
+            this.end = end;
+            this.xStartPixel = xStartPixel;
+            this.yScale = yScale;
+            this.screenRectWidth = screenRectWidth;
+            this.screenRectHeight = screenRectHeight;
+            this.levels = levels;
+
+            columnLevels = new byte[screenRectHeight];
+            frequencyBuffer = new float[adapter.getBunchSize()];
+            mergeBuffer = new float[adapter.getBunchSize()];
+        }
+
+        public int toPixel(int index) {
+            mapPoint(rangeMatrix, adapter.getX(index), realDataRect.top, screenPoint);
+            return (int)screenPoint[0] - xStartPixel;
+        }
+
+        public void render(int stripStart, int stripEnd) {
+            int index = stripStart;
+            int xCurrentPixel = -1;
+            int startIndex = 0;
+            while (index < stripEnd) {
+                // advance till the next pixel
+                int xEndPixel = -1;
+                for (; index < stripEnd; index += stepSize) {
+                    xEndPixel = toPixel(index);
+                    if (xEndPixel < 0)
+                        continue;
+                    if (xCurrentPixel < 0) {
+                        xCurrentPixel = xEndPixel;
+                        startIndex = index;
+                        continue;
+                    }
+                    if (xCurrentPixel != xEndPixel)
+                        break;
+                }
+
+                if (xCurrentPixel < 0)
+                    break;
+
+                // the columns till the next data point belong to this pixel, the last data point fills its pixel
+                int xFillEnd = xCurrentPixel + 1;
+                if (index < end)
+                    xFillEnd = index < stripEnd ? xEndPixel : toPixel(index);
+
+                // do the drawing
+                float[] frequencies = adapter.getY(startIndex, reduction, frequencyBuffer);
+                if (startIndex + stepSize < index) {
+                    // more than one column falls into this pixel, show their maximum
+                    System.arraycopy(frequencies, 0, mergeBuffer, 0, mergeBuffer.length);
+                    for (int i = startIndex + stepSize; i < index; i += stepSize)
+                        FrequencyMapPyramid.max(mergeBuffer, adapter.getY(i, reduction, frequencyBuffer));
+                    frequencies = mergeBuffer;
+                }
+                colorMapper.getLevels(columnLevels, frequencies, adapter.getMaxFrequency(), yScale,
+                        realDataRect.bottom, realDataRect.top, screenRectHeight);
+                for (int column = xCurrentPixel; column < xFillEnd; column++) {
+                    if (column >= screenRectWidth)
+                        break;
+                    for (int row = 0; row < columnLevels.length; row++)
+                        levels[column + row * screenRectWidth] = columnLevels[row];
+                }
+
+                if (xEndPixel >= screenRectWidth)
+                    break;
 
-        preCalculateHeatMap();
+                xCurrentPixel = xEndPixel;
+                startIndex = index;
+            }
+        }
     }
 
-    private void preCalculateHeatMap() {
-        final int[] colors = {
-                Color.rgb(191, 191, 191), // light gray
-                Color.rgb(77, 153, 255), // light blue
-                Color.rgb(230, 26, 230), // violet
-                Color.RED,
-                Color.BLACK,
-                Color.GREEN
-        };
-
-        // last color is for overflow
-        final int nColors = colors.length - 1;
-        for (int i = 0; i < heatMap.length - 1; i++) {
-            final float value = ((float)i) / (heatMap.length - 1);
-            final int index = (int)(value * (nColors - 1)) + 1;
-
-            int red = (int)((1.f - value) * Color.red(colors[index - 1]) + value * Color.red(colors[index]));
-            int green = (int)((1.f - value) * Color.green(colors[index - 1]) + value * Color.green(colors[index]));
-            int blue = (int)((1.f - value) * Color.blue(colors[index - 1]) + value * Color.blue(colors[index]));
-
-            heatMap[i] = Color.rgb(red, green, blue);
+    // threads that render strips in addition to the rendering thread
+    final static private int N_STRIP_THREADS = Runtime.getRuntime().availableProcessors();
+    // narrower strips are not worth the overhead
+    final static private int MIN_STRIP_WIDTH = 64;
+    // shared by all painters, the rendering threads of the painters wait for their strips
+    static private ExecutorService stripThreadPool = null;
+
+    static private synchronized ExecutorService getStripThreadPool() {
+        if (stripThreadPool == null) {
+            stripThreadPool = Executors.newFixedThreadPool(Math.max(1, N_STRIP_THREADS - 1), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    // don't keep the process alive
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return stripThreadPool;
+    }
+
+    // min change of the automatic level range in levels
+    final static private int AUTO_CONTRAST_TOLERANCE = 3;
+
+    final private FrequencyColorMapper colorMapper = new FrequencyColorMapper();
+    private volatile int[] palette = colorMapper.createPalette(FrequencyColorMapper.DEFAULT_CONTRAST,
+            FrequencyColorMapper.DEFAULT_BRIGHTNESS);
+    private int contrast = FrequencyColorMapper.DEFAULT_CONTRAST;
+    private int brightness = FrequencyColorMapper.DEFAULT_BRIGHTNESS;
+    // levels that are spread over the heat map
+    final private int[] levelRange = {FrequencyColorMapper.DEFAULT_LOW_LEVEL, FrequencyColorMapper.DEFAULT_HIGH_LEVEL};
+    final private int[] newLevelRange = new int[2];
+    // only accessed from the rendering thread
+    private LevelImage lastLevelImage = null;
+
+    public AudioFrequencyMapConcurrentPainter(CloneablePlotDataAdapter dataAdapter) {
+        super(dataAdapter);
 
-        heatMap[heatMap.length - 1] = colors[nColors];
+        setMaxDirtyRanges(-1);
+    }
+
+    /**
+     * Sets contrast and brightness of the colors.
+     *
+     * The parent has to be invalidated afterwards; the already rendered levels are reused.
+     *
+     * @param contrast 0 to 254, 127 is neutral
+     * @param brightness 0 to 254, 127 is neutral
+     */
+    public void setContrastBrightness(int contrast, int brightness) {
+        this.contrast = contrast;
+        this.brightness = brightness;
+        updatePalette();
     }
 
-    private int heatMap(double value) {
-        if (value >= 1)
-            return heatMap[heatMap.length - 1];
-        if (value < 0)
-            return heatMap[0];
+    /**
+     * Spreads the magnitudes between a low and a high quantile over the colors.
+     *
+     * Contrast and brightness are applied on top of it. The parent has to be invalidated if the palette changed.
+     *
+     * @param histogram magnitudes of the frequency map, can be null
+     * @param bunchSize number of frequencies per column
+     * @return true if the palette changed
+     */
+    public boolean setAutoContrast(MagnitudeHistogram histogram, int bunchSize) {
+        // keep the current range while there is no data, e.g., while the map is recalculated
+        if (!colorMapper.getAutoLevelRange(histogram, bunchSize, newLevelRange))
+            return false;
+        // small changes are ignored, otherwise the quantiles of a growing map would cause a redraw for each column
+        if (Math.abs(newLevelRange[0] - levelRange[0]) < AUTO_CONTRAST_TOLERANCE
+                && Math.abs(newLevelRange[1] - levelRange[1]) < AUTO_CONTRAST_TOLERANCE)
+            return false;
+        levelRange[0] = newLevelRange[0];
+        levelRange[1] = newLevelRange[1];
+        updatePalette();
+        return true;
+    }
 
-        return heatMap[(int)(value * heatMap.length)];
+    private void updatePalette() {
+        palette = colorMapper.createPalette(contrast, brightness, levelRange[0], levelRange[1]);
     }
 
     @Override
@@ -113,144 +305,108 @@ public class AudioFrequencyMapConcurrentPainter extends ArrayConcurrentPainter {
         if (start + count > dataSize)
             count = dataSize - start;
 
-        final float[] startLeftTop = mapPoint(rangeMatrix, payload.getRealDataRect().left, payload.getRealDataRect().top);
+        final float[] startLeftTop = mapPoint(rangeMatrix, payload.getRealDataRect().left, payload.getRealDataRect().top,
+                new float[2]);
         final int xStartPixel = (int)startLeftTop[0];
 
         final RectF screenRect = payload.getScreenRect();
         final int screenRectWidth = (int)Math.ceil(screenRect.width());
         final int screenRectHeight = (int)Math.ceil(screenRect.height());
-        final int[] colors = new int[screenRectHeight];
-        final int[] bitmapData = new int[screenRectWidth * screenRectHeight];
-
-        final int dataPointsPerPixel = getDataPointsPerPixel(adapter, range);
-        final int maxDataPointsPerPixel = 1;
-        int stepSize = dataPointsPerPixel / maxDataPointsPerPixel;
-        if (stepSize < 1)
-            stepSize = 1;
-
-        int index = start;
-        int xCurrentPixel = -1;
-        int startIndex = 0;
-        while (index < start + count) {
-            // advance till the next pixel
-            int xEndPixel = -1;
-            for (; index < start + count; index += stepSize) {
-                final float[] screenLeftTop = mapPoint(rangeMatrix, adapter.getX(index), payload.getRealDataRect().top);
-                xEndPixel = (int)screenLeftTop[0] - xStartPixel;
-                if (xEndPixel < 0)
-                    continue;
-                if (xCurrentPixel < 0) {
-                    xCurrentPixel = xEndPixel;
-                    startIndex = index;
-                    continue;
-                }
-                if (xCurrentPixel != xEndPixel)
-                    break;
-            }
-
-            if (xCurrentPixel < 0)
-                break;
-            //if (index + 1 == start + count)
-              //  endXPixel = screenRectWidth;
-
-            // do the drawing
-            final float[] frequencies = adapter.getY(startIndex);
-            getColors(colors, frequencies, payload);
-            for (int column = xCurrentPixel; column <= xEndPixel; column++) {
-                if (column >= screenRectWidth)
-                    break;
-                for (int row = 0; row < colors.length; row++)
-                    bitmapData[column + row * screenRectWidth] = colors[row];
+        final IScale yScale = parent.getYScale();
+
+        byte[] levels;
+        synchronized (this) {
+            LevelImage image = lastLevelImage;
+            if (image != null && image.matches(payload.getRealDataRect(), yScale, screenRectWidth, screenRectHeight,
+                    range, adapter.getDataVersion())) {
+                levels = image.levels;
+            } else {
+                levels = renderLevels(payload, adapter, range, start, count, xStartPixel, yScale,
+                        screenRectWidth, screenRectHeight);
+                if (levels == null)
+                    return;
+                lastLevelImage = new LevelImage(payload.getRealDataRect(), yScale, screenRectWidth,
+                        screenRectHeight, range, adapter.getDataVersion(), levels);
             }
-
-            if (xEndPixel >= screenRectWidth)
-                break;
-
-            xCurrentPixel = xEndPixel;
-            startIndex = index;
         }
+
+        final int[] bitmapData = new int[levels.length];
+        FrequencyColorMapper.applyPalette(levels, palette, bitmapData, levels.length);
         bitmapCanvas.drawBitmap(bitmapData, 0, screenRectWidth, startLeftTop[0], startLeftTop[1],
                 screenRectWidth, screenRectHeight, true, null);
     }
 
-    private float[] mapPoint(Matrix matrix, float x, float y) {
-        final float[] screenLeftTop = new float[2];
-        screenLeftTop[0] = x;
-        screenLeftTop[1] = y;
-        matrix.mapPoints(screenLeftTop);
-        return screenLeftTop;
-    }
-
-    final float frequencyRang = 22050;
-    private float getRealValue(int index, int arraySize) {
-        return (float)index / arraySize * frequencyRang;
-    }
-
-    private double getFrequencyAmp(float frequencyAmpRaw, float frequencyAmpMax) {
-        final float maxDB = -60;
-        return 1d - 10d * Math.log10(frequencyAmpRaw / frequencyAmpMax) / maxDB;
-
-        //return Math.log10(Math.abs(frequencyAmpRaw)) / Math.log10(frequencyAmpMax);
-        //return Math.abs(frequencyAmpRaw) / frequencyAmpMax;
-    }
+    // returns null if interrupted; the levels are incomplete then and strips might still be written
+    private byte[] renderLevels(ArrayRenderPayload payload, AudioFrequencyMapAdapter adapter, Range range, int start,
+                                int count, int xStartPixel, IScale yScale, int screenRectWidth,
+                                int screenRectHeight) {
+        final byte[] levels = new byte[screenRectWidth * screenRectHeight];
 
+        final int dataPointsPerPixel = getDataPointsPerPixel(adapter, range);
+        // use aggregated columns when zoomed out; if there are none only sample one data point per pixel
+        final int reduction = adapter.getReduction(dataPointsPerPixel);
+        int stepSize = reduction > 1 ? reduction : dataPointsPerPixel;
+        if (stepSize < 1)
+            stepSize = 1;
 
-    private int toYPixel(float scaledValue, float scaledBottom, float scaledTop, int screenRectHeight) {
-        return (int)((scaledValue - scaledBottom) / (scaledTop - scaledBottom) * screenRectHeight);
-    }
-
-    private int[] getColors(int[] colors, final float[] frequencies, final ArrayRenderPayload payload) {
-        IScale yScale = parent.getYScale();
-
-        final float scaledBottom = yScale.scale(payload.getRealDataRect().bottom);
-        final float scaledTop = yScale.scale(payload.getRealDataRect().top);
-        final int screenRectHeight = (int)Math.ceil(payload.getScreenRect().height());
-
-        float maxFreqAmplitude = 32768 * frequencies.length * 2;
-
-        Arrays.fill(colors, Color.TRANSPARENT);
+        final StripRenderer firstStrip = new StripRenderer(payload, adapter, reduction, stepSize, start + count,
+                xStartPixel, yScale, screenRectWidth, screenRectHeight, levels);
+        final int nSteps = (count + stepSize - 1) / stepSize;
+        final int nStrips = Math.min(Math.min(N_STRIP_THREADS, nSteps), screenRectWidth / MIN_STRIP_WIDTH);
+        if (nStrips <= 1) {
+            firstStrip.render(start, start + count);
+            return levels;
+        }
 
-        float frequencyAmpSum = 0;
-        int lastPixel = -1;
-        int perPixelCount = 0;
-        for (int i = 0; i < frequencies.length; i++) {
-            float frequencyAmp = frequencies[i];
+        // strips start at a data point that begins a new pixel, i.e., they write disjoint columns
+        final int[] stripStarts = new int[nStrips + 1];
+        stripStarts[0] = start;
+        stripStarts[nStrips] = start + count;
+        for (int strip = 1; strip < nStrips; strip++) {
+            int stripStart = Math.max(start + (int)((long)nSteps * strip / nStrips) * stepSize,
+                    stripStarts[strip - 1]);
+            while (stripStart < start + count
+                    && firstStrip.toPixel(stripStart) == firstStrip.toPixel(stripStart - stepSize))
+                stripStart += stepSize;
+            stripStarts[strip] = Math.min(stripStart, start + count);
+        }
 
-            float frequency = getRealValue(i, frequencies.length);
-            int pixel = toYPixel(yScale.scale(frequency), scaledBottom, scaledTop, screenRectHeight);
-            if (pixel < 0)
+        final List<Future<?>> futures = new ArrayList<>(nStrips - 1);
+        for (int strip = 1; strip < nStrips; strip++) {
+            final int stripStart = stripStarts[strip];
+            final int stripEnd = stripStarts[strip + 1];
+            if (stripStart >= stripEnd)
                 continue;
-            if (pixel >= colors.length)
-                break;
-            if (lastPixel == -1)
-                lastPixel = pixel;
-
-            if (pixel == lastPixel) {
-                frequencyAmpSum += frequencyAmp;
-                perPixelCount++;
-            } else {
-                float frequencyAmpAverage = frequencyAmpSum / perPixelCount;
-                double freqAmplitude = getFrequencyAmp(frequencyAmpAverage, maxFreqAmplitude);
-                drawFrequencyPixels(colors, freqAmplitude, lastPixel, pixel);
-
-                frequencyAmpSum = frequencyAmp;
-                lastPixel = pixel;
-                perPixelCount = 1;
-            }
+            // backends keep read state, e.g., the buffer positions of a mapped file, so each strip gets a clone
+            final StripRenderer renderer = new StripRenderer(payload, (AudioFrequencyMapAdapter)adapter.clone(null),
+                    reduction, stepSize, start + count, xStartPixel, yScale, screenRectWidth, screenRectHeight,
+                    levels);
+            futures.add(getStripThreadPool().submit(new Runnable() {
+                @Override
+                public void run() {
+                    renderer.render(stripStart, stripEnd);
+                }
+            }));
         }
-        if (lastPixel >= 0) {
-            float frequencyAmpAverage = frequencyAmpSum / perPixelCount;
-            double freqAmplitude = getFrequencyAmp(frequencyAmpAverage, maxFreqAmplitude);
-            drawFrequencyPixels(colors, freqAmplitude, lastPixel, colors.length - 1);
+        firstStrip.render(stripStarts[0], stripStarts[1]);
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
-        return colors;
+        return levels;
     }
 
-    private void drawFrequencyPixels(int[] colors, double frequencyAmp, int startPixel, int endPixel) {
-        int colorValue = heatMap(frequencyAmp);
-        for (int a = startPixel; a < endPixel; a++) {
-            int colorIndex = colors.length - 1 - a;
-            colors[colorIndex] = colorValue;
-        }
+    private float[] mapPoint(Matrix matrix, float x, float y, float[] screenLeftTop) {
+        screenLeftTop[0] = x;
+        screenLeftTop[1] = y;
+        matrix.mapPoints(screenLeftTop);
+        return screenLeftTop;
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+
+import java.io.IOException;
+
+
+/**
+ * Anti-aliased decimation of a sample stream by an integer factor.
+ *
+ * The low-pass filter is a Blackman windowed sinc with TAPS_PER_PHASE taps per output phase. Since only every
+ * factor-th filter output is kept, the filter is only evaluated at the output positions (the polyphase form of a
+ * decimator), i.e., the cost per input sample is TAPS_PER_PHASE multiply-adds independent of the factor.
+ *
+ * The filter is centered on the output sample, i.e., output sample k corresponds to input sample k * factor and has no
+ * delay. Samples before the start and after the end of the stream are treated as zero; thus the stream is decimated
+ * into exactly ceil(inputCount / factor) samples, see {@link #flush(float[], int)}.
+ */
+public class Decimator {
+    final static private int TAPS_PER_PHASE = 64;
+    // the part of the decimated frequency range that is passed, the rest is the transition band of the filter
+    final static private float PASSBAND = 0.8f;
+
+    final private int factor;
+    final private float[] taps;
+    // the last taps.length input samples are stored twice so that the filter input is always a continuous array
+    final private float[] history;
+    private int historyPosition = 0;
+    // number of input samples till the next output
+    private int untilOutput;
+
+    /**
+     * @param factor decimation factor, 1 passes the samples through unchanged
+     */
+    public Decimator(int factor) {
+        this.factor = Math.max(1, factor);
+        if (this.factor == 1) {
+            taps = new float[]{1};
+        } else {
+            taps = new float[TAPS_PER_PHASE * this.factor + 1];
+            designLowPass(taps, (1 + PASSBAND) / 4 / this.factor);
+        }
+        history = new float[2 * taps.length];
+        // the first output is centered on the first input, i.e., it needs half of the taps
+        untilOutput = taps.length / 2 + 1;
+    }
+
+    /**
+     * Designs a Blackman windowed sinc low-pass with unity gain at zero frequency.
+     *
+     * @param cutoff cutoff frequency divided by the sample rate
+     */
+    static private void designLowPass(float[] taps, double cutoff) {
+        final int center = taps.length / 2;
+        double sum = 0;
+        for (int i = 0; i < taps.length; i++) {
+            final int n = i - center;
+            final double sinc = n == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+            final double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (taps.length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (taps.length - 1));
+            taps[i] = (float)(sinc * window);
+            sum += taps[i];
+        }
+        for (int i = 0; i < taps.length; i++)
+            taps[i] /= sum;
+    }
+
+    /**
+     * Finds the biggest decimation factor that still shows frequencies up to maxFrequency.
+     *
+     * Only factors that divide the sample rate are used so that the decimated sample rate is an integer.
+     *
+     * @param sampleRate input sample rate
+     * @param maxFrequency highest frequency of interest, 0 or less for no decimation
+     * @return the decimation factor
+     */
+    static public int getFactor(int sampleRate, float maxFrequency) {
+        if (maxFrequency <= 0)
+            return 1;
+        int factor = Math.max(1, (int)(sampleRate * PASSBAND / (2 * maxFrequency)));
+        while (factor > 1 && sampleRate % factor != 0)
+            factor--;
+        return factor;
+    }
+
+    /**
+     * @return number of output samples of a stream of inputCount samples
+     */
+    static public long getOutputCount(long inputCount, int factor) {
+        return (inputCount + factor - 1) / factor;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    /**
+     * Decimates the next part of the stream.
+     *
+     * @param input input samples
+     * @param offset offset in input
+     * @param length number of input samples
+     * @param output receives the output samples, must have room for length / factor + 1 samples
+     * @param outputOffset offset in output
+     * @return number of output samples
+     */
+    public int process(float[] input, int offset, int length, float[] output, int outputOffset) {
+        if (factor == 1) {
+            System.arraycopy(input, offset, output, outputOffset, length);
+            return length;
+        }
+        int outputPosition = outputOffset;
+        for (int i = offset; i < offset + length; i++) {
+            if (push(input[i]))
+                output[outputPosition++] = filter();
+        }
+        return outputPosition - outputOffset;
+    }
+
+    /**
+     * Ends the stream, i.e., outputs the remaining samples that depend on the last input samples.
+     *
+     * @param output must have room for TAPS_PER_PHASE / 2 + 1 samples
+     * @param outputOffset offset in output
+     * @return number of output samples
+     */
+    public int flush(float[] output, int outputOffset) {
+        if (factor == 1)
+            return 0;
+        int outputPosition = outputOffset;
+        // the last output is centered on one of the last factor input samples
+        for (int i = 0; i < taps.length / 2; i++) {
+            if (push(0))
+                output[outputPosition++] = filter();
+        }
+        return outputPosition - outputOffset;
+    }
+
+    private boolean push(float sample) {
+        history[historyPosition] = sample;
+        history[historyPosition + taps.length] = sample;
+        historyPosition++;
+        if (historyPosition == taps.length)
+            historyPosition = 0;
+
+        untilOutput--;
+        if (untilOutput > 0)
+            return false;
+        untilOutput = factor;
+        return true;
+    }
+
+    private float filter() {
+        // history[historyPosition, historyPosition + taps.length) are the last input samples, the oldest first
+        float sum = 0;
+        for (int i = 0; i < taps.length; i++)
+            sum += taps[i] * history[historyPosition + i];
+        return sum;
+    }
+
+    /**
+     * Decimates a whole array.
+     *
+     * @param samples input samples
+     * @param length number of input samples
+     * @param factor decimation factor
+     * @return the decimated samples
+     */
+    static public float[] decimate(float[] samples, int length, int factor) {
+        final Decimator decimator = new Decimator(factor);
+        final float[] output = new float[(int)getOutputCount(length, factor)];
+        final int count = decimator.process(samples, 0, length, output, 0);
+        decimator.flush(output, count);
+        return output;
+    }
+
+    /**
+     * Reads decimated samples from a wav stream.
+     */
+    static public class Reader {
+        final static private int INPUT_BUFFER_SIZE = 64 * 1024;
+
+        final private AudioWavInputStream inputStream;
+        final private Decimator decimator;
+        final private float[] inputBuffer;
+        final private float[] outputBuffer;
+        private int outputPosition = 0;
+        private int outputLength = 0;
+        private boolean finished = false;
+
+        /**
+         * @param inputStream positioned at the first sample that should be decimated
+         * @param factor decimation factor
+         */
+        public Reader(AudioWavInputStream inputStream, int factor) {
+            this.inputStream = inputStream;
+            this.decimator = new Decimator(factor);
+            inputBuffer = new float[INPUT_BUFFER_SIZE];
+            outputBuffer = new float[INPUT_BUFFER_SIZE / decimator.factor + TAPS_PER_PHASE];
+        }
+
+        /**
+         * @return number of read samples or -1 at the end of the stream
+         * @throws IOException
+         */
+        public int read(float[] dst, int offset, int length) throws IOException {
+            while (outputPosition == outputLength) {
+                if (finished)
+                    return -1;
+                outputPosition = 0;
+                final int read = inputStream.readAmplitudes(inputBuffer, 0, inputBuffer.length);
+                if (read < 0) {
+                    outputLength = decimator.flush(outputBuffer, 0);
+                    finished = true;
+                } else
+                    outputLength = decimator.process(inputBuffer, 0, read, outputBuffer, 0);
+            }
+            final int count = Math.min(length, outputLength - outputPosition);
+            System.arraycopy(outputBuffer, outputPosition, dst, offset, count);
+            outputPosition += count;
+            return count;
+        }
+
+        /**
+         * Reads a part of the decimated stream of an audio file.
+         *
+         * The samples are the same as if the whole stream had been decimated, i.e., the filter is primed with the
+         * input samples before the first requested sample.
+         *
+         * @param inputStream the audio file
+         * @param factor decimation factor
+         * @param first index of the first decimated sample
+         * @param dst receives the samples
+         * @param length number of samples to read
+         * @return number of read samples, less than length at the end of the stream
+         * @throws IOException
+         */
+        static public int read(AudioWavInputStream inputStream, int factor, long first, float[] dst, int length)
+                throws IOException {
+            factor = Math.max(1, factor);
+            // the filter reaches TAPS_PER_PHASE / 2 output samples into the past
+            final long primingSamples = factor == 1 ? 0 : Math.min(first, TAPS_PER_PHASE / 2);
+            inputStream.seekToSample((first - primingSamples) * factor);
+            final Reader reader = new Reader(inputStream, factor);
+            long toSkip = primingSamples;
+            final float[] skipBuffer = new float[TAPS_PER_PHASE];
+            while (toSkip > 0) {
+                final int read = reader.read(skipBuffer, 0, (int)Math.min(toSkip, skipBuffer.length));
+                if (read < 0)
+                    return 0;
+                toSkip -= read;
+            }
+            int position = 0;
+            while (position < length) {
+                final int read = reader.read(dst, position, length - position);
+                if (read < 0)
+                    break;
+                position += read;
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+
+/**
+ * Stores float data in bunches of the same size.
+ *
+ * The bunches are kept in a ring so that discarding the oldest bunches is O(1). Values are accessed as primitives,
+ * either one by one or through bulk copies.
+ *
+ * A copy created with {@link #FixSizedBunchArray(FixSizedBunchArray)} is a shallow snapshot: it shares the ring with
+ * the original but later appends and discards of the original are not visible in the snapshot. Before the original
+ * overwrites a ring slot that a snapshot might still use, the ring is reallocated. A snapshot reallocates the ring
+ * before it appends the first bunch.
+ */
+public class FixSizedBunchArray {
+    final static private int MIN_CAPACITY = 16;
+
+    private float[][] ring;
+    private int mask;
+    // ring position of the first bunch
+    private int head = 0;
+    private int bunchCount = 0;
+    private int bunchSize = -1;
+
+    // total number of bunches that have been discarded, i.e., the absolute index of the first bunch
+    private long discarded = 0;
+    // absolute index of the first bunch a snapshot might use; ring slots from here on must not be overwritten
+    private long sharedFrom = Long.MAX_VALUE;
+    // false for a snapshot that still shares the ring of the original
+    private boolean ownsRing = true;
+
+    public FixSizedBunchArray(int bunchSize) {
+        this.bunchSize = bunchSize;
+        allocate(MIN_CAPACITY);
+    }
+
+    // creates a shallow snapshot
+    public FixSizedBunchArray(FixSizedBunchArray array) {
+        this.ring = array.ring;
+        this.mask = array.mask;
+        this.head = array.head;
+        this.bunchCount = array.bunchCount;
+        this.bunchSize = array.bunchSize;
+        this.discarded = array.discarded;
+        this.sharedFrom = array.discarded;
+        this.ownsRing = false;
+        array.sharedFrom = Math.min(array.sharedFrom, array.discarded);
+    }
+
+    private void allocate(int capacity) {
+        ring = new float[capacity][];
+        mask = capacity - 1;
+        head = 0;
+    }
+
+    private void reallocate() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * (bunchCount + 1))
+            capacity *= 2;
+        final float[][] oldRing = ring;
+        final int oldMask = mask;
+        final int oldHead = head;
+        allocate(capacity);
+        for (int i = 0; i < bunchCount; i++)
+            ring[i] = oldRing[(oldHead + i) & oldMask];
+        sharedFrom = Long.MAX_VALUE;
+        ownsRing = true;
+    }
+
+    public void add(float[] data) {
+        if (bunchSize == -1)
+            bunchSize = data.length;
+        if (bunchSize != data.length)
+            throw new RuntimeException();
+
+        final long absoluteIndex = discarded + bunchCount;
+        // the slot we are going to write still holds the bunch absoluteIndex - capacity
+        if (!ownsRing || bunchCount == ring.length || absoluteIndex - ring.length >= sharedFrom)
+            reallocate();
+        ring[(head + bunchCount) & mask] = data;
+        bunchCount++;
+    }
+
+    public void clear() {
+        bunchSize = -1;
+        bunchCount = 0;
+        discarded = 0;
+        allocate(MIN_CAPACITY);
+        sharedFrom = Long.MAX_VALUE;
+        ownsRing = true;
+    }
+
+    /**
+     * Removes the oldest bunches.
+     *
+     * @param count number of bunches to remove
+     */
+    public void removeFirstBunches(int count) {
+        if (count > bunchCount)
+            count = bunchCount;
+        if (sharedFrom == Long.MAX_VALUE) {
+            // help the gc, no snapshot uses the slots
+            for (int i = 0; i < count; i++)
+                ring[(head + i) & mask] = null;
+        }
+        head = (head + count) & mask;
+        bunchCount -= count;
+        discarded += count;
+    }
+
+    /**
+     * @return number of values
+     */
+    public int size() {
+        return bunchCount * bunchSize;
+    }
+
+    public float getFloat(int index) {
+        return ring[(head + index / bunchSize) & mask][index % bunchSize];
+    }
+
+    /**
+     * Copies a range of values.
+     *
+     * @param start index of the first value
+     * @param dst target array
+     * @param offset offset in dst
+     * @param length number of values
+     */
+    public void copy(int start, float[] dst, int offset, int length) {
+        int bunch = start / bunchSize;
+        int position = start % bunchSize;
+        while (length > 0) {
+            final int count = Math.min(length, bunchSize - position);
+            System.arraycopy(getBunch(bunch), position, dst, offset, count);
+            offset += count;
+            length -= count;
+            bunch++;
+            position = 0;
+        }
+    }
+
+    public float[] getBunch(int bunchIndex) {
+        return ring[(head + bunchIndex) & mask];
+    }
+
+    public int getBunchCount() {
+        return bunchCount;
+    }
+
+    public int getBunchSize() {
+        return bunchSize;
+    }
+}
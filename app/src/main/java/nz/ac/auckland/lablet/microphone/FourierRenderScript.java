@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import android.content.Context;
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RenderScript;
+import nz.ac.auckland.lablet.R;
+
+
+/**
+ * Short time Fourier transform that runs the windows in the fft.rs RenderScript kernel.
+ */
+class FourierRenderScript implements IFourierTransform {
+    private Context context;
+    private RenderScript renderScript;
+    private ScriptC_fft script;
+
+    public FourierRenderScript(Context context) {
+        this.context = context;
+        renderScript = RenderScript.create(context);
+        script = new ScriptC_fft(renderScript, context.getResources(), R.raw.fft);
+    }
+
+    /**
+     * Creates a transform for the analysis of a whole data array.
+     *
+     * @param context needed for RenderScript
+     * @param useRenderScript if false a pure Java transform that runs on all cores is used
+     * @return a transform that has to be released after usage
+     */
+    static public IFourierTransform createTransform(Context context, boolean useRenderScript) {
+        if (useRenderScript)
+            return new FourierRenderScript(context);
+        return new ParallelFourier();
+    }
+
+    @Override
+    public float[] transform(float[] data, int length, int windowSize, float stepFactor) {
+        if (length == 0)
+            return new float[0];
+        final int stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        final int nSteps = Fourier.getNSteps(length, windowSize, stepWidth);
+        final int outputSize = nSteps * windowSize / 2;
+
+        Allocation dataAllocation = Allocation.createSized(renderScript, Element.F32(renderScript), length,
+                Allocation.USAGE_SHARED);
+        dataAllocation.copyFrom(data);
+        final float[] out = new float[outputSize];
+        Allocation outAllocation = Allocation.createSized(renderScript, Element.F32(renderScript), outputSize,
+                Allocation.USAGE_SHARED);
+        outAllocation.copyFrom(out);
+
+        final int[] inStartValues = new int[nSteps];
+        for (int i = 0; i < nSteps; i++)
+            inStartValues[i] = i;
+
+        Allocation inAllocation = Allocation.createSized(renderScript, Element.I32(renderScript), nSteps);
+        inAllocation.copyFrom(inStartValues);
+
+        script.set_gWindowSize(windowSize);
+        script.set_gStepWidth(stepWidth);
+        script.bind_gData(dataAllocation);
+        script.bind_gOutput(outAllocation);
+
+        script.forEach_root(inAllocation, inAllocation);
+        outAllocation.copyTo(out);
+
+        renderScript.finish();
+
+        return out;
+    }
+
+    @Override
+    public void release() {
+        renderScript.destroy();
+    }
+}
@@ -13,16 +13,54 @@ import nz.ac.auckland.lablet.experiment.*;
 import nz.ac.auckland.lablet.misc.Unit;
 import nz.ac.auckland.lablet.views.marker.MarkerDataModel;
 import nz.ac.auckland.lablet.views.table.CSVWriter;
+import nz.ac.auckland.lablet.views.table.DataTableColumn;
 import nz.ac.auckland.lablet.views.table.MarkerDataTableAdapter;
 
 import java.io.*;
 
 
+class OnsetTimeColumn extends DataTableColumn {
+    @Override
+    public int size() {
+        return dataModel.getMarkerCount();
+    }
+
+    @Override
+    public Number getValue(int index) {
+        return dataModel.getMarkerDataAt(index).getPosition().x;
+    }
+
+    @Override
+    public String getHeader() {
+        return "Onset Time";
+    }
+}
+
+class OnsetStrengthColumn extends DataTableColumn {
+    @Override
+    public int size() {
+        return dataModel.getMarkerCount();
+    }
+
+    @Override
+    public Number getValue(int index) {
+        return dataModel.getMarkerDataAt(index).getPosition().y;
+    }
+
+    @Override
+    public String getHeader() {
+        return "Onset Strength";
+    }
+}
+
+
 public class FrequencyAnalysis implements IDataAnalysis {
     final private AudioData sensorData;
 
     final private MarkerDataModel hCursorMarkerModel;
     final private MarkerDataModel vCursorMarkerModel;
+    // detected onsets of the shown frequency map, not stored since they are detected again when the map is loaded
+    final private MarkerDataModel onsetMarkerModel;
     final private Unit xUnit = new Unit("s", Unit.MILLI);
     final private Unit yUnit = new Unit("Hz");
     final private FreqMapDisplaySettings freqMapDisplaySettings = new FreqMapDisplaySettings();
@@ -30,6 +68,10 @@ public class FrequencyAnalysis implements IDataAnalysis {
     public class FreqMapDisplaySettings {
         private int windowSize = 4096;
         private float stepFactor = 0.5f;
+        // highest frequency of interest, 0 shows the whole frequency range
+        private float maxFrequency = 0;
+        // store the frequency map with one byte per magnitude, see FrequencyQuantizer
+        private boolean quantized = false;
         private int contrast = 127;
         private int brightness = 127;
         final private RectF range = new RectF();
@@ -50,6 +92,22 @@ public class FrequencyAnalysis implements IDataAnalysis {
             this.stepFactor = stepFactor;
         }
 
+        public float getMaxFrequency() {
+            return maxFrequency;
+        }
+
+        public void setMaxFrequency(float maxFrequency) {
+            this.maxFrequency = maxFrequency;
+        }
+
+        public boolean isQuantized() {
+            return quantized;
+        }
+
+        public void setQuantized(boolean quantized) {
+            this.quantized = quantized;
+        }
+
         public int getContrast() {
             return contrast;
         }
@@ -78,6 +136,8 @@ public class FrequencyAnalysis implements IDataAnalysis {
             Bundle bundle = new Bundle();
             bundle.putInt("windowSize", windowSize);
             bundle.putFloat("stepFactor", stepFactor);
+            bundle.putFloat("maxFrequency", maxFrequency);
+            bundle.putBoolean("quantized", quantized);
             bundle.putInt("contrast", contrast);
             bundle.putInt("brightness", brightness);
             bundle.putFloat("rangeLeft", range.left);
@@ -90,6 +150,8 @@ public class FrequencyAnalysis implements IDataAnalysis {
         public void fromBundle(Bundle bundle) {
             windowSize = bundle.getInt("windowSize", windowSize);
             stepFactor = bundle.getFloat("stepFactor", stepFactor);
+            maxFrequency = bundle.getFloat("maxFrequency", maxFrequency);
+            quantized = bundle.getBoolean("quantized", quantized);
             contrast = bundle.getInt("contrast", contrast);
             brightness = bundle.getInt("brightness", brightness);
             range.left = bundle.getFloat("rangeLeft", range.left);
@@ -106,6 +168,7 @@ public class FrequencyAnalysis implements IDataAnalysis {
         yUnit.setName("frequency");
         hCursorMarkerModel = new MarkerDataModel();
         vCursorMarkerModel = new MarkerDataModel();
+        onsetMarkerModel = new MarkerDataModel();
     }
 
     public Unit getXUnit() {
@@ -181,6 +244,15 @@ public class FrequencyAnalysis implements IDataAnalysis {
         vTableAdapter.addColumn(new VCursorColumn());
         vTableAdapter.addColumn(new VCursorDiffToPrevColumn());
         CSVWriter.writeTable(vTableAdapter, writer, ',');
+
+        if (onsetMarkerModel.getMarkerCount() == 0)
+            return;
+        writer.write("\n");
+
+        MarkerDataTableAdapter onsetTableAdapter = new MarkerDataTableAdapter(onsetMarkerModel);
+        onsetTableAdapter.addColumn(new OnsetTimeColumn());
+        onsetTableAdapter.addColumn(new OnsetStrengthColumn());
+        CSVWriter.writeTable(onsetTableAdapter, writer, ',');
     }
 
     public MarkerDataModel getHCursorMarkerModel() {
@@ -190,4 +262,8 @@ public class FrequencyAnalysis implements IDataAnalysis {
     public MarkerDataModel getVCursorMarkerModel() {
         return vCursorMarkerModel;
     }
+
+    public MarkerDataModel getOnsetMarkerModel() {
+        return onsetMarkerModel;
+    }
 }
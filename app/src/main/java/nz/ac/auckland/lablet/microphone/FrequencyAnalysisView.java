@@ -8,9 +8,6 @@
 package nz.ac.auckland.lablet.microphone;
 
 import android.content.Context;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
 import android.graphics.RectF;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -41,9 +38,21 @@ public class FrequencyAnalysisView extends FrameLayout {
     final private List<String> windowSizeList = new ArrayList<>();
     private Spinner windowOverlapSpinner;
     final private List<OverlapSpinnerEntry> overlapSpinnerEntryList = new ArrayList<>();
+    private Spinner maxFrequencySpinner;
+    final private List<MaxFrequencySpinnerEntry> maxFrequencyEntryList = new ArrayList<>();
+    private CheckBox compactStorageCheckBox;
+    // decimation factor of the shown frequency map
+    private int decimationFactor = 1;
 
     private AudioWavInputStream audioWavInputStream;
     private AudioFrequencyMapConcurrentPainter audioFrequencyMapPainter;
+    // finer frequency map of the visible range, painted on top of the global map
+    private AudioFrequencyMapAdapter detailAdapter;
+    private AudioFrequencyMapConcurrentPainter detailPainter;
+    private FrequencyMapDetail frequencyMapDetail;
+    // updates the automatic contrast when the data changes; the adapter only holds a weak reference
+    private AbstractPlotDataAdapter.IListener autoContrastListener;
+    private OnsetMarkerUpdater onsetMarkerUpdater;
     private boolean wavFileLoaded = false;
     private ThreadStrategyPainter threadStrategyPainter;
 
@@ -56,6 +65,8 @@ public class FrequencyAnalysisView extends FrameLayout {
     private SeekBar brightnessSeekBar;
 
     private IFrequencyMapLoader frequencyMapLoader;
+    // maps of the neighbouring spinner settings
+    private FrequencyMapPrecomputer frequencyMapPrecomputer;
 
     class OverlapSpinnerEntry {
         final public float stepFactor;
@@ -72,6 +83,21 @@ public class FrequencyAnalysisView extends FrameLayout {
         }
     }
 
+    class MaxFrequencySpinnerEntry {
+        final public float maxFrequency;
+        final public String label;
+
+        public MaxFrequencySpinnerEntry(float maxFrequency, String label) {
+            this.maxFrequency = maxFrequency;
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
     public FrequencyAnalysisView(final Context context, FrequencyAnalysis analysis) {
         super(context);
 
@@ -90,6 +116,9 @@ public class FrequencyAnalysisView extends FrameLayout {
             return;
         }
 
+        decimationFactor = Decimator.getFactor(audioWavInputStream.getSampleRate(),
+                freqMapDisplaySettings.getMaxFrequency());
+
         frequencyView = (PlotView)view.findViewById(R.id.frequencyMapView);
         FrameLayout frameLayout = (FrameLayout)view.findViewById(R.id.plotViewFrameLayout);
         loadingView = (ViewGroup)inflater.inflate(R.layout.loading_overlay, frameLayout, false);
@@ -97,6 +126,8 @@ public class FrequencyAnalysisView extends FrameLayout {
         frameLayout.addView(loadingView);
 
         setupFrequencyView(frequencyView, audioWavInputStream);
+        frequencyMapDetail = new FrequencyMapDetail(audioFile, audioWavInputStream.getSampleRate(),
+                audioWavInputStream.getSampleCount(), detailAdapter);
 
         TabHost.TabContentFactory tabContentFactory = new TabHost.TabContentFactory() {
             @Override
@@ -127,6 +158,8 @@ public class FrequencyAnalysisView extends FrameLayout {
         setupFourierControls(view, audioWavInputStream.getSampleRate());
 
         frequencyMapLoader = FrequencyMapLoaderFactory.create(audioFrequencyMapAdapter, audioFile);
+        frequencyMapPrecomputer = new FrequencyMapPrecomputer(getContext(), audioFile,
+                audioWavInputStream.getSampleCount());
         showLoadingView(LOAD_WAV_FILE_STRING);
         frequencyMapLoader.loadWavFile(audioWavInputStream, new Runnable() {
             @Override
@@ -135,6 +168,8 @@ public class FrequencyAnalysisView extends FrameLayout {
                 hideLoadingView();
                 windowSizeSpinner.setEnabled(true);
                 windowOverlapSpinner.setEnabled(true);
+                maxFrequencySpinner.setEnabled(true);
+                compactStorageCheckBox.setEnabled(true);
                 update(true);
             }
         });
@@ -146,8 +181,11 @@ public class FrequencyAnalysisView extends FrameLayout {
 
         // for some reason not calling clear causes a memory leak!
         audioFrequencyMapAdapter.clear();
+        detailAdapter.clear();
+        frequencyMapDetail.release();
         // call release, e.g. to delete tmp files from the file backend
         frequencyMapLoader.release();
+        frequencyMapPrecomputer.cancel();
     }
 
     private void setupFourierControls(ViewGroup view, final int sampleRate) {
@@ -173,10 +211,7 @@ public class FrequencyAnalysisView extends FrameLayout {
             public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
                 update();
 
-                int windowSize = Integer.parseInt(windowSizeList.get(i));
-
-                updateFrequencyResolutionView(windowSize, sampleRate);
-                updateTimeStepSizeView(windowSize, sampleRate);
+                updateResolutionViews(sampleRate);
             }
 
             @Override
@@ -206,8 +241,7 @@ public class FrequencyAnalysisView extends FrameLayout {
             public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
                 update();
 
-                int windowSize = Integer.parseInt(windowSizeList.get(windowSizeSpinner.getSelectedItemPosition()));
-                updateTimeStepSizeView(windowSize, sampleRate);
+                updateResolutionViews(sampleRate);
             }
 
             @Override
@@ -225,6 +259,39 @@ public class FrequencyAnalysisView extends FrameLayout {
         }
         windowOverlapSpinner.setSelection(stepFactorIndex);
 
+        // the audio data is decimated to the lowest sample rate that still contains the max frequency
+        maxFrequencySpinner = (Spinner)view.findViewById(R.id.maxFrequencySpinner);
+        maxFrequencySpinner.setEnabled(false);
+        maxFrequencyEntryList.add(new MaxFrequencySpinnerEntry(0, "Full"));
+        maxFrequencyEntryList.add(new MaxFrequencySpinnerEntry(8000, "8 kHz"));
+        maxFrequencyEntryList.add(new MaxFrequencySpinnerEntry(5000, "5 kHz"));
+        maxFrequencyEntryList.add(new MaxFrequencySpinnerEntry(2000, "2 kHz"));
+        maxFrequencyEntryList.add(new MaxFrequencySpinnerEntry(1000, "1 kHz"));
+        maxFrequencyEntryList.add(new MaxFrequencySpinnerEntry(500, "500 Hz"));
+        maxFrequencySpinner.setAdapter(new ArrayAdapter<>(getContext(),
+                android.R.layout.simple_spinner_dropdown_item, maxFrequencyEntryList));
+        maxFrequencySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
+                update();
+
+                updateResolutionViews(sampleRate);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> adapterView) {
+
+            }
+        });
+        int maxFrequencyIndex = 0;
+        for (MaxFrequencySpinnerEntry entry : maxFrequencyEntryList) {
+            if (entry.maxFrequency == freqMapDisplaySettings.getMaxFrequency()) {
+                maxFrequencyIndex = maxFrequencyEntryList.indexOf(entry);
+                break;
+            }
+        }
+        maxFrequencySpinner.setSelection(maxFrequencyIndex);
+
         // contrast and brightness
         SeekBar.OnSeekBarChangeListener colorSeekBarListener = new SeekBar.OnSeekBarChangeListener() {
             @Override
@@ -260,6 +327,17 @@ public class FrequencyAnalysisView extends FrameLayout {
 
         updateContrastBrightness();
 
+        // one byte per magnitude, i.e., a quarter of the memory and file size
+        compactStorageCheckBox = (CheckBox)view.findViewById(R.id.compactStorageCheckBox);
+        compactStorageCheckBox.setEnabled(false);
+        compactStorageCheckBox.setChecked(freqMapDisplaySettings.isQuantized());
+        compactStorageCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                update();
+            }
+        });
+
         // y scale check box
         CheckBox yScaleCheckBox = (CheckBox)view.findViewById(R.id.yLogScaleCheckBox);
         // disable it
@@ -277,31 +355,47 @@ public class FrequencyAnalysisView extends FrameLayout {
         });
     }
 
+    private void updateAutoContrast() {
+        final MagnitudeHistogram histogram = audioFrequencyMapAdapter.getMagnitudeHistogram();
+        final int bunchSize = audioFrequencyMapAdapter.getBunchSize();
+        boolean changed = audioFrequencyMapPainter.setAutoContrast(histogram, bunchSize);
+        // the detail uses the colors of the global map
+        if (detailPainter.setAutoContrast(histogram, bunchSize))
+            changed = true;
+        if (changed)
+            threadStrategyPainter.invalidate();
+    }
+
     private void updateContrastBrightness() {
-        int contrast = freqMapDisplaySettings.getContrast();
-        int brightness = freqMapDisplaySettings.getBrightness() - 127;
-
-        ColorMatrix colorMatrix = new ColorMatrix();
-        colorMatrix.set(new float[] {
-                1, 0, 0, 0, brightness,
-                0, 1, 0, 0, brightness,
-                0, 0, 1, 0, brightness,
-                0, 0, 0, 1, 0 });
-
-        ColorMatrix contrastScaleMatrix = new ColorMatrix();
-        float scale = ((float)(contrast - 127)/ 127.f) + 1.f;
-        float translate = (.5f -.5f * scale) * 255.f;
-        contrastScaleMatrix.set(new float[] {
-                scale, 0, 0, 0, translate,
-                0, scale, 0, 0, translate,
-                0, 0, scale, 0, translate,
-                0, 0, 0, 1, 0 });
-
-        colorMatrix.postConcat(contrastScaleMatrix);
-        Paint paint = new Paint();
-        paint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
-        threadStrategyPainter.setOffScreenPaint(paint);
-        frequencyView.invalidate();
+        // only remaps the already rendered levels to new colors
+        audioFrequencyMapPainter.setContrastBrightness(freqMapDisplaySettings.getContrast(),
+                freqMapDisplaySettings.getBrightness());
+        detailPainter.setContrastBrightness(freqMapDisplaySettings.getContrast(),
+                freqMapDisplaySettings.getBrightness());
+        threadStrategyPainter.invalidate();
+    }
+
+    private int getSelectedWindowSize() {
+        return Integer.parseInt(windowSizeList.get(windowSizeSpinner.getSelectedItemPosition()));
+    }
+
+    private float getSelectedStepFactor() {
+        return overlapSpinnerEntryList.get(windowOverlapSpinner.getSelectedItemPosition()).stepFactor;
+    }
+
+    private int getSelectedDecimationFactor() {
+        return Decimator.getFactor(audioWavInputStream.getSampleRate(),
+                maxFrequencyEntryList.get(maxFrequencySpinner.getSelectedItemPosition()).maxFrequency);
+    }
+
+    private void updateResolutionViews(int sampleRate) {
+        // the spinners are not all set up while the first selections are made
+        if (windowSizeSpinner == null || windowOverlapSpinner == null || maxFrequencySpinner == null)
+            return;
+        final int windowSize = getSelectedWindowSize();
+        final int decimatedSampleRate = sampleRate / getSelectedDecimationFactor();
+        updateFrequencyResolutionView(windowSize, decimatedSampleRate);
+        updateTimeStepSizeView(windowSize, decimatedSampleRate);
     }
 
     private void updateFrequencyResolutionView(int windowSize, int sampleRate) {
@@ -310,8 +404,7 @@ public class FrequencyAnalysisView extends FrameLayout {
     }
 
     private void updateTimeStepSizeView(int windowSize, int sampleRate) {
-        float timeResolution = (float) windowSize / sampleRate * 1000
-                * audioFrequencyMapAdapter.getStepFactor();
+        float timeResolution = (float) windowSize / sampleRate * 1000 * getSelectedStepFactor();
         timeStepEditText.setText(String.format("%.2f", timeResolution));
     }
 
@@ -320,7 +413,35 @@ public class FrequencyAnalysisView extends FrameLayout {
         audioFrequencyMapPainter = new AudioFrequencyMapConcurrentPainter(audioFrequencyMapAdapter);
         threadStrategyPainter = new ThreadStrategyPainter();
         threadStrategyPainter.addChild(audioFrequencyMapPainter);
+        // the detail is painted after the global map, i.e., on top of it
+        detailAdapter = new AudioFrequencyMapAdapter(freqMapDisplaySettings.getStepFactor());
+        detailPainter = new AudioFrequencyMapConcurrentPainter(detailAdapter);
+        threadStrategyPainter.addChild(detailPainter);
+        autoContrastListener = new AbstractPlotDataAdapter.IListener() {
+            @Override
+            public void onDataAdded(AbstractPlotDataAdapter plot, int index, int number) {
+                updateAutoContrast();
+            }
+
+            @Override
+            public void onDataRemoved(AbstractPlotDataAdapter plot, int index, int number) {
+                updateAutoContrast();
+            }
+
+            @Override
+            public void onDataChanged(AbstractPlotDataAdapter plot, int index, int number) {
+                updateAutoContrast();
+            }
+
+            @Override
+            public void onAllDataChanged(AbstractPlotDataAdapter plot) {
+                updateAutoContrast();
+            }
+        };
+        audioFrequencyMapAdapter.addListener(autoContrastListener);
         frequencyMapPlotView.addPlotPainter(threadStrategyPainter);
+        onsetMarkerUpdater = new OnsetMarkerUpdater(audioFrequencyMapAdapter, frequencyAnalysis.getOnsetMarkerModel());
+        frequencyMapPlotView.addPlotPainter(new OnsetPainter(frequencyAnalysis.getOnsetMarkerModel()));
 
         RectF range = frequencyAnalysis.getFreqMapDisplaySettings().getRange();
         if (Math.abs(range.width()) > 0 && Math.abs(range.height()) > 0)
@@ -344,6 +465,7 @@ public class FrequencyAnalysisView extends FrameLayout {
             @Override
             public void onRangeChanged(RectF range) {
                 frequencyAnalysis.getFreqMapDisplaySettings().setRange(range);
+                updateDetail();
             }
         });
 
@@ -361,13 +483,13 @@ public class FrequencyAnalysisView extends FrameLayout {
         if (!wavFileLoaded)
             return true;
 
-        final int newWindowSize = Integer.parseInt(windowSizeList.get(windowSizeSpinner.getSelectedItemPosition()));
-        if (freqMapDisplaySettings.getWindowSize() != newWindowSize)
+        if (freqMapDisplaySettings.getWindowSize() != getSelectedWindowSize())
             return false;
-
-        final float newStepFactor = overlapSpinnerEntryList.get(
-                windowOverlapSpinner.getSelectedItemPosition()).stepFactor;
-        if (freqMapDisplaySettings.getStepFactor() != newStepFactor)
+        if (freqMapDisplaySettings.getStepFactor() != getSelectedStepFactor())
+            return false;
+        if (decimationFactor != getSelectedDecimationFactor())
+            return false;
+        if (freqMapDisplaySettings.isQuantized() != compactStorageCheckBox.isChecked())
             return false;
 
         return true;
@@ -382,29 +504,96 @@ public class FrequencyAnalysisView extends FrameLayout {
             return;
 
         // do the update
+        frequencyMapPrecomputer.cancel();
         showLoadingView(FOURIER_ANALYSIS_STRING);
 
-        final int newWindowSize = Integer.parseInt(windowSizeList.get(windowSizeSpinner.getSelectedItemPosition()));
-        final float newStepFactor = overlapSpinnerEntryList.get(
-                windowOverlapSpinner.getSelectedItemPosition()).stepFactor;
+        final int newWindowSize = getSelectedWindowSize();
+        final float newStepFactor = getSelectedStepFactor();
+        final MaxFrequencySpinnerEntry newMaxFrequency = maxFrequencyEntryList.get(
+                maxFrequencySpinner.getSelectedItemPosition());
+        final int newDecimationFactor = getSelectedDecimationFactor();
+        final boolean newQuantized = compactStorageCheckBox.isChecked();
+
+        // the detail of the old map is invalid and a detail calculation would slow down the conversion
+        frequencyMapDetail.suspend();
+        frequencyMapLoader.updateFrequencies(getContext(), newDecimationFactor, newStepFactor, newWindowSize,
+                newQuantized, new IFrequencyMapLoader.IFrequenciesUpdatedListener() {
+            private boolean settingsApplied = false;
+
+            private void applySettings() {
+                if (settingsApplied)
+                    return;
+                settingsApplied = true;
+                freqMapDisplaySettings.setWindowSize(newWindowSize);
+                freqMapDisplaySettings.setStepFactor(newStepFactor);
+                freqMapDisplaySettings.setMaxFrequency(newMaxFrequency.maxFrequency);
+                freqMapDisplaySettings.setQuantized(newQuantized);
+
+                int duration = Fourier.getEffectiveDuration(audioWavInputStream, newDecimationFactor,
+                        newWindowSize, newStepFactor);
+                frequencyView.setMaxXRange(0, duration);
+                // the frequency axis follows the decimated sample rate
+                final int maxFrequency = audioWavInputStream.getSampleRate() / newDecimationFactor / 2;
+                frequencyView.setMaxYRange(1, maxFrequency);
+                if (newDecimationFactor != decimationFactor || frequencyView.getRange().top > maxFrequency)
+                    frequencyView.setYRange(1, maxFrequency);
+                decimationFactor = newDecimationFactor;
+            }
+
+            @Override
+            public void onPartialFrequencies() {
+                applySettings();
+                update();
+                hideLoadingView();
+            }
 
-        frequencyMapLoader.updateFrequencies(getContext(), newStepFactor, newWindowSize,
-                new IFrequencyMapLoader.IFrequenciesUpdatedListener() {
             @Override
             public void onFrequenciesUpdated(boolean canceled) {
                 if (!canceled) {
-                    freqMapDisplaySettings.setWindowSize(newWindowSize);
-                    freqMapDisplaySettings.setStepFactor(newStepFactor);
-
-                    int duration = Fourier.getEffectiveDuration(audioWavInputStream, newWindowSize, newStepFactor);
-                    frequencyView.setMaxXRange(0, duration);
+                    applySettings();
+                    frequencyMapDetail.setGlobalMap(newDecimationFactor, newWindowSize, newStepFactor);
+                    updateDetail();
+                    onsetMarkerUpdater.update();
                 }
                 update();
                 hideLoadingView();
+                if (!canceled && isUpToDate())
+                    precomputeNeighbours();
             }
         });
     }
 
+    /**
+     * Precomputes the maps of the spinner entries next to the selected ones, e.g., to switch instantly when stepping
+     * through the window sizes.
+     */
+    private void precomputeNeighbours() {
+        final int windowSizeIndex = windowSizeSpinner.getSelectedItemPosition();
+        final int stepFactorIndex = windowOverlapSpinner.getSelectedItemPosition();
+        final int windowSize = getSelectedWindowSize();
+        final float stepFactor = getSelectedStepFactor();
+        List<FrequencyMapPrecomputer.Settings> neighbours = new ArrayList<>();
+        for (int offset : new int[]{1, -1}) {
+            final int neighbourWindowSize = windowSizeIndex + offset;
+            if (neighbourWindowSize >= 0 && neighbourWindowSize < windowSizeList.size()) {
+                neighbours.add(new FrequencyMapPrecomputer.Settings(
+                        Integer.parseInt(windowSizeList.get(neighbourWindowSize)), stepFactor));
+            }
+            final int neighbourStepFactor = stepFactorIndex + offset;
+            if (neighbourStepFactor >= 0 && neighbourStepFactor < overlapSpinnerEntryList.size()) {
+                neighbours.add(new FrequencyMapPrecomputer.Settings(windowSize,
+                        overlapSpinnerEntryList.get(neighbourStepFactor).stepFactor));
+            }
+        }
+        frequencyMapPrecomputer.start(getSelectedDecimationFactor(), compactStorageCheckBox.isChecked(),
+                new FrequencyMapPrecomputer.Settings(windowSize, stepFactor), neighbours);
+    }
+
+    private void updateDetail() {
+        RectF range = frequencyView.getRange();
+        frequencyMapDetail.update(range.left, range.right, frequencyView.getWidth());
+    }
+
     private void showLoadingView(String message) {
         loadingView.setVisibility(VISIBLE);
         ((TextView)loadingView.findViewById(R.id.loadingTextView)).setText(message);
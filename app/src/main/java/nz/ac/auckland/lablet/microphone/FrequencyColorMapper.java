@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import nz.ac.auckland.lablet.views.plotview.IScale;
+
+import java.util.Arrays;
+
+
+/**
+ * Maps the frequency magnitudes of one column of the frequency map to heat map levels of a bitmap column.
+ *
+ * The mapping from frequency bins to pixel rows only depends on the y scale, the visible frequency range, the height,
+ * the number of bins and the frequency range of the bins. It is calculated once into a {@link RowTable} and reused for all columns with the same
+ * parameters. The magnitudes are converted to levels through a lookup table that is indexed by the float bits of the
+ * magnitude ratio, i.e., without a logarithm per row. Thus a column is just a few passes over arrays and nothing is
+ * allocated.
+ *
+ * A level is one byte; the colors are assigned through a palette, see {@link #createPalette(int, int, int, int)}.
+ * Thus contrast and brightness can be changed by only mapping the levels through a new palette. The levels cover
+ * 120 dB; the palette decides which part of it is spread over the heat map colors, by default the upper 60 dB. For
+ * an automatic contrast the part can be taken from the quantiles of the magnitudes, see
+ * {@link #getAutoLevelRange(MagnitudeHistogram, int, int[])}.
+ */
+public class FrequencyColorMapper {
+    /**
+     * Groups of frequency bins that fall into the same pixel row.
+     */
+    static private class RowTable {
+        final IScale yScale;
+        final float realBottom;
+        final float realTop;
+        final int screenRectHeight;
+        final int nRows;
+        final int bunchSize;
+        final float maxFrequency;
+
+        int nGroups = 0;
+        // bins [binStart, binEnd) are averaged and fill the rows [pixelStart, pixelEnd) (counted from the bottom)
+        final int[] binStart;
+        final int[] binEnd;
+        final int[] pixelStart;
+        final int[] pixelEnd;
+
+        public RowTable(IScale yScale, float realBottom, float realTop, int screenRectHeight, int nRows,
+                        int bunchSize, float maxFrequency) {
+            this.yScale = yScale;
+            this.realBottom = realBottom;
+            this.realTop = realTop;
+            this.screenRectHeight = screenRectHeight;
+            this.nRows = nRows;
+            this.bunchSize = bunchSize;
+            this.maxFrequency = maxFrequency;
+
+            final int maxGroups = Math.min(bunchSize, nRows);
+            binStart = new int[maxGroups];
+            binEnd = new int[maxGroups];
+            pixelStart = new int[maxGroups];
+            pixelEnd = new int[maxGroups];
+
+            final float scaledBottom = yScale.scale(realBottom);
+            final float scaledTop = yScale.scale(realTop);
+            int lastPixel = -1;
+            int endBin = bunchSize;
+            for (int i = 0; i < bunchSize; i++) {
+                final float frequency = (float)i / bunchSize * maxFrequency;
+                final int pixel = toYPixel(yScale.scale(frequency), scaledBottom, scaledTop, screenRectHeight);
+                if (pixel < 0)
+                    continue;
+                if (pixel >= nRows) {
+                    endBin = i;
+                    break;
+                }
+                if (pixel == lastPixel)
+                    continue;
+                if (nGroups > 0) {
+                    binEnd[nGroups - 1] = i;
+                    pixelEnd[nGroups - 1] = pixel;
+                }
+                binStart[nGroups] = i;
+                pixelStart[nGroups] = pixel;
+                nGroups++;
+                lastPixel = pixel;
+            }
+            if (nGroups > 0) {
+                binEnd[nGroups - 1] = endBin;
+                pixelEnd[nGroups - 1] = nRows - 1;
+            }
+        }
+
+        public boolean matches(IScale yScale, float realBottom, float realTop, int screenRectHeight, int nRows,
+                               int bunchSize, float maxFrequency) {
+            return this.yScale == yScale && this.realBottom == realBottom && this.realTop == realTop
+                    && this.screenRectHeight == screenRectHeight && this.nRows == nRows
+                    && this.bunchSize == bunchSize && this.maxFrequency == maxFrequency;
+        }
+    }
+
+    final static private int TRANSPARENT = 0;
+    final static private float MIN_DB = -120;
+
+    /**
+     * Number of levels, i.e., the size of a palette.
+     */
+    final static public int N_LEVELS = 256;
+    /**
+     * Level of pixels that have no data.
+     */
+    final static public byte TRANSPARENT_LEVEL = 0;
+    // level 1 is the lowest magnitude, the last level is for overflows
+    final static private int FIRST_LEVEL = 1;
+    final static private int OVERFLOW_LEVEL = N_LEVELS - 1;
+    final static private int N_HEAT_LEVELS = OVERFLOW_LEVEL - FIRST_LEVEL;
+    // neutral contrast and brightness
+    final static public int DEFAULT_CONTRAST = 127;
+    final static public int DEFAULT_BRIGHTNESS = 127;
+    // the default palette shows the upper 60 dB
+    final static public int DEFAULT_LOW_LEVEL = FIRST_LEVEL + N_HEAT_LEVELS / 2;
+    final static public int DEFAULT_HIGH_LEVEL = OVERFLOW_LEVEL - 1;
+    // quantiles of the magnitudes that are mapped to the first and the last heat map color by the automatic contrast
+    final static private float AUTO_LOW_QUANTILE = 0.2f;
+    final static private float AUTO_HIGH_QUANTILE = 0.999f;
+    // the automatic contrast shows at least about 15 dB
+    final static private int MIN_LEVEL_SPAN = 32;
+
+    // the level lookup table is indexed by the exponent and the first LUT_MANTISSA_BITS of the magnitude ratio
+    final static private int LUT_MANTISSA_BITS = 10;
+    final static private int LUT_SHIFT = 23 - LUT_MANTISSA_BITS;
+    // ratios below 2^-40 are below the -120 dB floor, ratios >= 1 are overflows
+    final static private int LUT_START = (127 - 40) << LUT_MANTISSA_BITS;
+    final static private int LUT_END = 127 << LUT_MANTISSA_BITS;
+    // marks lookup table entries that contain a level change, the level is calculated exactly for those
+    final static private byte LUT_EXACT = TRANSPARENT_LEVEL;
+
+    final private int[] heatMap = new int[512];
+    final private byte[] levelLut = new byte[LUT_END - LUT_START];
+
+    private volatile RowTable rowTable = null;
+
+    public FrequencyColorMapper() {
+        preCalculateHeatMap();
+        preCalculateLevelLut();
+    }
+
+    static private int rgb(int red, int green, int blue) {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    static private int red(int color) {
+        return (color >> 16) & 0xFF;
+    }
+
+    static private int green(int color) {
+        return (color >> 8) & 0xFF;
+    }
+
+    static private int blue(int color) {
+        return color & 0xFF;
+    }
+
+    private void preCalculateHeatMap() {
+        final int[] colors = {
+                rgb(191, 191, 191), // light gray
+                rgb(77, 153, 255), // light blue
+                rgb(230, 26, 230), // violet
+                rgb(255, 0, 0), // red
+                rgb(0, 0, 0), // black
+                rgb(0, 255, 0) // green
+        };
+
+        // last color is for overflow
+        final int nColors = colors.length - 1;
+        for (int i = 0; i < heatMap.length - 1; i++) {
+            final float value = ((float)i) / (heatMap.length - 1);
+            final int index = (int)(value * (nColors - 1)) + 1;
+
+            int red = (int)((1.f - value) * red(colors[index - 1]) + value * red(colors[index]));
+            int green = (int)((1.f - value) * green(colors[index - 1]) + value * green(colors[index]));
+            int blue = (int)((1.f - value) * blue(colors[index - 1]) + value * blue(colors[index]));
+
+            heatMap[i] = rgb(red, green, blue);
+        }
+
+        heatMap[heatMap.length - 1] = colors[nColors];
+    }
+
+    private int toLevel(double value) {
+        if (value >= 1)
+            return OVERFLOW_LEVEL;
+        if (value < 0)
+            return FIRST_LEVEL;
+        return FIRST_LEVEL + (int)(value * N_HEAT_LEVELS);
+    }
+
+    private void preCalculateLevelLut() {
+        for (int i = 0; i < levelLut.length; i++) {
+            final int firstBits = (LUT_START + i) << LUT_SHIFT;
+            final int lastBits = firstBits | ((1 << LUT_SHIFT) - 1);
+            final int first = toLevel(getFrequencyAmp(Float.intBitsToFloat(firstBits)));
+            final int last = toLevel(getFrequencyAmp(Float.intBitsToFloat(lastBits)));
+            // the mapping is monotonic, i.e., if first and last are the same the whole range has the same level
+            levelLut[i] = first == last ? (byte)first : LUT_EXACT;
+        }
+    }
+
+    /**
+     * @param ratio magnitude divided by the max magnitude
+     */
+    private byte toLevel(float ratio) {
+        final int key = Float.floatToRawIntBits(ratio) >> LUT_SHIFT;
+        if (key < LUT_START)
+            return FIRST_LEVEL;
+        if (key >= LUT_END)
+            return (byte)OVERFLOW_LEVEL;
+        final byte level = levelLut[key - LUT_START];
+        if (level != LUT_EXACT)
+            return level;
+        return (byte)toLevel(getFrequencyAmp(ratio));
+    }
+
+    static private int clampColor(float value) {
+        if (value < 0)
+            return 0;
+        if (value > 255)
+            return 255;
+        return (int)value;
+    }
+
+    /**
+     * Creates the colors for the levels with the default level range.
+     *
+     * @see #createPalette(int, int, int, int)
+     */
+    public int[] createPalette(int contrast, int brightness) {
+        return createPalette(contrast, brightness, DEFAULT_LOW_LEVEL, DEFAULT_HIGH_LEVEL);
+    }
+
+    /**
+     * Creates the colors for the levels.
+     *
+     * The levels [lowLevel, highLevel] are spread over the heat map, lower levels get the first color. Contrast and
+     * brightness are applied like a color matrix that first adds the brightness and then scales the colors around the
+     * middle gray.
+     *
+     * @param contrast 0 to 254, 127 leaves the colors unchanged
+     * @param brightness 0 to 254, 127 leaves the colors unchanged
+     * @param lowLevel level that gets the first heat map color
+     * @param highLevel level that gets the last heat map color
+     * @return the palette, the level is the index
+     */
+    public int[] createPalette(int contrast, int brightness, int lowLevel, int highLevel) {
+        final float offset = brightness - 127;
+        final float scale = ((float)(contrast - 127) / 127.f) + 1.f;
+        final float translate = (.5f - .5f * scale) * 255.f;
+
+        final int[] palette = new int[N_LEVELS];
+        palette[TRANSPARENT_LEVEL] = TRANSPARENT;
+        for (int level = FIRST_LEVEL; level < N_LEVELS; level++) {
+            final int color;
+            if (level == OVERFLOW_LEVEL)
+                color = heatMap[heatMap.length - 1];
+            else {
+                float value = (float)(level - lowLevel) / Math.max(1, highLevel - lowLevel);
+                value = Math.max(0, Math.min(1, value));
+                color = heatMap[(int)(value * (heatMap.length - 2))];
+            }
+            palette[level] = rgb(clampColor(scale * (red(color) + offset) + translate),
+                    clampColor(scale * (green(color) + offset) + translate),
+                    clampColor(scale * (blue(color) + offset) + translate));
+        }
+        return palette;
+    }
+
+    private double getFrequencyAmp(float ratio) {
+        return 1d - 10d * Math.log10(ratio) / MIN_DB;
+    }
+
+    static private float getMaxMagnitude(int bunchSize) {
+        return 32768 * bunchSize * 2;
+    }
+
+    /**
+     * @param magnitude a frequency magnitude
+     * @param bunchSize number of frequencies per column
+     * @return the level of the magnitude
+     */
+    public int getLevel(float magnitude, int bunchSize) {
+        return toLevel(magnitude / getMaxMagnitude(bunchSize)) & 0xFF;
+    }
+
+    /**
+     * Finds the level range for an automatic contrast, i.e., the range between a low and a high quantile of the
+     * magnitudes.
+     *
+     * @param histogram magnitudes of the frequency map
+     * @param bunchSize number of frequencies per column
+     * @param range receives the low and the high level
+     * @return false if the histogram is empty; range is set to the default range then
+     */
+    public boolean getAutoLevelRange(MagnitudeHistogram histogram, int bunchSize, int[] range) {
+        if (histogram == null || histogram.getCount() == 0 || bunchSize <= 0) {
+            range[0] = DEFAULT_LOW_LEVEL;
+            range[1] = DEFAULT_HIGH_LEVEL;
+            return false;
+        }
+        int low = getLevel(histogram.getQuantile(AUTO_LOW_QUANTILE), bunchSize);
+        int high = Math.min(DEFAULT_HIGH_LEVEL, getLevel(histogram.getQuantile(AUTO_HIGH_QUANTILE), bunchSize));
+        if (high - low < MIN_LEVEL_SPAN) {
+            high = Math.min(DEFAULT_HIGH_LEVEL, low + MIN_LEVEL_SPAN);
+            low = high - MIN_LEVEL_SPAN;
+        }
+        range[0] = low;
+        range[1] = high;
+        return true;
+    }
+
+    static private int toYPixel(float scaledValue, float scaledBottom, float scaledTop, int screenRectHeight) {
+        return (int)((scaledValue - scaledBottom) / (scaledTop - scaledBottom) * screenRectHeight);
+    }
+
+    private RowTable getRowTable(IScale yScale, float realBottom, float realTop, int screenRectHeight, int nRows,
+                                 int bunchSize, float maxFrequency) {
+        RowTable table = rowTable;
+        if (table == null || !table.matches(yScale, realBottom, realTop, screenRectHeight, nRows, bunchSize,
+                maxFrequency)) {
+            table = new RowTable(yScale, realBottom, realTop, screenRectHeight, nRows, bunchSize, maxFrequency);
+            rowTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Calculates the levels of a bitmap column.
+     *
+     * @param levels receives the levels, the first entry is the top pixel
+     * @param frequencies the frequency magnitudes of a column
+     * @param maxFrequency frequency at the end of the last bin, i.e., half the sample rate of the transformed data
+     * @param yScale the scale of the frequency axis
+     * @param realBottom lowest visible frequency
+     * @param realTop highest visible frequency
+     * @param screenRectHeight height of the drawing area in pixels
+     * @return levels
+     */
+    public byte[] getLevels(byte[] levels, final float[] frequencies, float maxFrequency, IScale yScale,
+                            float realBottom, float realTop, int screenRectHeight) {
+        final RowTable table = getRowTable(yScale, realBottom, realTop, screenRectHeight, levels.length,
+                frequencies.length, maxFrequency);
+        final float maxFreqAmplitude = getMaxMagnitude(frequencies.length);
+
+        Arrays.fill(levels, TRANSPARENT_LEVEL);
+        for (int group = 0; group < table.nGroups; group++) {
+            float frequencyAmpSum = 0;
+            final int binEnd = table.binEnd[group];
+            for (int i = table.binStart[group]; i < binEnd; i++)
+                frequencyAmpSum += frequencies[i];
+            final float frequencyAmpAverage = frequencyAmpSum / (binEnd - table.binStart[group]);
+            final byte level = toLevel(frequencyAmpAverage / maxFreqAmplitude);
+
+            final int pixelEnd = table.pixelEnd[group];
+            for (int a = table.pixelStart[group]; a < pixelEnd; a++)
+                levels[levels.length - 1 - a] = level;
+        }
+        return levels;
+    }
+
+    /**
+     * Maps levels to colors.
+     *
+     * @param levels source levels
+     * @param palette see {@link #createPalette(int, int, int, int)}
+     * @param colors receives the colors
+     * @param length number of levels to map
+     */
+    static public void applyPalette(byte[] levels, int[] palette, int[] colors, int length) {
+        for (int i = 0; i < length; i++)
+            colors[i] = palette[levels[i] & 0xFF];
+    }
+}
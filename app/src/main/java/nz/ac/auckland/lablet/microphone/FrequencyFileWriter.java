@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Writes frequency data in native byte order so that it can be mapped by the {@link FrequencyFileReader}.
+ *
+ * Quantized frequency files are written as column records, see {@link FrequencyQuantizer#encodeRecords(float[], int)}.
+ */
+class FrequencyFileWriter implements Closeable {
+    final private FileOutputStream outputStream;
+    final private FileChannel channel;
+    final private ByteBuffer byteBuffer = ByteBuffer.allocateDirect(256 * 1024);
+    final private FloatBuffer floatBuffer;
+
+    public FrequencyFileWriter(File file) throws IOException {
+        outputStream = new FileOutputStream(file);
+        channel = outputStream.getChannel();
+        byteBuffer.order(ByteOrder.nativeOrder());
+        floatBuffer = byteBuffer.asFloatBuffer();
+    }
+
+    public void write(float[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    public void write(float[] data, int offset, int length) throws IOException {
+        final int end = offset + length;
+        while (offset < end) {
+            final int count = Math.min(end - offset, floatBuffer.capacity());
+            floatBuffer.clear();
+            floatBuffer.put(data, offset, count);
+            byteBuffer.clear();
+            byteBuffer.limit(count * FrequencyFileReader.FLOAT_BYTES);
+            while (byteBuffer.hasRemaining())
+                channel.write(byteBuffer);
+            offset += count;
+        }
+    }
+
+    /**
+     * Writes raw bytes, e.g., column records of a quantized frequency file.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+
+    static public void write(File file, float[] data) throws IOException {
+        FrequencyFileWriter writer = new FrequencyFileWriter(file);
+        try {
+            writer.write(data);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a quantized frequency file.
+     *
+     * @param file target file
+     * @param data bunch after bunch
+     * @param bunchSize number of frequencies per bunch
+     */
+    static public void writeQuantized(File file, float[] data, int bunchSize) throws IOException {
+        final byte[] records = FrequencyQuantizer.encodeRecords(data, bunchSize);
+        FrequencyFileWriter writer = new FrequencyFileWriter(file);
+        try {
+            writer.write(records, 0, records.length);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import android.content.Context;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+import nz.ac.auckland.lablet.misc.Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Disk cache for computed frequency maps.
+ *
+ * Maps are stored as frequency files (see {@link FrequencyFileReader}) and are identified by a hash of the audio
+ * content, the decimation factor, the window size and the step factor. Thus a cached map stays valid when an
+ * experiment is moved to its final storage location. The last modified time stamp is updated on each access and the
+ * least recently used maps are deleted when the total size exceeds the size budget. Temp files of unfinished
+ * conversions count against the budget too and are deleted once they are stale.
+ */
+public class FrequencyMapCache {
+    final static private String CACHE_DIR_NAME = "frequency_maps";
+    final static private String FILE_EXTENSION = ".freq";
+    final static private String TEMP_FILE_EXTENSION = ".tmp";
+    // a conversion writes its temp file continuously, older temp files have been left behind, e.g., by a crash
+    final static private long STALE_TEMP_FILE_AGE = 60 * 60 * 1000;
+    final static private long DEFAULT_MAX_SIZE = 128 * 1024 * 1024;
+    // content hash: number of sampled blocks and their size
+    final static private int HASH_BLOCKS = 16;
+    final static private int HASH_BLOCK_SIZE = 64 * 1024;
+
+    final static private Object lock = new Object();
+
+    final private File cacheDir;
+    final private long maxSize;
+
+    public FrequencyMapCache(File cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the size budget in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    static public FrequencyMapCache get(Context context) {
+        return new FrequencyMapCache(new File(context.getCacheDir(), CACHE_DIR_NAME), DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Calculates a content hash of a wav file.
+     *
+     * To keep this fast for long recordings only the file size and some evenly distributed blocks of the file are
+     * hashed.
+     *
+     * @param wavFile the audio file
+     * @return hex string of the hash
+     * @throws IOException
+     */
+    static public String hashAudioFile(File wavFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(wavFile, "r");
+        try {
+            final long length = file.length();
+            digest.update(Long.toString(length).getBytes());
+
+            final byte[] buffer = new byte[HASH_BLOCK_SIZE];
+            final long blockDistance = Math.max(HASH_BLOCK_SIZE, (length - HASH_BLOCK_SIZE) / (HASH_BLOCKS - 1));
+            for (long position = 0; position < length; position += blockDistance) {
+                file.seek(position);
+                final int read = file.read(buffer);
+                if (read <= 0)
+                    break;
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            file.close();
+        }
+        return Hash.bytesToHex(digest.digest());
+    }
+
+    public File getFile(String audioHash, int decimationFactor, int windowSize, float stepFactor,
+                        boolean quantized) {
+        String name = audioHash + "_" + windowSize + "_" + Math.round(stepFactor * 1000);
+        // not decimated maps keep the names they had before decimation was supported
+        if (decimationFactor > 1)
+            name += "_d" + decimationFactor;
+        if (quantized)
+            name += "_q8";
+        return new File(cacheDir, name + FILE_EXTENSION);
+    }
+
+    /**
+     * @return the cached frequency file or null if not in the cache
+     */
+    public File lookup(String audioHash, int decimationFactor, int windowSize, float stepFactor,
+                       boolean quantized) {
+        synchronized (lock) {
+            File file = getFile(audioHash, decimationFactor, windowSize, stepFactor, quantized);
+            if (!file.exists())
+                return null;
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+    }
+
+    public boolean contains(String audioHash, int decimationFactor, int windowSize, float stepFactor,
+                            boolean quantized) {
+        return getFile(audioHash, decimationFactor, windowSize, stepFactor, quantized).exists();
+    }
+
+    /**
+     * Creates a temporary file in the cache directory that can later be added using
+     * {@link #put(File, String, int, int, float, boolean)}.
+     */
+    public File createTempFile() throws IOException {
+        synchronized (lock) {
+            if (!cacheDir.exists() && !cacheDir.mkdirs())
+                throw new IOException("Can't create cache dir: " + cacheDir.getPath());
+        }
+        return File.createTempFile("FrequencyData", TEMP_FILE_EXTENSION, cacheDir);
+    }
+
+    public File put(File frequencyFile, String audioHash, int decimationFactor, int windowSize, float stepFactor,
+                    boolean quantized) {
+        return put(frequencyFile, audioHash, decimationFactor, windowSize, stepFactor, quantized, false);
+    }
+
+    /**
+     * Moves a frequency file into the cache.
+     *
+     * A speculative file, e.g., a precomputed map that may never be shown, is added as the least recently used file,
+     * i.e., it never pushes out other maps and is deleted first. It becomes a regular file on the first lookup.
+     *
+     * @param frequencyFile file created with {@link #createTempFile()}
+     * @param speculative if the file is added as the least recently used file
+     * @return the cache file or null on failure or if a speculative file doesn't fit into the cache
+     */
+    public File put(File frequencyFile, String audioHash, int decimationFactor, int windowSize, float stepFactor,
+                    boolean quantized, boolean speculative) {
+        synchronized (lock) {
+            File target = getFile(audioHash, decimationFactor, windowSize, stepFactor, quantized);
+            if (target.exists())
+                target.delete();
+            if (!frequencyFile.renameTo(target)) {
+                frequencyFile.delete();
+                return null;
+            }
+            if (speculative) {
+                target.setLastModified(0);
+                trim(null);
+                return target.exists() ? target : null;
+            }
+            target.setLastModified(System.currentTimeMillis());
+            trim(target);
+            return target;
+        }
+    }
+
+    public File getOrCreate(Context context, File wavFile, int decimationFactor, int windowSize, float stepFactor,
+                            boolean quantized, FrequencyMapConverter.ICancelSignal cancelSignal,
+                            FrequencyMapConverter.IProgressListener progressListener) throws IOException {
+        return getOrCreate(context, wavFile, decimationFactor, windowSize, stepFactor, quantized, cancelSignal,
+                progressListener, false);
+    }
+
+    /**
+     * Returns the cached frequency file or computes it if it is not in the cache yet.
+     *
+     * @param decimationFactor see {@link Decimator}
+     * @param quantized if the frequency file is quantized, see {@link FrequencyQuantizer}
+     * @param progressListener is notified while the frequency file is computed, can be null
+     * @param speculative if a computed file is added as the least recently used file, see
+     * {@link #put(File, String, int, int, float, boolean, boolean)}
+     * @return the frequency file or null if canceled
+     * @throws IOException
+     */
+    public File getOrCreate(Context context, File wavFile, int decimationFactor, int windowSize, float stepFactor,
+                            boolean quantized, FrequencyMapConverter.ICancelSignal cancelSignal,
+                            FrequencyMapConverter.IProgressListener progressListener, boolean speculative)
+            throws IOException {
+        final String audioHash = hashAudioFile(wavFile);
+        File cached = lookup(audioHash, decimationFactor, windowSize, stepFactor, quantized);
+        if (cached != null)
+            return cached;
+
+        File tmpFile = createTempFile();
+        AudioWavInputStream audioWavInputStream = new AudioWavInputStream(wavFile);
+        IFourierTransform fourierTransform = FourierRenderScript.createTransform(context, true);
+        boolean converted = false;
+        try {
+            // the RenderScript kernel already runs on all cores, so a single worker that overlaps with reading and
+            // writing is enough
+            converted = FrequencyMapConverter.convert(fourierTransform, 1, audioWavInputStream, decimationFactor,
+                    windowSize, stepFactor, quantized, tmpFile, cancelSignal, progressListener);
+        } finally {
+            fourierTransform.release();
+            audioWavInputStream.close();
+            if (!converted)
+                tmpFile.delete();
+        }
+        return put(tmpFile, audioHash, decimationFactor, windowSize, stepFactor, quantized, speculative);
+    }
+
+    /**
+     * Computes a frequency map in the background, e.g., to have the default map ready when a recording is opened for
+     * the first time.
+     */
+    static public void precompute(Context context, final File wavFile, final int windowSize,
+                                  final float stepFactor) {
+        final Context appContext = context.getApplicationContext();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    get(appContext).getOrCreate(appContext, wavFile, 1, windowSize, stepFactor, false, null,
+                            null);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // delete stale temp files and the least recently used maps till the cache fits into the size budget
+    private void trim(File keep) {
+        File[] files = cacheDir.listFiles();
+        if (files == null)
+            return;
+        final long now = System.currentTimeMillis();
+        List<File> cacheFiles = new ArrayList<>();
+        long totalSize = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_EXTENSION)) {
+                if (now - file.lastModified() > STALE_TEMP_FILE_AGE && file.delete())
+                    continue;
+                // running conversions count against the budget but can't be deleted
+                totalSize += file.length();
+                continue;
+            }
+            if (!file.getName().endsWith(FILE_EXTENSION))
+                continue;
+            cacheFiles.add(file);
+            totalSize += file.length();
+        }
+        if (totalSize <= maxSize)
+            return;
+
+        Collections.sort(cacheFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file, File file2) {
+                return Long.valueOf(file.lastModified()).compareTo(file2.lastModified());
+            }
+        });
+        for (File file : cacheFiles) {
+            if (totalSize <= maxSize)
+                break;
+            if (file.equals(keep))
+                continue;
+            final long length = file.length();
+            if (file.delete())
+                totalSize -= length;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Converts a wav file into a frequency file without loading the whole audio data into memory.
+ *
+ * The conversion is a pipeline: a reader thread fills chunks of audio data (each chunk starts with the samples of
+ * the previous chunk that are needed for the next window), transform workers convert the chunks and the calling
+ * thread writes the results in order. Thus reading, transforming and writing overlap. The chunks are pooled, i.e.,
+ * the reader can only be a few chunks ahead of the writer.
+ *
+ * The audio data can be decimated before the transform, see {@link Decimator}. The frequency file can be quantized
+ * by the transform workers, see {@link FrequencyQuantizer}.
+ *
+ * After each written chunk a progress listener is notified, so the already written part of the frequency file can be
+ * shown while the conversion is still running.
+ */
+public class FrequencyMapConverter {
+    public interface ICancelSignal {
+        boolean isCanceled();
+    }
+
+    public interface IProgressListener {
+        /**
+         * Is called from the converting thread after a chunk has been written.
+         *
+         * @param outFile the frequency file
+         * @param bunchCount number of bunches in the frequency file
+         */
+        void onProgress(File outFile, int bunchCount);
+    }
+
+    static private class Chunk {
+        final float[] samples;
+        int length;
+        int sequence;
+        float[] frequencies;
+        // column records if quantized
+        byte[] records;
+
+        public Chunk(int size) {
+            samples = new float[size];
+        }
+    }
+
+    // small enough that the first chunk is ready quickly, big enough to keep the per chunk overhead low
+    final static private int MAX_CHUNK_SIZE = 128 * 1024;
+    final static private long POLL_TIMEOUT = 50;
+
+    final private IFourierTransform fourierTransform;
+    final private int nWorkers;
+    final private int windowSize;
+    final private float stepFactor;
+    final private boolean quantized;
+    final private int stepWidth;
+    final private int chunkSize;
+
+    final private BlockingQueue<Chunk> freeChunks;
+    final private BlockingQueue<Chunk> filledChunks;
+    final private BlockingQueue<Chunk> doneChunks = new LinkedBlockingQueue<>();
+
+    private volatile boolean stopped = false;
+    // number of chunks, set by the reader when all chunks are read
+    private volatile int chunkCount = -1;
+    private volatile IOException readError = null;
+    private volatile RuntimeException transformError = null;
+    private volatile boolean transformInterrupted = false;
+
+    private FrequencyMapConverter(IFourierTransform fourierTransform, int nWorkers, int windowSize,
+                                  float stepFactor, boolean quantized) {
+        this.fourierTransform = fourierTransform;
+        this.nWorkers = Math.max(1, nWorkers);
+        this.windowSize = windowSize;
+        this.stepFactor = stepFactor;
+        this.quantized = quantized;
+        this.stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        final int maxSteps = Math.max(1, (MAX_CHUNK_SIZE - windowSize) / stepWidth + 1);
+        // choose the chunk size that big that it fits all the steps
+        this.chunkSize = (maxSteps - 1) * stepWidth + windowSize;
+
+        // one chunk per worker plus two so that the reader can fill a chunk while the writer writes one
+        final int poolSize = this.nWorkers + 2;
+        freeChunks = new ArrayBlockingQueue<>(poolSize);
+        filledChunks = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++)
+            freeChunks.add(new Chunk(chunkSize));
+    }
+
+    /**
+     * @param fourierTransform transform used for the conversion, must be thread safe if nWorkers > 1
+     * @param nWorkers number of threads that run the transform
+     * @param audioWavInputStream positioned at the start of the audio data
+     * @param decimationFactor the audio data is decimated by this factor before the transform, 1 for none
+     * @param windowSize size of the sampling window
+     * @param stepFactor see {@link AudioFrequencyMapAdapter#setStepFactor(float)}
+     * @param quantized if a quantized frequency file is written, see {@link FrequencyFileWriter#writeQuantized}
+     * @param outFile target frequency file
+     * @param cancelSignal can be null
+     * @param progressListener can be null
+     * @return false if the conversion has been canceled
+     * @throws IOException
+     */
+    static public boolean convert(IFourierTransform fourierTransform, int nWorkers,
+                                  AudioWavInputStream audioWavInputStream, int decimationFactor, int windowSize,
+                                  float stepFactor, boolean quantized, File outFile, ICancelSignal cancelSignal,
+                                  IProgressListener progressListener) throws IOException {
+        return new FrequencyMapConverter(fourierTransform, nWorkers, windowSize, stepFactor, quantized).run(
+                new Decimator.Reader(audioWavInputStream, decimationFactor), outFile, cancelSignal, progressListener);
+    }
+
+    private boolean run(final Decimator.Reader reader, File outFile, ICancelSignal cancelSignal,
+                        IProgressListener progressListener) throws IOException {
+        final List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(reader);
+            }
+        }));
+        for (int i = 0; i < nWorkers; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    transform();
+                }
+            }));
+        }
+
+        FrequencyFileWriter writer = new FrequencyFileWriter(outFile);
+        try {
+            for (Thread thread : threads)
+                thread.start();
+
+            // chunks that are done but can't be written yet because a previous chunk is still being transformed
+            final Map<Integer, Chunk> waitingChunks = new HashMap<>();
+            final int bunchSize = windowSize / 2;
+            int nextSequence = 0;
+            int bunchCount = 0;
+            while (chunkCount < 0 || nextSequence < chunkCount) {
+                if (cancelSignal != null && cancelSignal.isCanceled())
+                    return false;
+                if (readError != null)
+                    throw readError;
+                if (transformError != null)
+                    throw transformError;
+                if (transformInterrupted)
+                    throw new InterruptedIOException("Fourier transform has been interrupted");
+
+                Chunk chunk;
+                try {
+                    chunk = doneChunks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (chunk == null)
+                    continue;
+                waitingChunks.put(chunk.sequence, chunk);
+                while ((chunk = waitingChunks.remove(nextSequence)) != null) {
+                    if (chunk.records != null) {
+                        writer.write(chunk.records, 0, chunk.records.length);
+                        bunchCount += chunk.records.length / FrequencyQuantizer.getRecordSize(bunchSize);
+                    } else {
+                        writer.write(chunk.frequencies);
+                        bunchCount += chunk.frequencies.length / bunchSize;
+                    }
+                    chunk.frequencies = null;
+                    chunk.records = null;
+                    freeChunks.add(chunk);
+                    nextSequence++;
+                    if (progressListener != null)
+                        progressListener.onProgress(outFile, bunchCount);
+                }
+            }
+        } finally {
+            stopped = true;
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            writer.close();
+        }
+        return true;
+    }
+
+    private Chunk takeFreeChunk() throws InterruptedException {
+        while (!stopped) {
+            Chunk chunk = freeChunks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (chunk != null)
+                return chunk;
+        }
+        return null;
+    }
+
+    private void read(Decimator.Reader reader) {
+        // samples of the last chunk that are needed for the next window
+        final float[] carry = new float[chunkSize];
+        int carryLength = 0;
+        int sequence = 0;
+        try {
+            boolean endOfData = false;
+            while (!endOfData) {
+                final Chunk chunk = takeFreeChunk();
+                if (chunk == null)
+                    return;
+
+                System.arraycopy(carry, 0, chunk.samples, 0, carryLength);
+                int filled = carryLength;
+                while (filled < chunkSize) {
+                    final int read = reader.read(chunk.samples, filled, chunkSize - filled);
+                    if (read < 0) {
+                        endOfData = true;
+                        break;
+                    }
+                    filled += read;
+                }
+                if (filled < windowSize)
+                    break;
+
+                final int consumed = Fourier.getNSteps(filled, windowSize, stepWidth) * stepWidth;
+                carryLength = filled - consumed;
+                System.arraycopy(chunk.samples, consumed, carry, 0, carryLength);
+
+                chunk.length = filled;
+                chunk.sequence = sequence;
+                sequence++;
+                filledChunks.put(chunk);
+            }
+            chunkCount = sequence;
+        } catch (IOException e) {
+            readError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void transform() {
+        try {
+            while (!stopped) {
+                Chunk chunk = filledChunks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    // chunkCount is set after the last chunk has been queued, so check the queue once more
+                    if (chunkCount >= 0 || readError != null) {
+                        chunk = filledChunks.poll();
+                        if (chunk == null)
+                            return;
+                    } else
+                        continue;
+                }
+                chunk.frequencies = fourierTransform.transform(chunk.samples, chunk.length, windowSize, stepFactor);
+                if (chunk.frequencies == null) {
+                    // don't write an incomplete chunk
+                    transformInterrupted = true;
+                    return;
+                }
+                if (quantized) {
+                    chunk.records = FrequencyQuantizer.encodeRecords(chunk.frequencies, windowSize / 2);
+                    chunk.frequencies = null;
+                }
+                doneChunks.put(chunk);
+            }
+        } catch (RuntimeException e) {
+            transformError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
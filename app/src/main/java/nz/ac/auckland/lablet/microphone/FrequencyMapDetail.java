@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+
+/**
+ * Calculates a finer frequency map for the visible time span of a zoomed in frequency view.
+ *
+ * The global frequency map is calculated once for the whole recording. When the view is zoomed in that far that the
+ * global map has clearly fewer columns than the view has pixels, the visible span (plus a margin for dragging) is
+ * transformed again with a smaller step in the background. The result is set to a detail adapter that is painted on
+ * top of the global map, i.e., outside of the detail the global map stays visible.
+ *
+ * The last few details are cached so that zooming back and forth doesn't calculate them again.
+ *
+ * Must only be used from the UI thread.
+ */
+class FrequencyMapDetail {
+    static private class Detail {
+        final int decimationFactor;
+        final int windowSize;
+        final int stepWidth;
+        final long firstSample;
+        // sample after the start of the last window
+        final long endSample;
+        final float[] frequencies;
+
+        public Detail(int decimationFactor, int windowSize, int stepWidth, long firstSample, float[] frequencies) {
+            this.decimationFactor = decimationFactor;
+            this.windowSize = windowSize;
+            this.stepWidth = stepWidth;
+            this.firstSample = firstSample;
+            this.endSample = firstSample + (long)frequencies.length / (windowSize / 2) * stepWidth;
+            this.frequencies = frequencies;
+        }
+
+        public boolean covers(int decimationFactor, int windowSize, long first, long end, int maxStepWidth) {
+            return this.decimationFactor == decimationFactor && this.windowSize == windowSize && firstSample <= first
+                    && endSample >= end && stepWidth <= maxStepWidth;
+        }
+    }
+
+    final static private int CACHE_SIZE = 3;
+    // a detail has at most this many frequencies (16 MB)
+    final static private int MAX_DETAIL_FLOATS = 4 * 1024 * 1024;
+    // a detail is only calculated if its step is at least this much smaller than the step of the global map
+    final static private int MIN_REFINEMENT = 2;
+    // the smallest step factor supported by AudioFrequencyMapAdapter
+    final static private float MIN_STEP_FACTOR = 0.01f;
+    // wait till zooming or dragging pauses before starting a calculation
+    final static private long START_DELAY = 300;
+
+    final private File audioFile;
+    final private int audioSampleRate;
+    final private long audioSampleCount;
+    final private AudioFrequencyMapAdapter detailAdapter;
+    final private IFourierTransform fourierTransform = new ParallelFourier();
+    final private Handler handler = new Handler();
+    // most recently used first
+    final private LinkedList<Detail> cache = new LinkedList<>();
+
+    // parameters of the global map; sample rate and count are the ones after decimation
+    private int decimationFactor = 1;
+    private int sampleRate;
+    private long sampleCount;
+    private int windowSize = 0;
+    private int globalStepWidth = 0;
+    private Detail shownDetail = null;
+    private AsyncTask<Void, Void, Detail> task = null;
+    // canceled tasks may still be running, the transform is released when all are done
+    private int runningTasks = 0;
+    private Runnable pendingStart = null;
+    private boolean released = false;
+    // no details while the global map is converted
+    private boolean suspended = false;
+
+    // last visible range
+    private float left;
+    private float right;
+    private int viewWidth;
+
+    /**
+     * @param audioFile the recording
+     * @param sampleRate sample rate of the recording
+     * @param sampleCount number of samples of the recording
+     * @param detailAdapter receives the detail, is cleared if there is no detail for the visible range
+     */
+    public FrequencyMapDetail(File audioFile, int sampleRate, long sampleCount,
+                              AudioFrequencyMapAdapter detailAdapter) {
+        this.audioFile = audioFile;
+        this.audioSampleRate = sampleRate;
+        this.audioSampleCount = sampleCount;
+        this.sampleRate = sampleRate;
+        this.sampleCount = sampleCount;
+        this.detailAdapter = detailAdapter;
+    }
+
+    /**
+     * Sets the parameters of the global frequency map. Details of other window sizes or decimation factors are
+     * dropped.
+     *
+     * @param decimationFactor decimation factor of the global map, see {@link Decimator}
+     * @param windowSize window size of the global map
+     * @param stepFactor step factor of the global map
+     */
+    public void setGlobalMap(int decimationFactor, int windowSize, float stepFactor) {
+        if (this.windowSize != windowSize || this.decimationFactor != decimationFactor) {
+            cache.clear();
+            show(null);
+        }
+        this.decimationFactor = decimationFactor;
+        this.sampleRate = audioSampleRate / decimationFactor;
+        this.sampleCount = Decimator.getOutputCount(audioSampleCount, decimationFactor);
+        this.windowSize = windowSize;
+        this.globalStepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        this.suspended = false;
+    }
+
+    /**
+     * Hides the detail and stops calculating details till the next {@link #setGlobalMap}, i.e., a detail
+     * calculation doesn't compete with the conversion of the global map.
+     */
+    public void suspend() {
+        suspended = true;
+        if (pendingStart != null)
+            handler.removeCallbacks(pendingStart);
+        pendingStart = null;
+        if (task != null)
+            task.cancel(false);
+        show(null);
+    }
+
+    /**
+     * Is called when the visible range or the view size changed.
+     *
+     * @param left start of the visible range in ms
+     * @param right end of the visible range in ms
+     * @param viewWidth width of the view in pixels
+     */
+    public void update(float left, float right, int viewWidth) {
+        this.left = left;
+        this.right = right;
+        this.viewWidth = viewWidth;
+        if (pendingStart != null) {
+            handler.removeCallbacks(pendingStart);
+            pendingStart = null;
+        }
+        if (released || suspended || windowSize == 0 || viewWidth <= 0) {
+            show(null);
+            return;
+        }
+
+        final long first = Math.max(0, toSample(left));
+        // there is no window that starts after the last full window
+        final long end = Math.min(sampleCount - windowSize, toSample(right));
+        final long visibleSamples = end - first;
+        if (visibleSamples <= 0) {
+            show(null);
+            return;
+        }
+
+        // about one column per pixel, rounded to a power of two so that a detail can be reused while zooming
+        final int minStepWidth = (int)Math.ceil(windowSize * MIN_STEP_FACTOR);
+        int stepWidth = Integer.highestOneBit((int)Math.max(1, visibleSamples / viewWidth));
+        stepWidth = Math.max(stepWidth, minStepWidth);
+        // the visible part has to fit into a detail
+        final int bunchSize = windowSize / 2;
+        stepWidth = (int)Math.max(stepWidth, visibleSamples * bunchSize / MAX_DETAIL_FLOATS + 1);
+        if (stepWidth * MIN_REFINEMENT > globalStepWidth) {
+            // the global map is fine enough
+            show(null);
+            return;
+        }
+
+        final Detail detail = findDetail(first, end, stepWidth);
+        if (detail != null) {
+            show(detail);
+            return;
+        }
+
+        // keep the old detail till the new one is ready, it is still better than the global map
+        final long margin = Math.max(0, Math.min(visibleSamples / 2,
+                ((long)MAX_DETAIL_FLOATS / bunchSize * stepWidth - visibleSamples - windowSize) / 2));
+        final long detailFirst = Math.max(0, first - margin);
+        final long detailEnd = Math.min(sampleCount, end + margin + windowSize);
+        final int detailStepWidth = stepWidth;
+        pendingStart = new Runnable() {
+            @Override
+            public void run() {
+                pendingStart = null;
+                start(detailFirst, detailEnd, detailStepWidth);
+            }
+        };
+        handler.postDelayed(pendingStart, START_DELAY);
+    }
+
+    public void release() {
+        released = true;
+        if (pendingStart != null)
+            handler.removeCallbacks(pendingStart);
+        pendingStart = null;
+        cache.clear();
+        shownDetail = null;
+        if (task != null)
+            task.cancel(false);
+        if (runningTasks == 0)
+            fourierTransform.release();
+    }
+
+    private long toSample(float time) {
+        return (long)((double)time * sampleRate / 1000);
+    }
+
+    private Detail findDetail(long first, long end, int maxStepWidth) {
+        Iterator<Detail> iterator = cache.iterator();
+        while (iterator.hasNext()) {
+            final Detail detail = iterator.next();
+            if (!detail.covers(decimationFactor, windowSize, first, end, maxStepWidth))
+                continue;
+            iterator.remove();
+            cache.addFirst(detail);
+            return detail;
+        }
+        return null;
+    }
+
+    private void show(Detail detail) {
+        if (detail == shownDetail)
+            return;
+        shownDetail = detail;
+        if (detail == null) {
+            detailAdapter.clear();
+            return;
+        }
+        detailAdapter.setSampleRate(audioSampleRate / detail.decimationFactor);
+        detailAdapter.setStepFactor((float)detail.stepWidth / detail.windowSize);
+        detailAdapter.setDetailData(detail.frequencies, detail.windowSize / 2,
+                (float)((double)detail.firstSample * 1000 * detail.decimationFactor / audioSampleRate));
+    }
+
+    private void start(final long first, final long end, final int stepWidth) {
+        if (task != null)
+            task.cancel(false);
+
+        final int decimationFactor = this.decimationFactor;
+        final int windowSize = this.windowSize;
+        task = new AsyncTask<Void, Void, Detail>() {
+            @Override
+            protected Detail doInBackground(Void... params) {
+                try {
+                    return calculate(decimationFactor, windowSize, stepWidth, first, end);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Detail detail) {
+                onTaskFinished(this);
+                if (released || detail == null || detail.windowSize != FrequencyMapDetail.this.windowSize
+                        || detail.decimationFactor != FrequencyMapDetail.this.decimationFactor)
+                    return;
+                cache.addFirst(detail);
+                while (cache.size() > CACHE_SIZE)
+                    cache.removeLast();
+                // the range might have changed in the meantime
+                update(left, right, viewWidth);
+            }
+
+            @Override
+            protected void onCancelled(Detail detail) {
+                onTaskFinished(this);
+            }
+        };
+        runningTasks++;
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onTaskFinished(AsyncTask<Void, Void, Detail> finishedTask) {
+        if (task == finishedTask)
+            task = null;
+        runningTasks--;
+        if (released && runningTasks == 0)
+            fourierTransform.release();
+    }
+
+    private Detail calculate(int decimationFactor, int windowSize, int stepWidth, long first, long end)
+            throws IOException {
+        final float[] samples = new float[(int)(end - first)];
+        final int length;
+        AudioWavInputStream inputStream = new AudioWavInputStream(audioFile);
+        try {
+            length = Decimator.Reader.read(inputStream, decimationFactor, first, samples, samples.length);
+        } finally {
+            inputStream.close();
+        }
+        if (length < windowSize)
+            return null;
+
+        final float[] frequencies = fourierTransform.transform(samples, length, windowSize,
+                (float)stepWidth / windowSize);
+        if (frequencies == null)
+            return null;
+        return new Detail(decimationFactor, windowSize, stepWidth, first, frequencies);
+    }
+}
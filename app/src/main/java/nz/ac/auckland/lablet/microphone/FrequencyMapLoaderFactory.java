@@ -12,38 +12,68 @@ import android.os.AsyncTask;
 import nz.ac.auckland.lablet.misc.AudioWavInputStream;
 
 import java.io.*;
-import java.nio.channels.Channels;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 public class FrequencyMapLoaderFactory {
     final static int MAX_IN_MEMORY_FILE_SIZE = 9 * 1024 * 1024;
+    // a quantized map only takes about a quarter of the memory of a float map
+    final static int MAX_IN_MEMORY_QUANTIZED_FILE_SIZE = 4 * MAX_IN_MEMORY_FILE_SIZE;
+
     static IFrequencyMapLoader create(AudioFrequencyMapAdapter audioFrequencyMapAdapter, File wavFile) {
-        if (wavFile.length() < MAX_IN_MEMORY_FILE_SIZE)
-            return new MemoryFrequencyMapLoader(audioFrequencyMapAdapter);
+        final long fileSize = wavFile.length();
+        if (fileSize < MAX_IN_MEMORY_FILE_SIZE)
+            return new MemoryFrequencyMapLoader(audioFrequencyMapAdapter, wavFile);
+        if (fileSize < MAX_IN_MEMORY_QUANTIZED_FILE_SIZE)
+            return new QuantizedMemoryFrequencyMapLoader(audioFrequencyMapAdapter, wavFile);
 
-        return new FileFrequencyMapLoader(audioFrequencyMapAdapter);
+        return new FileFrequencyMapLoader(audioFrequencyMapAdapter, wavFile);
     }
 }
 
 interface IFrequencyMapLoader {
     interface IFrequenciesUpdatedListener {
+        /**
+         * Is called once when a first part of the frequencies can be shown, not all loaders provide partial results.
+         */
+        void onPartialFrequencies();
         void onFrequenciesUpdated(boolean canceled);
     }
 
     void loadWavFile(AudioWavInputStream audioWavInputStream, Runnable onLoadedCallback);
-    void updateFrequencies(Context context, float stepFactor, int windowSize, IFrequenciesUpdatedListener listener);
+    /**
+     * Transforms the audio data.
+     *
+     * @param decimationFactor the audio data is decimated by this factor before the transform, see {@link Decimator}
+     * @param quantized if the frequencies are stored with one byte per magnitude, see {@link FrequencyQuantizer}
+     */
+    void updateFrequencies(Context context, int decimationFactor, float stepFactor, int windowSize,
+                           boolean quantized, IFrequenciesUpdatedListener listener);
     void release();
 }
 
+/**
+ * Converts the wav file into a frequency file, like the {@link FileFrequencyMapLoader}, and loads the frequencies
+ * bunch by bunch into memory.
+ *
+ * Neither the audio data nor all frequencies are held as float arrays, i.e., a quantized map only takes the memory
+ * of the quantized bunches in the adapter.
+ */
 class MemoryFrequencyMapLoader implements IFrequencyMapLoader {
-    private float[] amplitudes = null;
+    private int sampleRate;
+    private long sampleCount;
     final private AudioFrequencyMapAdapter audioFrequencyMapAdapter;
+    final private File wavFile;
 
     AsyncTask<Void, DataContainer, Void> updateAsyncTask = null;
 
-    public MemoryFrequencyMapLoader(AudioFrequencyMapAdapter audioFrequencyMapAdapter) {
+    public MemoryFrequencyMapLoader(AudioFrequencyMapAdapter audioFrequencyMapAdapter, File wavFile) {
         this.audioFrequencyMapAdapter = audioFrequencyMapAdapter;
+        this.wavFile = wavFile;
     }
 
     class DataContainer {
@@ -54,42 +84,15 @@ class MemoryFrequencyMapLoader implements IFrequencyMapLoader {
     }
 
     @Override
-    public void loadWavFile(final AudioWavInputStream audioWavInputStream, final Runnable onLoadedCallback) {
-        AsyncTask<Void, DataContainer, Void> asyncTask = new AsyncTask<Void, DataContainer, Void>() {
-            float[] data;
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    final int size = audioWavInputStream.getSize() / AudioWavInputStream.BYTES_PER_SAMPLE;
-                    BufferedInputStream bufferedInputStream = new BufferedInputStream(audioWavInputStream);
-                    final byte[] convertByteBuffer = new byte[2];
-                    final float[] convertFloatBuffer = new float[1];
-                    data = new float[size];
-                    for (int i = 0; i < size; i++) {
-                        data[i] = AudioWavInputStream.readFloatAmplitude(bufferedInputStream, convertByteBuffer,
-                                convertFloatBuffer);
-                    }
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                super.onPostExecute(aVoid);
-
-                amplitudes = data;
-
-                onLoadedCallback.run();
-            }
-        };
-        asyncTask.execute();
+    public void loadWavFile(AudioWavInputStream audioWavInputStream, Runnable onLoadedCallback) {
+        sampleRate = audioWavInputStream.getSampleRate();
+        sampleCount = audioWavInputStream.getSampleCount();
+        onLoadedCallback.run();
     }
 
     @Override
-    public void updateFrequencies(final Context context, final float stepFactor, final int windowSize,
+    public void updateFrequencies(final Context context, final int decimationFactor, final float stepFactor,
+                                  final int windowSize, final boolean quantized,
                                   final IFrequenciesUpdatedListener listener) {
         // old task running? cancel and return, new job is triggered afterwards
         if (updateAsyncTask != null) {
@@ -99,32 +102,41 @@ class MemoryFrequencyMapLoader implements IFrequencyMapLoader {
 
         audioFrequencyMapAdapter.clear();
         audioFrequencyMapAdapter.setStepFactor(stepFactor);
-
-        final boolean useRenderScript = true;
+        audioFrequencyMapAdapter.setSampleRate(sampleRate / decimationFactor);
+        audioFrequencyMapAdapter.setQuantized(quantized);
+        final long decimatedCount = Decimator.getOutputCount(sampleCount, decimationFactor);
+        audioFrequencyMapAdapter.setExpectedBunchCount(Fourier.getNSteps((int)decimatedCount, windowSize,
+                Fourier.getStepWidth(windowSize, stepFactor)));
 
         updateAsyncTask = new AsyncTask<Void, DataContainer, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
-                float[] frequencies;
-                if (useRenderScript) {
-                    final FourierRenderScript fourierRenderScript = new FourierRenderScript(context);
-                    frequencies = fourierRenderScript.renderScriptFFT(amplitudes, amplitudes.length, windowSize,
-                            stepFactor);
-                    fourierRenderScript.release();
-                } else
-                    frequencies = Fourier.transform(amplitudes, windowSize, stepFactor);
-
-                int freqSampleSize = windowSize / 2;
-                for (int i = 0; i < frequencies.length; i += freqSampleSize) {
-                    final float[] bunch = Arrays.copyOfRange(frequencies, i, i + freqSampleSize);
-                    if (isCancelled())
+                try {
+                    File outFile = FrequencyMapCache.get(context).getOrCreate(context, wavFile, decimationFactor,
+                            windowSize, stepFactor, quantized, new FrequencyMapConverter.ICancelSignal() {
+                                @Override
+                                public boolean isCanceled() {
+                                    return isCancelled();
+                                }
+                            }, null);
+                    if (outFile == null || isCancelled())
                         return null;
-                    publishProgress(new DataContainer(bunch));
+                    publishFile(outFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-
                 return null;
             }
 
+            private void publishFile(File file) throws IOException {
+                FrequencyFileReader reader = new FrequencyFileReader(file, windowSize, quantized);
+                for (int i = 0; i < reader.getBunchCount(); i++) {
+                    if (isCancelled())
+                        return;
+                    publishProgress(new DataContainer(reader.getBunch(i)));
+                }
+            }
+
             @Override
             protected void onProgressUpdate(DataContainer... values) {
                 audioFrequencyMapAdapter.addData(values[0].data);
@@ -133,6 +145,10 @@ class MemoryFrequencyMapLoader implements IFrequencyMapLoader {
             @Override
             protected void onPostExecute(Void aVoid) {
                 super.onPostExecute(aVoid);
+                // decide the last columns, there is no more data
+                OnsetDetector onsetDetector = audioFrequencyMapAdapter.getOnsetDetector();
+                if (onsetDetector != null)
+                    onsetDetector.flush();
                 onFinished(listener, false);
             }
 
@@ -147,7 +163,7 @@ class MemoryFrequencyMapLoader implements IFrequencyMapLoader {
 
     @Override
     public void release() {
-        amplitudes = null;
+
     }
 
     private void onFinished(IFrequenciesUpdatedListener listener, boolean canceled) {
@@ -156,24 +172,98 @@ class MemoryFrequencyMapLoader implements IFrequencyMapLoader {
     }
 }
 
+/**
+ * Keeps quantized maps in memory and reads float maps from the frequency file. Is used for recordings whose float
+ * maps are too big for the memory but whose quantized maps are not.
+ */
+class QuantizedMemoryFrequencyMapLoader implements IFrequencyMapLoader {
+    final private MemoryFrequencyMapLoader memoryLoader;
+    final private FileFrequencyMapLoader fileLoader;
+
+    public QuantizedMemoryFrequencyMapLoader(AudioFrequencyMapAdapter audioFrequencyMapAdapter, File wavFile) {
+        memoryLoader = new MemoryFrequencyMapLoader(audioFrequencyMapAdapter, wavFile);
+        fileLoader = new FileFrequencyMapLoader(audioFrequencyMapAdapter, wavFile);
+    }
+
+    @Override
+    public void loadWavFile(AudioWavInputStream audioWavInputStream, final Runnable onLoadedCallback) {
+        memoryLoader.loadWavFile(audioWavInputStream, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        fileLoader.loadWavFile(audioWavInputStream, onLoadedCallback);
+    }
+
+    @Override
+    public void updateFrequencies(Context context, int decimationFactor, float stepFactor, int windowSize,
+                                  boolean quantized, IFrequenciesUpdatedListener listener) {
+        // the other loader might still be running, cancel it like a loader cancels its own old task
+        if (quantized && fileLoader.updateAsyncTask != null) {
+            fileLoader.updateAsyncTask.cancel(false);
+            return;
+        }
+        if (!quantized && memoryLoader.updateAsyncTask != null) {
+            memoryLoader.updateAsyncTask.cancel(false);
+            return;
+        }
+        final IFrequencyMapLoader loader = quantized ? memoryLoader : fileLoader;
+        loader.updateFrequencies(context, decimationFactor, stepFactor, windowSize, quantized, listener);
+    }
+
+    @Override
+    public void release() {
+        memoryLoader.release();
+        fileLoader.release();
+    }
+}
+
+/**
+ * Converts the wav file into a frequency file and reads the frequency data from this file.
+ *
+ * Frequency files are kept in the {@link FrequencyMapCache}, i.e., switching back to previous settings or reopening
+ * a recording does not require a new conversion.
+ */
 class FileFrequencyMapLoader implements IFrequencyMapLoader {
+    // min time between showing the progress of a conversion
+    final static private long PUBLISH_INTERVAL = 500;
+    // partial results are rendered without pyramid, so they are only shown again when the file has grown this much
+    final static private int PUBLISH_GROWTH = 2;
+
     final private AudioFrequencyMapAdapter audioFrequencyMapAdapter;
-    private AudioWavInputStream audioWavInputStream;
-    private File frequencyFile = null;
-    AsyncTask<Void, File, Void> updateAsyncTask = null;
+    final private File wavFile;
+    private int sampleRate;
+    AsyncTask<Void, FileData, Void> updateAsyncTask = null;
+
+    static class FileData {
+        final public FrequencyFileReader reader;
+        final public FrequencyMapPyramid pyramid;
+        final public MagnitudeHistogram histogram;
+        final public OnsetDetector onsetDetector;
+
+        public FileData(FrequencyFileReader reader, FrequencyMapPyramid pyramid, MagnitudeHistogram histogram,
+                        OnsetDetector onsetDetector) {
+            this.reader = reader;
+            this.pyramid = pyramid;
+            this.histogram = histogram;
+            this.onsetDetector = onsetDetector;
+        }
+    }
 
-    public FileFrequencyMapLoader(AudioFrequencyMapAdapter audioFrequencyMapAdapter) {
+    public FileFrequencyMapLoader(AudioFrequencyMapAdapter audioFrequencyMapAdapter, File wavFile) {
         this.audioFrequencyMapAdapter = audioFrequencyMapAdapter;
+        this.wavFile = wavFile;
     }
 
     @Override
     public void loadWavFile(AudioWavInputStream audioWavInputStream, Runnable onLoadedCallback) {
-        this.audioWavInputStream = audioWavInputStream;
+        sampleRate = audioWavInputStream.getSampleRate();
         onLoadedCallback.run();
     }
 
     @Override
-    public void updateFrequencies(final Context context, final float stepFactor, final int windowSize,
+    public void updateFrequencies(final Context context, final int decimationFactor, final float stepFactor,
+                                  final int windowSize, final boolean quantized,
                                   final IFrequenciesUpdatedListener listener) {
         // old task running? cancel and return, new job is triggered afterwards
         if (updateAsyncTask != null) {
@@ -183,124 +273,83 @@ class FileFrequencyMapLoader implements IFrequencyMapLoader {
 
         audioFrequencyMapAdapter.clear();
         audioFrequencyMapAdapter.setStepFactor(stepFactor);
+        audioFrequencyMapAdapter.setSampleRate(sampleRate / decimationFactor);
+
+        updateAsyncTask = new AsyncTask<Void, FileData, Void>() {
+            private boolean partialNotified = false;
 
-        updateAsyncTask = new AsyncTask<Void, File, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
-                File outFile = null;
                 try {
-                    outFile = convertToFourier(context, audioWavInputStream, windowSize, stepFactor);
+                    File outFile = FrequencyMapCache.get(context).getOrCreate(context, wavFile, decimationFactor,
+                            windowSize, stepFactor, quantized, new FrequencyMapConverter.ICancelSignal() {
+                                @Override
+                                public boolean isCanceled() {
+                                    return isCancelled();
+                                }
+                            }, new FrequencyMapConverter.IProgressListener() {
+                                private long lastPublishTime = 0;
+                                private int lastBunchCount = 0;
+
+                                @Override
+                                public void onProgress(File outFile, int bunchCount) {
+                                    // show the first chunk right away, afterwards limit the number of re-renderings
+                                    final long now = System.currentTimeMillis();
+                                    if (lastPublishTime > 0 && (now - lastPublishTime < PUBLISH_INTERVAL
+                                            || bunchCount < lastBunchCount * PUBLISH_GROWTH))
+                                        return;
+                                    lastPublishTime = now;
+                                    lastBunchCount = bunchCount;
+                                    try {
+                                        publishProgress(new FileData(new FrequencyFileReader(outFile, windowSize,
+                                                quantized), null, null, null));
+                                    } catch (IOException e) {
+                                        e.printStackTrace();
+                                    }
+                                }
+                            });
+                    if (outFile == null || isCancelled())
+                        return null;
+                    FrequencyFileReader reader = new FrequencyFileReader(outFile, windowSize, quantized);
+                    // the pass that builds the pyramid fills the magnitude histogram and finds the onsets as well
+                    MagnitudeHistogram histogram = new MagnitudeHistogram();
+                    final float columnPeriod = 1000f * windowSize * stepFactor * decimationFactor / sampleRate;
+                    OnsetDetector onsetDetector = new OnsetDetector(columnPeriod);
+                    FrequencyMapPyramid pyramid = FrequencyMapPyramid.build(reader, FrequencyMapPyramid.MAX_FLOATS,
+                            histogram, onsetDetector);
+                    onsetDetector.flush();
+                    publishProgress(new FileData(reader, pyramid, histogram, onsetDetector));
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-
-                publishProgress(outFile);
                 return null;
             }
 
             @Override
-            protected void onProgressUpdate(File... values) {
-                deleteTmpFile();
-
-                if (values[0] == null)
+            protected void onProgressUpdate(FileData... values) {
+                if (isCancelled())
                     return;
-
-                try {
-                    frequencyFile = values[0];
-                    audioFrequencyMapAdapter.setDataFile(frequencyFile, windowSize);
-                    listener.onFrequenciesUpdated(false);
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
+                final FileData data = values[0];
+                audioFrequencyMapAdapter.setDataFile(data.reader, data.pyramid, data.histogram, data.onsetDetector);
+                // the final data has a pyramid, the listener is notified in onPostExecute
+                if (data.pyramid != null || partialNotified)
+                    return;
+                partialNotified = true;
+                listener.onPartialFrequencies();
             }
 
             @Override
             protected void onPostExecute(Void aVoid) {
                 super.onPostExecute(aVoid);
-                onFinish();
+                updateAsyncTask = null;
+                listener.onFrequenciesUpdated(false);
             }
 
             @Override
             protected void onCancelled() {
                 super.onCancelled();
-                onFinish();
-                listener.onFrequenciesUpdated(true);
-            }
-
-            private void onFinish() {
                 updateAsyncTask = null;
-                try {
-                    audioWavInputStream.rewind();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            private File convertToFourier(Context context, AudioWavInputStream audioWavInputStream, int windowSize,
-                                         float stepFactor) throws IOException {
-                File outputDir = context.getCacheDir();
-                File outputFile = File.createTempFile("FrequencyData", ".freq", outputDir);
-
-                if (!convertToFourier(context, audioWavInputStream, windowSize, stepFactor, outputFile)) {
-                    outputFile.delete();
-                    outputFile = null;
-                }
-
-                return outputFile;
-            }
-
-            private boolean convertToFourier(Context context, AudioWavInputStream audioWavInputStream, int windowSize,
-                                         float stepFactor, File outFile) throws IOException {
-                final FourierRenderScript fourierRenderScript = new FourierRenderScript(context);
-
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(audioWavInputStream);
-
-                final int maxBunchSize = 1024 * 1024;
-                final int stepWidth =  (int)(stepFactor * windowSize);
-                final int maxSteps = (maxBunchSize - windowSize) / stepWidth + 1;
-                // choose the bunch size that big that it fits all the steps
-                final int bunchSize =  (maxSteps - 1) * stepWidth + windowSize;
-                final float[] buffer = new float[bunchSize];
-
-                final int totalSize = audioWavInputStream.getSize() / AudioWavInputStream.BYTES_PER_SAMPLE;
-                final int overlap = windowSize - stepWidth;
-                final float[] overlapBuffer = new float[overlap];
-                final byte[] convertByteBuffer = new byte[2];
-
-                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
-                        new FileOutputStream(outFile)));
-                try {
-                    for (int i = 0; i < totalSize;) {
-                        if (isCancelled())
-                            return false;
-
-                        final int remainingData = totalSize - i;
-                        if (remainingData < windowSize)
-                            break;
-                        int nRead = Math.min(remainingData, bunchSize);
-                        i += nRead - overlap;
-
-                        int a = 0;
-                        if (i > 0) {
-                            // copy the part that we already read
-                            System.arraycopy(buffer, buffer.length - overlap, overlapBuffer, 0, overlap);
-                            System.arraycopy(overlapBuffer, 0, buffer, 0, overlap);
-                            a = overlap;
-                        }
-                        for (; a < nRead; a++) {
-                            buffer[a] = AudioWavInputStream.readFloatAmplitude(bufferedInputStream, convertByteBuffer,
-                                    overlapBuffer);
-                        }
-
-                        final float[] frequencies = fourierRenderScript.renderScriptFFT(buffer, nRead, windowSize,
-                                stepFactor);
-                        for (a = 0; a < frequencies.length; a++)
-                            outputStream.writeFloat(frequencies[a]);
-                    }
-                } finally {
-                    outputStream.close();
-                }
-                return true;
+                listener.onFrequenciesUpdated(true);
             }
         };
         updateAsyncTask.execute();
@@ -308,42 +357,93 @@ class FileFrequencyMapLoader implements IFrequencyMapLoader {
 
     @Override
     public void release() {
-        deleteTmpFile();
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        release();
-    }
 
-    private void deleteTmpFile() {
-        if (frequencyFile == null)
-            return;
-        frequencyFile.delete();
-        frequencyFile = null;
     }
 }
 
 
-
+/**
+ * Reads a frequency file through memory mapped float buffers.
+ *
+ * The frequency file is written in native byte order by the {@link FrequencyFileWriter} so that the mapped data
+ * can be read without any conversion. Files bigger than the address space that can be mapped at once are mapped in
+ * segments that each contain a whole number of bunches.
+ *
+ * Quantized frequency files contain column records (see {@link FrequencyQuantizer}) that are decoded when a bunch is
+ * read, i.e., only a quarter of the bytes are read.
+ */
 class FrequencyFileReader implements AudioFrequencyMapAdapter.IDataBackend {
-    final RandomAccessFile file;
-    final long fileLength;
-    final int bunchSize;
+    final private ByteBuffer[] segments;
+    // float views on the segments, null for quantized files
+    final private FloatBuffer[] floatSegments;
+    final private boolean quantized;
+    final private int bunchesPerSegment;
+    final private long fileLength;
+    final private int bunchSize;
+    final private int bunchBytes;
+    // codes of a quantized bunch
+    final private byte[] codeBuffer;
 
     final static int FLOAT_BYTES = 4;
+    final static private int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public FrequencyFileReader(File file, int windowSize) throws IOException {
+        this(file, windowSize, false);
+    }
 
-    public FrequencyFileReader(File file, int windowSize) throws FileNotFoundException {
-        this.file = new RandomAccessFile(file, "r");
+    /**
+     * @param file the frequency file
+     * @param windowSize window size the file has been calculated with
+     * @param quantized if the file contains column records, see {@link FrequencyFileWriter#writeQuantized}
+     * @throws IOException
+     */
+    public FrequencyFileReader(File file, int windowSize, boolean quantized) throws IOException {
         this.fileLength = file.length();
         this.bunchSize = windowSize / 2;
+        this.quantized = quantized;
+        this.bunchBytes = quantized ? FrequencyQuantizer.getRecordSize(bunchSize) : bunchSize * FLOAT_BYTES;
+        this.codeBuffer = quantized ? new byte[bunchSize] : null;
+
+        bunchesPerSegment = Math.max(1, MAX_SEGMENT_SIZE / bunchBytes);
+        final long bunchCount = fileLength / bunchBytes;
+        segments = new ByteBuffer[(int)((bunchCount + bunchesPerSegment - 1) / bunchesPerSegment)];
+        floatSegments = quantized ? null : new FloatBuffer[segments.length];
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            for (int i = 0; i < segments.length; i++) {
+                final long start = (long)i * bunchesPerSegment * bunchBytes;
+                final long size = Math.min(bunchesPerSegment, bunchCount - (long)i * bunchesPerSegment) * bunchBytes;
+                MappedByteBuffer mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                mappedBuffer.order(ByteOrder.nativeOrder());
+                segments[i] = mappedBuffer;
+                if (floatSegments != null)
+                    floatSegments[i] = mappedBuffer.asFloatBuffer();
+            }
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
     }
 
-    private FrequencyFileReader(RandomAccessFile file, long fileLength, int bunchSize) {
-        this.file = file;
-        this.fileLength = fileLength;
-        this.bunchSize = bunchSize;
+    // clones get their own buffer views because relative bulk reads change the buffer position
+    private FrequencyFileReader(FrequencyFileReader parent) {
+        this.segments = new ByteBuffer[parent.segments.length];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = parent.segments[i].duplicate().order(ByteOrder.nativeOrder());
+        if (parent.floatSegments != null) {
+            this.floatSegments = new FloatBuffer[parent.floatSegments.length];
+            for (int i = 0; i < floatSegments.length; i++)
+                floatSegments[i] = parent.floatSegments[i].duplicate();
+        } else
+            this.floatSegments = null;
+        this.quantized = parent.quantized;
+        this.bunchesPerSegment = parent.bunchesPerSegment;
+        this.fileLength = parent.fileLength;
+        this.bunchSize = parent.bunchSize;
+        this.bunchBytes = parent.bunchBytes;
+        this.codeBuffer = parent.codeBuffer != null ? new byte[parent.codeBuffer.length] : null;
     }
 
     @Override
@@ -363,31 +463,47 @@ class FrequencyFileReader implements AudioFrequencyMapAdapter.IDataBackend {
 
     @Override
     public float[] getBunch(int index) {
-        float[] buffer = new float[bunchSize];
-        try {
-            file.seek(index * FLOAT_BYTES * bunchSize);
-
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
-                    file.getChannel())));
-
-            for (int i = 0; i < bunchSize; i++)
-                buffer[i] = dataInputStream.readFloat();
+        return getBunch(index, null);
+    }
 
+    @Override
+    public float[] getBunch(int index, float[] buffer) {
+        if (buffer == null || buffer.length < bunchSize)
+            buffer = new float[bunchSize];
+        if (quantized) {
+            final ByteBuffer segment = segments[index / bunchesPerSegment];
+            FrequencyQuantizer.decodeRecord(segment, (index % bunchesPerSegment) * bunchBytes, bunchSize, codeBuffer,
+                    buffer);
             return buffer;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
         }
+        FloatBuffer bunch = getBunchBuffer(index);
+        bunch.get(buffer, 0, bunchSize);
+        return buffer;
+    }
+
+    /**
+     * Returns a view on the mapped data of a bunch without copying it.
+     *
+     * Only available for not quantized files.
+     *
+     * @param index bunch index
+     * @return a buffer that is positioned at the start of the bunch and whose limit is the end of the bunch
+     */
+    public FloatBuffer getBunchBuffer(int index) {
+        FloatBuffer segment = floatSegments[index / bunchesPerSegment];
+        final int position = (index % bunchesPerSegment) * bunchSize;
+        segment.limit(position + bunchSize);
+        segment.position(position);
+        return segment;
     }
 
     @Override
     public int getBunchCount() {
-        return (int)(fileLength / FLOAT_BYTES) / bunchSize;
+        return (int)(fileLength / bunchBytes);
     }
 
     @Override
     public AudioFrequencyMapAdapter.IDataBackend clone() {
-        return new FrequencyFileReader(file, fileLength, bunchSize);
+        return new FrequencyFileReader(this);
     }
 }
-
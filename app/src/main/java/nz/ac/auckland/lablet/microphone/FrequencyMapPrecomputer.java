@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Computes the frequency maps of neighbouring Fourier settings in the background, so that switching to them only
+ * needs a {@link FrequencyMapCache} look up.
+ *
+ * There is at most one low priority worker. It is started after the map of the current settings has been loaded,
+ * i.e., it doesn't compete with the conversion that is shown, and it is canceled as soon as new settings are
+ * requested. The precomputed maps are added to the cache as least recently used files, so they never push out maps
+ * that have been used, and all maps precomputed for the audio file together only take a share of the cache size.
+ *
+ * Must only be used from the UI thread.
+ */
+class FrequencyMapPrecomputer {
+    static class Settings {
+        final public int windowSize;
+        final public float stepFactor;
+
+        public Settings(int windowSize, float stepFactor) {
+            this.windowSize = windowSize;
+            this.stepFactor = stepFactor;
+        }
+    }
+
+    // share of the cache size that all precomputed maps may take
+    final static private int CACHE_SHARE = 4;
+
+    private class Job implements Runnable, FrequencyMapConverter.ICancelSignal {
+        final private int decimationFactor;
+        final private boolean quantized;
+        final private Settings current;
+        final private List<Settings> neighbours;
+        private volatile boolean canceled = false;
+
+        public Job(int decimationFactor, boolean quantized, Settings current, List<Settings> neighbours) {
+            this.decimationFactor = decimationFactor;
+            this.quantized = quantized;
+            this.current = current;
+            this.neighbours = neighbours;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final FrequencyMapCache cache = FrequencyMapCache.get(context);
+                final String audioHash = FrequencyMapCache.hashAudioFile(wavFile);
+                // the current map failed to load or has already been pushed out, the neighbours are not needed then
+                if (!cache.contains(audioHash, decimationFactor, current.windowSize, current.stepFactor, quantized))
+                    return;
+
+                final long budget = cache.getMaxSize() / CACHE_SHARE;
+                for (Settings settings : neighbours) {
+                    if (canceled)
+                        return;
+                    if (cache.contains(audioHash, decimationFactor, settings.windowSize, settings.stepFactor,
+                            quantized))
+                        continue;
+                    final long size = getFileSize(settings);
+                    if (precomputedSize.get() + size > budget)
+                        continue;
+                    if (cache.getOrCreate(context, wavFile, decimationFactor, settings.windowSize,
+                            settings.stepFactor, quantized, this, null, true) != null)
+                        precomputedSize.addAndGet(size);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // size of the frequency file, there is no need to convert a map to know it
+        private long getFileSize(Settings settings) {
+            final int stepWidth = Fourier.getStepWidth(settings.windowSize, settings.stepFactor);
+            final long decimatedCount = Decimator.getOutputCount(sampleCount, decimationFactor);
+            final int bunchCount = Fourier.getNSteps((int)decimatedCount, settings.windowSize, stepWidth);
+            final int bunchSize = settings.windowSize / 2;
+            final int bunchBytes = quantized ? FrequencyQuantizer.getRecordSize(bunchSize)
+                    : bunchSize * FrequencyFileReader.FLOAT_BYTES;
+            return (long)bunchCount * bunchBytes;
+        }
+    }
+
+    final private Context context;
+    final private File wavFile;
+    final private long sampleCount;
+    // total size of the maps precomputed by all jobs; a canceled job may still finish its current map
+    final private AtomicLong precomputedSize = new AtomicLong(0);
+    private Job job = null;
+
+    /**
+     * @param context used to access the cache
+     * @param wavFile the audio file
+     * @param sampleCount number of samples in the audio file
+     */
+    public FrequencyMapPrecomputer(Context context, File wavFile, long sampleCount) {
+        this.context = context.getApplicationContext();
+        this.wavFile = wavFile;
+        this.sampleCount = sampleCount;
+    }
+
+    /**
+     * Cancels the previous precomputation and starts a new one.
+     *
+     * @param decimationFactor see {@link Decimator}
+     * @param quantized see {@link FrequencyQuantizer}
+     * @param current settings of the shown map, nothing is precomputed if this map is not in the cache
+     * @param neighbours settings to precompute, the most likely first
+     */
+    public void start(int decimationFactor, boolean quantized, Settings current, List<Settings> neighbours) {
+        cancel();
+        job = new Job(decimationFactor, quantized, current, new ArrayList<>(neighbours));
+        Thread thread = new Thread(job);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Cancels a running precomputation; a partly converted map is discarded.
+     */
+    public void cancel() {
+        if (job == null)
+            return;
+        job.canceled = true;
+        job = null;
+    }
+}
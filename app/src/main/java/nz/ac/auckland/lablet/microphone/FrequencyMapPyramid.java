@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Time aggregated frequency columns at 2x, 4x, 8x... reductions (a mipmap of the frequency map).
+ *
+ * A column at reduction r holds the per bin maximum of r consecutive base columns. The maximum is used so that short
+ * events stay visible in a zoomed out view. Columns are added incrementally; only completed aggregates are stored, the
+ * base columns at the end that do not fill a whole aggregate yet are not part of a level.
+ *
+ * The levels only grow, so a snapshot can share the column arrays with the original.
+ */
+class FrequencyMapPyramid {
+    static private class Level {
+        float[] data;
+        int count = 0;
+
+        public Level(int capacity) {
+            data = new float[capacity];
+        }
+
+        private Level(Level parent) {
+            data = parent.data;
+            count = parent.count;
+        }
+    }
+
+    final static private int MAX_LEVELS = 24;
+    // default memory budget of a pyramid
+    final static public long MAX_FLOATS = 4 * 1024 * 1024;
+
+    final private int bunchSize;
+    // reduction of the first stored level is 2^firstLevel
+    final private int firstLevel;
+    final private List<Level> levels = new ArrayList<>();
+
+    // partially aggregated columns of each level and the number of columns merged into them
+    final private List<float[]> pending = new ArrayList<>();
+    final private int[] pendingCount = new int[MAX_LEVELS];
+
+    /**
+     * @param bunchSize number of frequencies per column
+     * @param firstLevel the first stored level has a reduction of 2^firstLevel, must be at least 1
+     */
+    public FrequencyMapPyramid(int bunchSize, int firstLevel) {
+        this.bunchSize = bunchSize;
+        this.firstLevel = firstLevel;
+    }
+
+    private FrequencyMapPyramid(FrequencyMapPyramid parent) {
+        this.bunchSize = parent.bunchSize;
+        this.firstLevel = parent.firstLevel;
+        for (Level level : parent.levels)
+            levels.add(new Level(level));
+    }
+
+    /**
+     * @param bunchCount number of base columns
+     * @param bunchSize number of frequencies per column
+     * @param maxFloats memory budget of the pyramid
+     * @return the lowest first level that keeps the pyramid within the budget
+     */
+    static public int getFirstLevel(long bunchCount, int bunchSize, long maxFloats) {
+        // all levels together store at most twice the size of the first level
+        int firstLevel = 1;
+        while (firstLevel < MAX_LEVELS - 1 && 2 * (bunchCount * bunchSize >> firstLevel) > maxFloats)
+            firstLevel++;
+        return firstLevel;
+    }
+
+    /**
+     * Builds a pyramid for existing data, e.g., a frequency file.
+     *
+     * Lower levels are skipped so that the pyramid stores at most maxFloats values.
+     *
+     * @param data the base columns
+     * @param maxFloats memory budget of the pyramid
+     * @param histogram if not null the magnitudes are added to it in the same pass over the data
+     * @param onsetDetector if not null the columns are added to it in the same pass over the data
+     * @return the pyramid
+     */
+    static public FrequencyMapPyramid build(AudioFrequencyMapAdapter.IDataBackend data, long maxFloats,
+                                            MagnitudeHistogram histogram, OnsetDetector onsetDetector) {
+        final int bunchSize = data.getBunchSize();
+        final int bunchCount = data.getBunchCount();
+        FrequencyMapPyramid pyramid = new FrequencyMapPyramid(bunchSize, getFirstLevel(bunchCount, bunchSize,
+                maxFloats));
+        final float[] buffer = new float[bunchSize];
+        for (int i = 0; i < bunchCount; i++) {
+            final float[] bunch = data.getBunch(i, buffer);
+            pyramid.add(bunch);
+            if (histogram != null)
+                histogram.add(bunch);
+            if (onsetDetector != null)
+                onsetDetector.add(bunch);
+        }
+        return pyramid;
+    }
+
+    static public void max(float[] target, float[] source) {
+        for (int i = 0; i < target.length; i++) {
+            if (source[i] > target[i])
+                target[i] = source[i];
+        }
+    }
+
+    public FrequencyMapPyramid snapshot() {
+        return new FrequencyMapPyramid(this);
+    }
+
+    public void add(float[] frequencies) {
+        merge(0, frequencies, 0);
+    }
+
+    private void merge(int level, float[] source, int sourceOffset) {
+        if (level >= MAX_LEVELS - firstLevel)
+            return;
+        if (pending.size() <= level)
+            pending.add(new float[bunchSize]);
+        final float[] target = pending.get(level);
+        if (pendingCount[level] == 0)
+            System.arraycopy(source, sourceOffset, target, 0, bunchSize);
+        else {
+            for (int i = 0; i < bunchSize; i++) {
+                final float value = source[sourceOffset + i];
+                if (value > target[i])
+                    target[i] = value;
+            }
+        }
+        pendingCount[level]++;
+
+        final int factor = level == 0 ? 1 << firstLevel : 2;
+        if (pendingCount[level] < factor)
+            return;
+        pendingCount[level] = 0;
+
+        Level storedLevel = appendColumn(level, target);
+        merge(level + 1, storedLevel.data, (storedLevel.count - 1) * bunchSize);
+    }
+
+    private Level appendColumn(int level, float[] column) {
+        if (levels.size() <= level)
+            levels.add(new Level(16 * bunchSize));
+        Level storedLevel = levels.get(level);
+        final int end = (storedLevel.count + 1) * bunchSize;
+        // snapshots may share the array but never read past their own count
+        if (end > storedLevel.data.length)
+            storedLevel.data = Arrays.copyOf(storedLevel.data, storedLevel.data.length * 2);
+        System.arraycopy(column, 0, storedLevel.data, storedLevel.count * bunchSize, bunchSize);
+        storedLevel.count++;
+        return storedLevel;
+    }
+
+    /**
+     * Finds the biggest available reduction that is not bigger than the requested one.
+     *
+     * @param maxReduction number of base columns that may be aggregated
+     * @return the reduction, 1 if no suitable level exists
+     */
+    public int getReduction(int maxReduction) {
+        int reduction = 1;
+        for (int i = 0; i < levels.size(); i++) {
+            final int levelReduction = 1 << (firstLevel + i);
+            if (levelReduction > maxReduction || levels.get(i).count == 0)
+                break;
+            reduction = levelReduction;
+        }
+        return reduction;
+    }
+
+    /**
+     * @param reduction a reduction returned by {@link #getReduction(int)}, must be bigger than 1
+     * @return number of aggregated columns at this reduction
+     */
+    public int getColumnCount(int reduction) {
+        return levels.get(getLevelIndex(reduction)).count;
+    }
+
+    /**
+     * Gets an aggregated column.
+     *
+     * @param reduction a reduction returned by {@link #getReduction(int)}, must be bigger than 1
+     * @param index column index at this reduction, i.e., it covers the base columns [index * reduction,
+     *              (index + 1) * reduction)
+     * @param buffer used to store the column, may be null
+     * @return the column
+     */
+    public float[] getColumn(int reduction, int index, float[] buffer) {
+        if (buffer == null || buffer.length < bunchSize)
+            buffer = new float[bunchSize];
+        Level level = levels.get(getLevelIndex(reduction));
+        System.arraycopy(level.data, index * bunchSize, buffer, 0, bunchSize);
+        return buffer;
+    }
+
+    private int getLevelIndex(int reduction) {
+        return Integer.numberOfTrailingZeros(reduction) - firstLevel;
+    }
+}
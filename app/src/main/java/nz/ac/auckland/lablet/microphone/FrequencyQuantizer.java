@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Compact storage of frequency map columns: one byte per magnitude instead of a float.
+ *
+ * A column is stored with a scale, the max magnitude of the column, and one log scaled code per magnitude. The codes
+ * 1 to MAX_CODE span DYNAMIC_RANGE_DB below the scale (about 0.5 dB per code, the resolution of the color levels of
+ * the {@link FrequencyColorMapper}); code 0 is anything below this range and decodes to 0. Decoding is a table look up
+ * and a multiplication.
+ *
+ * A column record, e.g., in a quantized frequency file, is the scale as float in native byte order followed by the
+ * codes, see {@link #getRecordSize(int)}.
+ */
+public class FrequencyQuantizer {
+    final static public float DYNAMIC_RANGE_DB = 120;
+    final static public int SCALE_BYTES = 4;
+    final static private int MAX_CODE = 255;
+    // codes per natural log unit of the magnitude ratio
+    final static private double CODES_PER_LOG = (MAX_CODE - 1) / (DYNAMIC_RANGE_DB / 20 * Math.log(10));
+    // magnitude ratio to the scale of each code
+    final static private float[] DECODE_TABLE = new float[MAX_CODE + 1];
+    static {
+        DECODE_TABLE[0] = 0;
+        for (int code = 1; code <= MAX_CODE; code++)
+            DECODE_TABLE[code] = (float)Math.exp((code - MAX_CODE) / CODES_PER_LOG);
+    }
+
+    /**
+     * @return number of bytes of a column record
+     */
+    static public int getRecordSize(int bunchSize) {
+        return SCALE_BYTES + bunchSize;
+    }
+
+    /**
+     * Encodes a column.
+     *
+     * @param magnitudes source
+     * @param offset offset in magnitudes
+     * @param length number of magnitudes
+     * @param codes receives the codes
+     * @param codesOffset offset in codes
+     * @return the scale of the column
+     */
+    static public float encode(float[] magnitudes, int offset, int length, byte[] codes, int codesOffset) {
+        float scale = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (magnitudes[i] > scale)
+                scale = magnitudes[i];
+        }
+        if (scale <= 0) {
+            for (int i = 0; i < length; i++)
+                codes[codesOffset + i] = 0;
+            return 0;
+        }
+        // anything below this decodes to 0, so the log can be skipped
+        final float minMagnitude = scale * DECODE_TABLE[1] * (float)Math.exp(-0.5 / CODES_PER_LOG);
+        final double logScale = Math.log(scale);
+        for (int i = 0; i < length; i++) {
+            final float magnitude = magnitudes[offset + i];
+            int code = 0;
+            if (magnitude >= minMagnitude) {
+                code = MAX_CODE + (int)Math.round((Math.log(magnitude) - logScale) * CODES_PER_LOG);
+                code = Math.max(1, Math.min(MAX_CODE, code));
+            }
+            codes[codesOffset + i] = (byte)code;
+        }
+        return scale;
+    }
+
+    /**
+     * Decodes a column.
+     *
+     * @param codes source
+     * @param offset offset in codes
+     * @param length number of codes
+     * @param scale the scale of the column
+     * @param magnitudes receives the magnitudes
+     */
+    static public void decode(byte[] codes, int offset, int length, float scale, float[] magnitudes) {
+        for (int i = 0; i < length; i++)
+            magnitudes[i] = scale * DECODE_TABLE[codes[offset + i] & 0xFF];
+    }
+
+    /**
+     * Encodes whole columns into column records.
+     *
+     * @param frequencies bunch after bunch
+     * @param bunchSize number of frequencies per bunch
+     * @return the records of all complete bunches
+     */
+    static public byte[] encodeRecords(float[] frequencies, int bunchSize) {
+        final int bunchCount = frequencies.length / bunchSize;
+        final int recordSize = getRecordSize(bunchSize);
+        final byte[] records = new byte[bunchCount * recordSize];
+        final ByteBuffer buffer = ByteBuffer.wrap(records).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < bunchCount; i++) {
+            final int position = i * recordSize;
+            final float scale = encode(frequencies, i * bunchSize, bunchSize, records, position + SCALE_BYTES);
+            buffer.putFloat(position, scale);
+        }
+        return records;
+    }
+
+    /**
+     * Decodes a column record.
+     *
+     * @param records buffer in native byte order, its position is changed
+     * @param position start of the record in the buffer
+     * @param bunchSize number of frequencies per bunch
+     * @param codes buffer for the codes, at least bunchSize long
+     * @param magnitudes receives the magnitudes
+     */
+    static public void decodeRecord(ByteBuffer records, int position, int bunchSize, byte[] codes,
+                                    float[] magnitudes) {
+        final float scale = records.getFloat(position);
+        records.position(position + SCALE_BYTES);
+        records.get(codes, 0, bunchSize);
+        decode(codes, 0, bunchSize, scale, magnitudes);
+    }
+}
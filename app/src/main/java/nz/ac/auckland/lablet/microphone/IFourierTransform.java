@@ -0,0 +1,22 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+
+/**
+ * Windowed Fourier transform of a whole data array.
+ *
+ * The output contains, window after window, the magnitudes of the first windowSize / 2 frequency bins.
+ */
+public interface IFourierTransform {
+    /**
+     * @return the magnitudes or null if the calling thread has been interrupted
+     */
+    float[] transform(float[] data, int length, int windowSize, float stepFactor);
+    void release();
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import nz.ac.auckland.lablet.views.plotview.*;
+
+import java.util.Arrays;
+
+
+/**
+ * Paints the frequency map of a live recording.
+ *
+ * The painter keeps a ring of bitmap columns, one column per screen pixel. When data arrives only the new columns are
+ * rendered into the ring; the visible range is composed from the ring with at most two blits (the ring wraps around).
+ * Thus, scrolling the view or adding a column never re-renders the already visible columns.
+ *
+ * Columns are identified by their absolute pixel position, i.e., the time multiplied by the pixels per ms. As long as
+ * the size of the visible range, the frequency range and the view size don't change the ring stays valid. Otherwise,
+ * or if the view is moved to a range that is not in the ring, the visible range is rendered again from the adapter.
+ *
+ * Must only be used from the UI thread.
+ */
+public class LiveFrequencyMapPainter extends AbstractPlotDataPainter {
+    final static private int NO_PIXEL = Integer.MIN_VALUE;
+
+    final private FrequencyColorMapper colorMapper = new FrequencyColorMapper();
+    private int[] palette = colorMapper.createPalette(FrequencyColorMapper.DEFAULT_CONTRAST,
+            FrequencyColorMapper.DEFAULT_BRIGHTNESS);
+
+    // ring geometry; the ring is invalid if ringBitmap is null
+    private Bitmap ringBitmap = null;
+    private int ringWidth = 0;
+    private int ringHeight = 0;
+    private float pixelsPerMs = 0;
+    private float rangeBottom = 0;
+    private float rangeTop = 0;
+    private IScale ringYScale = null;
+
+    // levels of the ring, column after column
+    private byte[] ringLevels;
+    // the absolute pixel that is stored in a ring column
+    private int[] columnPixels;
+    private int[] columnColors;
+    // the ring contains the pixels [firstPixel, lastPixel]
+    private int firstPixel = NO_PIXEL;
+    private int lastPixel = NO_PIXEL;
+    private int lastIndex = -1;
+    // levels of the last data column, used to fill the gap till the next data column
+    private byte[] lastLevels;
+    private float[] frequencyBuffer = null;
+    private float[] mergeBuffer = null;
+
+    final private Rect sourceRect = new Rect();
+    final private RectF targetRect = new RectF();
+
+    public LiveFrequencyMapPainter(AudioFrequencyMapAdapter adapter) {
+        setDataAdapter(adapter);
+    }
+
+    private AudioFrequencyMapAdapter getAdapter() {
+        return (AudioFrequencyMapAdapter)dataAdapter;
+    }
+
+    /**
+     * Sets contrast and brightness of the colors. The ring is recolored from its levels.
+     *
+     * @param contrast 0 to 254, 127 is neutral
+     * @param brightness 0 to 254, 127 is neutral
+     */
+    public void setContrastBrightness(int contrast, int brightness) {
+        palette = colorMapper.createPalette(contrast, brightness);
+        if (ringBitmap == null)
+            return;
+        for (int column = 0; column < ringWidth; column++) {
+            if (columnPixels[column] == NO_PIXEL)
+                continue;
+            colorColumn(column);
+        }
+        invalidateContainerView();
+    }
+
+    @Override
+    protected AbstractPlotDataAdapter.IListener createListener() {
+        return new AbstractPlotDataAdapter.IListener() {
+            @Override
+            public void onDataAdded(AbstractPlotDataAdapter plot, int index, int number) {
+                if (ringBitmap != null && lastIndex >= 0) {
+                    for (int i = Math.max(index, lastIndex + 1); i < index + number; i++)
+                        addColumn(i);
+                }
+                invalidateContainerView();
+            }
+
+            @Override
+            public void onDataRemoved(AbstractPlotDataAdapter plot, int index, int number) {
+                invalidate();
+            }
+
+            @Override
+            public void onDataChanged(AbstractPlotDataAdapter plot, int index, int number) {
+                invalidate();
+            }
+
+            @Override
+            public void onAllDataChanged(AbstractPlotDataAdapter plot) {
+                invalidate();
+            }
+        };
+    }
+
+    @Override
+    public void invalidate() {
+        clearRing();
+        super.invalidate();
+    }
+
+    @Override
+    public void release() {
+        if (ringBitmap != null)
+            ringBitmap.recycle();
+        ringBitmap = null;
+    }
+
+    @Override
+    public void onSizeChanged(int width, int height, int oldw, int oldh) {
+        invalidateContainerView();
+    }
+
+    @Override
+    public void onRangeChanged(RectF range, RectF oldRange, boolean keepDistance) {
+        // a scrolled range is composed from the ring, everything else is checked in onDraw
+        invalidateContainerView();
+    }
+
+    @Override
+    public void onDraw(Canvas canvas) {
+        final AudioFrequencyMapAdapter adapter = getAdapter();
+        if (containerView == null || adapter == null || adapter.getSize() == 0)
+            return;
+
+        final RectF range = containerView.getRange();
+        final RectF screenRect = containerView.getScreenRect();
+        final int width = (int)Math.ceil(screenRect.width());
+        final int height = (int)Math.ceil(screenRect.height());
+        if (width <= 0 || height <= 0)
+            return;
+        updateGeometry(range, width, height);
+
+        final int visibleFirst = toPixel(range.left);
+        final int visibleLast = visibleFirst + width;
+        // the ring is continuous up to the last data column, if the visible part is not in the ring render it again
+        final int dataLast = Math.min(visibleLast, toPixel(adapter.getX(getDataCount(adapter) - 1)));
+        final int dataFirst = Math.max(visibleFirst, toPixel(adapter.getX(0)));
+        if (dataFirst <= dataLast && (lastIndex < 0 || dataFirst < firstPixel || dataLast > lastPixel))
+            renderVisible(range, visibleLast);
+
+        final float xOffset = screenRect.left - range.left * pixelsPerMs;
+        int pixel = Math.max(visibleFirst, firstPixel);
+        final int end = Math.min(visibleLast, lastPixel);
+        canvas.clipRect(screenRect);
+        while (pixel <= end) {
+            // blit the continuous part till the end of the ring
+            final int column = toColumn(pixel);
+            final int count = Math.min(end - pixel + 1, ringWidth - column);
+            sourceRect.set(column, 0, column + count, ringHeight);
+            targetRect.set(xOffset + pixel, screenRect.top, xOffset + pixel + count, screenRect.top + ringHeight);
+            canvas.drawBitmap(ringBitmap, sourceRect, targetRect, null);
+            pixel += count;
+        }
+    }
+
+    private int getDataCount(AudioFrequencyMapAdapter adapter) {
+        // the adapter reports one more data point than it has, see AudioFrequencyMapAdapter.getSize()
+        return adapter.getSize() - 1;
+    }
+
+    private int toPixel(float time) {
+        return (int)Math.floor(time * pixelsPerMs);
+    }
+
+    private int toColumn(int pixel) {
+        final int column = pixel % ringWidth;
+        return column < 0 ? column + ringWidth : column;
+    }
+
+    private void updateGeometry(RectF range, int width, int height) {
+        final float newPixelsPerMs = width / range.width();
+        // one extra column for the partially visible pixel at each side
+        final int newRingWidth = width + 2;
+        if (ringBitmap != null && ringWidth == newRingWidth && ringHeight == height && pixelsPerMs == newPixelsPerMs
+                && rangeBottom == range.bottom && rangeTop == range.top && ringYScale == yScale)
+            return;
+
+        if (ringBitmap == null || ringWidth != newRingWidth || ringHeight != height) {
+            if (ringBitmap != null)
+                ringBitmap.recycle();
+            ringWidth = newRingWidth;
+            ringHeight = height;
+            ringBitmap = Bitmap.createBitmap(ringWidth, ringHeight, Bitmap.Config.ARGB_8888);
+            ringLevels = new byte[ringWidth * ringHeight];
+            columnPixels = new int[ringWidth];
+            columnColors = new int[ringHeight];
+            lastLevels = new byte[ringHeight];
+        }
+        pixelsPerMs = newPixelsPerMs;
+        rangeBottom = range.bottom;
+        rangeTop = range.top;
+        ringYScale = yScale;
+        clearRing();
+    }
+
+    private void clearRing() {
+        if (ringBitmap == null)
+            return;
+        ringBitmap.eraseColor(0);
+        Arrays.fill(columnPixels, NO_PIXEL);
+        firstPixel = NO_PIXEL;
+        lastPixel = NO_PIXEL;
+        lastIndex = -1;
+    }
+
+    private void renderVisible(RectF range, int visibleLast) {
+        clearRing();
+        final AudioFrequencyMapAdapter adapter = getAdapter();
+        final int dataCount = getDataCount(adapter);
+        final Range dataRange = adapter.getRange(range.left, range.right);
+        for (int i = Math.max(0, dataRange.min); i <= dataRange.max && i < dataCount; i++) {
+            if (lastIndex >= 0 && toPixel(adapter.getX(i)) > visibleLast) {
+                // only extend the last column, the ring would drop the first visible columns otherwise
+                fillTill(visibleLast + 1);
+                break;
+            }
+            addColumn(i);
+        }
+    }
+
+    /**
+     * Renders the data column at index into the ring.
+     *
+     * Indices have to be added in increasing order. Data columns that fall into the same pixel are merged by taking
+     * their maximum.
+     */
+    private void addColumn(int index) {
+        final AudioFrequencyMapAdapter adapter = getAdapter();
+        final int bunchSize = adapter.getBunchSize();
+        if (frequencyBuffer == null || frequencyBuffer.length != bunchSize) {
+            frequencyBuffer = new float[bunchSize];
+            mergeBuffer = new float[bunchSize];
+        }
+
+        final int pixel = toPixel(adapter.getX(index));
+        final float[] frequencies = adapter.getY(index, frequencyBuffer);
+        if (lastIndex >= 0 && pixel == lastPixel) {
+            FrequencyMapPyramid.max(mergeBuffer, frequencies);
+        } else {
+            if (lastIndex >= 0)
+                fillTill(pixel);
+            System.arraycopy(frequencies, 0, mergeBuffer, 0, bunchSize);
+        }
+        colorMapper.getLevels(lastLevels, mergeBuffer, adapter.getMaxFrequency(), ringYScale, rangeBottom, rangeTop,
+                ringHeight);
+        setColumn(pixel, lastLevels);
+        lastIndex = index;
+    }
+
+    /**
+     * Extends the last data column till (excluding) pixel.
+     */
+    private void fillTill(int pixel) {
+        for (int p = Math.max(lastPixel + 1, pixel - ringWidth); p < pixel; p++)
+            setColumn(p, lastLevels);
+    }
+
+    private void setColumn(int pixel, byte[] levels) {
+        final int column = toColumn(pixel);
+        System.arraycopy(levels, 0, ringLevels, column * ringHeight, ringHeight);
+        columnPixels[column] = pixel;
+        colorColumn(column);
+
+        if (lastPixel == NO_PIXEL || pixel < firstPixel)
+            firstPixel = pixel;
+        if (lastPixel == NO_PIXEL || pixel > lastPixel)
+            lastPixel = pixel;
+        firstPixel = Math.max(firstPixel, lastPixel - ringWidth + 1);
+    }
+
+    private void colorColumn(int column) {
+        final int offset = column * ringHeight;
+        for (int row = 0; row < ringHeight; row++)
+            columnColors[row] = palette[ringLevels[offset + row] & 0xFF];
+        ringBitmap.setPixels(columnColors, 0, 1, column, 0, 1, ringHeight);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.util.Arrays;
+
+
+/**
+ * Streaming quantile sketch of frequency magnitudes.
+ *
+ * The sketch is a histogram with logarithmic bins: the bin of a magnitude is given by the exponent and the first
+ * MANTISSA_BITS of its float representation, i.e., a bin spans at most 1 dB and no logarithm has to be calculated.
+ * Adding a magnitude is a shift and an increment; two histograms are merged by adding their counts.
+ */
+public class MagnitudeHistogram {
+    final static private int MANTISSA_BITS = 3;
+    final static private int SHIFT = 23 - MANTISSA_BITS;
+    // all positive floats
+    final static private int N_BINS = 1 << (31 - SHIFT);
+
+    final private long[] counts = new long[N_BINS];
+    private long totalCount = 0;
+
+    public MagnitudeHistogram() {
+
+    }
+
+    private MagnitudeHistogram(MagnitudeHistogram parent) {
+        System.arraycopy(parent.counts, 0, counts, 0, N_BINS);
+        totalCount = parent.totalCount;
+    }
+
+    public MagnitudeHistogram copy() {
+        return new MagnitudeHistogram(this);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+    }
+
+    public void add(float[] magnitudes) {
+        add(magnitudes, 0, magnitudes.length);
+    }
+
+    public void add(float[] magnitudes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            final int bits = Float.floatToRawIntBits(magnitudes[i]);
+            // negative values are counted as zero
+            counts[bits < 0 ? 0 : bits >> SHIFT]++;
+        }
+        totalCount += length;
+    }
+
+    public void merge(MagnitudeHistogram histogram) {
+        for (int i = 0; i < N_BINS; i++)
+            counts[i] += histogram.counts[i];
+        totalCount += histogram.totalCount;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * Finds the magnitude below which a certain fraction of the magnitudes lies.
+     *
+     * @param quantile between 0 and 1, e.g., 0.5 for the median
+     * @return the center of the bin that contains the quantile, or 0 if the histogram is empty
+     */
+    public float getQuantile(float quantile) {
+        if (totalCount == 0)
+            return 0;
+        final long rank = Math.min(totalCount - 1, (long)(quantile * totalCount));
+        long count = 0;
+        for (int bin = 0; bin < N_BINS; bin++) {
+            count += counts[bin];
+            if (count > rank)
+                return Float.intBitsToFloat((bin << SHIFT) | (1 << (SHIFT - 1)));
+        }
+        return Float.intBitsToFloat(((N_BINS - 1) << SHIFT) | (1 << (SHIFT - 1)));
+    }
+}
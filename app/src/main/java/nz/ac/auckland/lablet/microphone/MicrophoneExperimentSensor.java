@@ -24,6 +24,9 @@ import nz.ac.auckland.lablet.misc.Unit;
 
 import java.io.*;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -39,14 +42,72 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
     final private Unit timeUnit = new Unit("s", Unit.MILLI);
     final private Unit frequencyUnit = new Unit("Hz");
 
-    float[] prevAmplitudes = null;
     final String audioFileName = "audio.wav";
     private File audioFile = null;
 
     private AudioData experimentData;
+    private Context context = null;
 
-    // currently only works with 0.5f
+    // frequency map settings that are calculated in the background after a recording has been saved
+    final static public int PRECOMPUTE_WINDOW_SIZE = 4096;
+    final static public float PRECOMPUTE_STEP_FACTOR = 0.5f;
+    private boolean precomputeFrequencyMap = true;
+
+    final private int liveWindowSize = 4096;
     final private float liveStepFactor = 0.5f;
+    final private StreamingFourier liveFourier = new StreamingFourier(liveWindowSize, liveStepFactor);
+    final private StreamingFourier.IListener liveFourierListener = new StreamingFourier.IListener() {
+        @Override
+        public void onNewFrequencies(float[] frequencies) {
+            frequencyDispatcher.add(frequencies);
+        }
+    };
+
+    /**
+     * Hands data from a background thread to the ui thread.
+     *
+     * Data that arrives while the ui thread is busy is collected and dispatched in one go, i.e., a slow ui never
+     * blocks the producing thread.
+     */
+    private abstract class UiDispatcher {
+        final private Handler uiHandler = new Handler();
+        final private List<float[]> pending = new ArrayList<>();
+        private boolean posted = false;
+
+        final private Runnable dispatchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final List<float[]> items;
+                synchronized (pending) {
+                    items = new ArrayList<>(pending);
+                    pending.clear();
+                    posted = false;
+                }
+                if (softListener == null)
+                    return;
+                ISensorDataListener listener = softListener.get();
+                if (listener == null)
+                    return;
+                for (float[] item : items)
+                    dispatch(listener, item);
+            }
+        };
+
+        public void add(float[] data) {
+            synchronized (pending) {
+                pending.add(data);
+                if (posted)
+                    return;
+                posted = true;
+            }
+            uiHandler.post(dispatchRunnable);
+        }
+
+        abstract protected void dispatch(ISensorDataListener listener, float[] data);
+    }
+
+    private UiDispatcher amplitudeDispatcher;
+    private UiDispatcher frequencyDispatcher;
 
     public interface ISensorDataListener {
         void onNewAmplitudeData(float[] amplitudes);
@@ -72,30 +133,6 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
         return liveStepFactor;
     }
 
-    private void notifyNewAudioData(float[] amplitudes) {
-        if (softListener == null)
-            return;
-
-        ISensorDataListener listener = softListener.get();
-        if (listener == null)
-            return;
-
-        listener.onNewAmplitudeData(amplitudes);
-
-        if (prevAmplitudes != null) {
-            int stepSize =  (int)(amplitudes.length * liveStepFactor);
-            int stepPosition = stepSize;
-            while (stepPosition < amplitudes.length) {
-                float[] frequencies = Fourier.transformOverlap(prevAmplitudes, amplitudes, stepPosition);
-                listener.onNewFrequencyData(frequencies);
-                stepPosition += stepSize;
-            }
-        }
-        float[] frequencies = Fourier.transform(amplitudes);
-        listener.onNewFrequencyData(frequencies);
-        prevAmplitudes = amplitudes;
-    }
-
     @Override
     public String getSensorName() {
         return SENSOR_NAME;
@@ -126,6 +163,20 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
     @Override
     public void init(final Activity activity) {
         experimentData = new AudioData(this);
+        context = activity.getApplicationContext();
+
+        amplitudeDispatcher = new UiDispatcher() {
+            @Override
+            protected void dispatch(ISensorDataListener listener, float[] data) {
+                listener.onNewAmplitudeData(data);
+            }
+        };
+        frequencyDispatcher = new UiDispatcher() {
+            @Override
+            protected void dispatch(ISensorDataListener listener, float[] data) {
+                listener.onNewFrequencyData(data);
+            }
+        };
 
         previewState = new State() {
             private AudioRecordingTask audioRecordingTask = null;
@@ -177,6 +228,11 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
                 throw new IOException();
             experimentData.setAudioFileName(audioFileName);
             experimentData.saveExperimentData(storageDir);
+
+            if (precomputeFrequencyMap && context != null) {
+                FrequencyMapCache.precompute(context, new File(storageDir, audioFileName), PRECOMPUTE_WINDOW_SIZE,
+                        PRECOMPUTE_STEP_FACTOR);
+            }
         }
         audioFile = null;
     }
@@ -185,8 +241,23 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
         return audioFile;
     }
 
+    /**
+     * If enabled, the frequency map for the default settings is calculated in the background after the recording
+     * has been saved. Thus the map is already in the {@link FrequencyMapCache} when the recording is analysed.
+     *
+     * @param precompute true to precompute the frequency map (default)
+     */
+    public void setPrecomputeFrequencyMap(boolean precompute) {
+        this.precomputeFrequencyMap = precompute;
+    }
+
     private boolean deleteTempFiles() {
-        if (audioFile != null && audioFile.exists())
+        if (audioFile == null)
+            return true;
+        File peakFile = WaveformPeaks.getPeakFile(audioFile);
+        if (peakFile.exists())
+            peakFile.delete();
+        if (audioFile.exists())
             return audioFile.delete();
         return true;
     }
@@ -197,47 +268,64 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
                 return false;
         File target = new File(storageDir, audioFileName);
         try {
-            return StorageLib.moveFile(audioFile, target);
+            if (!StorageLib.moveFile(audioFile, target))
+                return false;
+            // the peak file is optional, it is recreated when missing
+            File peakFile = WaveformPeaks.getPeakFile(audioFile);
+            if (peakFile.exists())
+                StorageLib.moveFile(peakFile, WaveformPeaks.getPeakFile(target));
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * Records audio and distributes it to the consumers.
+     *
+     * The capture thread only reads from the AudioRecord into a {@link SampleRing} of pooled buffers. Separate
+     * consumer threads write the wav file, collect the amplitudes and run the live Fourier transform. Results for the
+     * ui are coalesced, so neither a slow ui nor a slow disk delays reading from the microphone.
+     */
     private class AudioRecordingTask {
+        final static private int RING_CAPACITY = 32;
+        final static private int BYTES_PER_SAMPLE = 2;
+        final static private long PREALLOCATION_SIZE = 8 * 1024 * 1024;
+
         private AtomicBoolean running = new AtomicBoolean();
 
         final private int samplingRate;
         final private int sampleSize;
 
-        private OutputStream dataOutput = null;
         final private File outputFile;
         private AudioRecord audioRecord = null;
 
-        private Handler uiHandler = new Handler();
-        private Thread thread = null;
+        final private SampleRing ring;
+        final private List<Thread> threads = new ArrayList<>();
 
         Runnable pollRunnable = new Runnable() {
             @Override
             public void run() {
                 running.set(true);
                 try {
-                    startAudioRecording(outputFile);
-                } catch (IOException e) {
+                    startAudioRecording();
+                } catch (IllegalStateException e) {
                     e.printStackTrace();
+                    ring.close();
                     return;
                 }
 
+                final int bytesToRead = BYTES_PER_SAMPLE * sampleSize;
                 while (running.get()) {
-                    final int bytesPerSample = 2;
-                    final int bytesToRead = bytesPerSample * sampleSize;
-                    final byte[] buffer = new byte[bytesToRead];
-
-                    if (!readData(buffer, bytesToRead))
+                    final SampleRing.Slot slot = ring.claim();
+                    if (!readData(slot.data, bytesToRead))
                         break;
-
-                    publishData(buffer, bytesToRead);
+                    slot.size = bytesToRead;
+                    AudioWavInputStream.toAmplitudeData(slot.data, bytesToRead, slot.amplitudes);
+                    ring.publish();
                 }
+                ring.close();
 
                 stopAudioRecording();
             }
@@ -258,48 +346,105 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
             }
         };
 
-        public AudioRecordingTask(File outputFile, int samplingRate, int sampleSize) {
-            this.outputFile = outputFile;
-            this.samplingRate = samplingRate;
-            this.sampleSize = sampleSize;
-        }
+        private class WriterRunnable implements Runnable {
+            final private SampleRing.Consumer consumer = ring.addConsumer();
 
-        private void publishData(final byte buffer[], final int dataSize) {
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
+            @Override
+            public void run() {
+                final WaveformPeaks.Writer peakWriter = new WaveformPeaks.Writer(samplingRate);
+                OutputStream dataOutput = null;
+                try {
+                    AudioWavOutputStream wavOutput = new AudioWavOutputStream(outputFile, 1, samplingRate);
+                    wavOutput.setPreallocationSize(PREALLOCATION_SIZE);
+                    dataOutput = wavOutput;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                SampleRing.Slot slot;
+                while ((slot = consumer.next()) != null) {
                     if (dataOutput != null) {
                         try {
-                            dataOutput.write(buffer, 0, dataSize);
+                            dataOutput.write(slot.data, 0, slot.size);
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
+                        peakWriter.add(slot.amplitudes, 0, slot.getAmplitudeCount());
+                    }
+                    consumer.release();
+                }
+                if (dataOutput != null) {
+                    try {
+                        dataOutput.close();
+                        peakWriter.write(WaveformPeaks.getPeakFile(outputFile), outputFile.length());
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
+                }
+            }
+        }
+
+        private class AmplitudeRunnable implements Runnable {
+            final private SampleRing.Consumer consumer = ring.addConsumer();
+
+            @Override
+            public void run() {
+                SampleRing.Slot slot;
+                while ((slot = consumer.next()) != null) {
+                    // the plot adapter keeps the array, so it can't be a pooled one
+                    amplitudeDispatcher.add(Arrays.copyOf(slot.amplitudes, slot.getAmplitudeCount()));
+                    consumer.release();
+                }
+            }
+        }
 
-                    final float frame[] = AudioWavInputStream.toAmplitudeData(buffer, dataSize);
-                    notifyNewAudioData(frame);
+        private class SpectrumRunnable implements Runnable {
+            final private SampleRing.Consumer consumer = ring.addConsumer();
+
+            @Override
+            public void run() {
+                SampleRing.Slot slot;
+                while ((slot = consumer.next()) != null) {
+                    liveFourier.addData(slot.amplitudes, 0, slot.getAmplitudeCount(), liveFourierListener);
+                    consumer.release();
                 }
-            });
+            }
+        }
+
+        public AudioRecordingTask(File outputFile, int samplingRate, int sampleSize) {
+            this.outputFile = outputFile;
+            this.samplingRate = samplingRate;
+            this.sampleSize = sampleSize;
+            this.ring = new SampleRing(RING_CAPACITY, BYTES_PER_SAMPLE * sampleSize);
         }
 
         public void start() {
-            thread = new Thread(pollRunnable);
-            thread.start();
+            liveFourier.reset();
+            threads.clear();
+            if (outputFile != null)
+                threads.add(new Thread(new WriterRunnable()));
+            threads.add(new Thread(new AmplitudeRunnable()));
+            threads.add(new Thread(new SpectrumRunnable()));
+            Thread captureThread = new Thread(pollRunnable);
+            captureThread.setPriority(Thread.MAX_PRIORITY);
+            threads.add(captureThread);
+            for (Thread thread : threads)
+                thread.start();
         }
 
         public void stop() {
             running.set(false);
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            // the consumers finish after they processed all captured data, e.g., the wav file is complete afterwards
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
             }
+            threads.clear();
         }
 
-        private void startAudioRecording(File outputFile) throws IOException {
-            if (outputFile != null)
-                dataOutput = new AudioWavOutputStream(outputFile, 1, samplingRate);
-
+        private void startAudioRecording() {
             final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
             final int FORMAT = AudioFormat.ENCODING_PCM_16BIT;
             int bufferSize = AudioRecord.getMinBufferSize(samplingRate, CHANNEL_CONFIG, FORMAT) * 4;
@@ -311,14 +456,6 @@ public class MicrophoneExperimentSensor extends AbstractExperimentSensor {
 
         private void stopAudioRecording() {
             audioRecord.stop();
-            if (dataOutput != null) {
-                try {
-                    dataOutput.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                dataOutput = null;
-            }
             audioRecord.release();
         }
     }
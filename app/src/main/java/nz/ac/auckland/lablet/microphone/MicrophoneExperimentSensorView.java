@@ -18,10 +18,12 @@ import nz.ac.auckland.lablet.R;
 import nz.ac.auckland.lablet.experiment.AbstractExperimentSensor;
 import nz.ac.auckland.lablet.experiment.AbstractExperimentSensorView;
 import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+import nz.ac.auckland.lablet.views.marker.MarkerDataModel;
 import nz.ac.auckland.lablet.views.plotview.PlotView;
 import nz.ac.auckland.lablet.views.plotview.StrategyPainter;
 import nz.ac.auckland.lablet.views.plotview.ThreadStrategyPainter;
 
+import java.io.File;
 import java.io.IOException;
 
 
@@ -34,6 +36,9 @@ class PreviewViewState implements AbstractExperimentSensor.State {
 
     protected PlotView frequencyMapPlotView;
     protected AudioFrequencyMapAdapter frequencyMapAdapter;
+    // onsets are detected while the frequencies come in, i.e., during preview and recording
+    final private MarkerDataModel onsetMarkerModel = new MarkerDataModel();
+    private OnsetMarkerUpdater onsetMarkerUpdater;
 
     private MicrophoneExperimentSensor.ISensorDataListener listener = new MicrophoneExperimentSensor.ISensorDataListener() {
         @Override
@@ -67,12 +72,10 @@ class PreviewViewState implements AbstractExperimentSensor.State {
 
         frequencyMapPlotView = (PlotView)mainView.findViewById(R.id.audioFrequencyMapPlot);
         frequencyMapAdapter = new AudioFrequencyMapAdapter(experimentSensor.getLiveStepFactor());
-        strategyPainter = new ThreadStrategyPainter();
-        strategyPainter.setForceInvalidateOnRangeChanged(false);
-        AudioFrequencyMapConcurrentPainter audioFrequencyMapPainter
-                = new AudioFrequencyMapConcurrentPainter(frequencyMapAdapter);
-        strategyPainter.addChild(audioFrequencyMapPainter);
-        frequencyMapPlotView.addPlotPainter(strategyPainter);
+        // only renders the new columns, also used while recording
+        frequencyMapPlotView.addPlotPainter(new LiveFrequencyMapPainter(frequencyMapAdapter));
+        onsetMarkerUpdater = new OnsetMarkerUpdater(frequencyMapAdapter, onsetMarkerModel);
+        frequencyMapPlotView.addPlotPainter(new OnsetPainter(onsetMarkerModel));
 
     }
 
@@ -213,6 +216,8 @@ class PlaybackViewState implements AbstractExperimentSensor.State {
     final private SeekBar seekBar;
     final private TextView lengthTextView;
 
+    final private PlotView amplitudePlotView;
+    final private AudioAmplitudePlotDataAdapter amplitudePlotAdapter;
     final private PlotView frequencyMapPlotView;
     final private AudioFrequencyMapAdapter frequencyMapAdapter;
     final private ViewGroup loadingView;
@@ -253,8 +258,17 @@ class PlaybackViewState implements AbstractExperimentSensor.State {
         hideLoadingView();
         frameLayout.addView(loadingView);
 
-        // frequency map
+        // amplitudes
+        amplitudePlotView = (PlotView)playbackView.findViewById(R.id.amplitudePlotView);
+        amplitudePlotAdapter = new AudioAmplitudePlotDataAdapter();
         StrategyPainter strategyPainter = new ThreadStrategyPainter();
+        strategyPainter.addChild(new AudioAmplitudePainter(amplitudePlotAdapter));
+        amplitudePlotView.addPlotPainter(strategyPainter);
+        amplitudePlotView.getXAxisView().setUnit(experimentSensor.getTimeUnit());
+        amplitudePlotView.getXAxisView().setTitle("Time");
+
+        // frequency map
+        strategyPainter = new ThreadStrategyPainter();
         frequencyMapAdapter = new AudioFrequencyMapAdapter(DEFAULT_STEP_FACTOR);
         strategyPainter.addChild(new AudioFrequencyMapConcurrentPainter(frequencyMapAdapter));
         frequencyMapPlotView.addPlotPainter(strategyPainter);
@@ -304,8 +318,61 @@ class PlaybackViewState implements AbstractExperimentSensor.State {
         loadingView.setVisibility(View.INVISIBLE);
     }
 
+    private void setAmplitudeData(File audioFile, WaveformPeaks peaks) {
+        try {
+            amplitudePlotAdapter.setDataFile(audioFile, peaks);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        final float totalTime = (float)peaks.getSampleCount() / peaks.getSampleRate() * 1000;
+        amplitudePlotView.setMaxXRange(0, totalTime);
+        amplitudePlotView.setXRange(0, totalTime);
+        amplitudePlotView.setYRange(MicrophoneExperimentSensorView.Settings.amplitudeMin,
+                MicrophoneExperimentSensorView.Settings.amplitudeMax);
+        amplitudePlotView.setXDraggable(true);
+        amplitudePlotView.setXZoomable(true);
+    }
+
+    /**
+     * Shows the amplitudes from the peak file. If there is no peak file yet, e.g., for experiments of older versions,
+     * it is created in the background.
+     */
+    private void loadAmplitudes() {
+        final File audioFile = experimentSensor.getAudioFile();
+        WaveformPeaks peaks = WaveformPeaks.open(audioFile);
+        if (peaks != null) {
+            setAmplitudeData(audioFile, peaks);
+            return;
+        }
+
+        final Handler handler = new Handler();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final WaveformPeaks createdPeaks;
+                try {
+                    createdPeaks = WaveformPeaks.create(audioFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the view might have been stopped in the meantime
+                        if (audioFile.equals(experimentSensor.getAudioFile()))
+                            setAmplitudeData(audioFile, createdPeaks);
+                    }
+                });
+            }
+        }).start();
+    }
+
     private void loadWavFileAsync() {
         frequencyMapAdapter.clear();
+        amplitudePlotAdapter.clear();
+        loadAmplitudes();
 
         final IFrequencyMapLoader frequencyMapLoader = FrequencyMapLoaderFactory.create(frequencyMapAdapter,
                 experimentSensor.getAudioFile());
@@ -334,8 +401,14 @@ class PlaybackViewState implements AbstractExperimentSensor.State {
             @Override
             public void run() {
                 showLoadingView(FrequencyAnalysisView.FOURIER_ANALYSIS_STRING);
-                frequencyMapLoader.updateFrequencies(playbackView.getContext(), frequencyMapAdapter.getStepFactor(),
-                        DEFAULT_WINDOW_SIZE, new IFrequencyMapLoader.IFrequenciesUpdatedListener() {
+                frequencyMapLoader.updateFrequencies(playbackView.getContext(), 1,
+                        frequencyMapAdapter.getStepFactor(), DEFAULT_WINDOW_SIZE, false,
+                        new IFrequencyMapLoader.IFrequenciesUpdatedListener() {
+                            @Override
+                            public void onPartialFrequencies() {
+                                hideLoadingView();
+                            }
+
                             @Override
                             public void onFrequenciesUpdated(boolean canceled) {
                                 hideLoadingView();
@@ -379,6 +452,7 @@ class PlaybackViewState implements AbstractExperimentSensor.State {
         playbackView.setVisibility(View.INVISIBLE);
 
         frequencyMapAdapter.clear();
+        amplitudePlotAdapter.clear();
 
         if (mediaPlayer != null) {
             mediaPlayer.stop();
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.util.Arrays;
+
+
+/**
+ * Finds onsets, e.g., claps, drops or collisions, in a stream of frequency map columns.
+ *
+ * The onset function is the spectral flux: the mean increase of the log magnitudes from one column to the next
+ * (decreases are ignored). A column is an onset if its flux is the maximum within PEAK_WINDOW, exceeds the mean flux
+ * around it by MEAN_FACTOR plus MIN_FLUX, and the previous onset is at least MIN_INTERVAL ago. The log is approximated
+ * from the float bits, so a column costs a few operations per frequency bin.
+ *
+ * The columns are processed in one pass; a column is decided as soon as the flux of the columns within the look
+ * ahead is known, i.e., onsets are found with a delay of about PEAK_WINDOW / 2. Only the flux values of the last
+ * columns are kept, so live data can be processed as well. For live data the onsets of columns that are not shown
+ * anymore can be discarded, see {@link #discardOnsetsBefore(int)}.
+ */
+public class OnsetDetector {
+    // all times in ms
+    final static private float PEAK_WINDOW = 60;
+    final static private float MEAN_BEFORE = 100;
+    final static private float MEAN_AFTER = 30;
+    final static private float MIN_INTERVAL = 50;
+    final static private float MEAN_FACTOR = 1.5f;
+    // in log2 magnitude units per frequency bin
+    final static private float MIN_FLUX = 0.1f;
+
+    final private float columnPeriod;
+    final private int peakHalfWidth;
+    final private int meanBefore;
+    final private int meanAfter;
+    final private int minInterval;
+    final private int lookAhead;
+
+    // log magnitudes of the last column
+    private float[] previousLog = null;
+    // flux of the last columns, indexed by column & fluxMask
+    final private float[] flux;
+    final private int fluxMask;
+    private int columnCount = 0;
+    // next column that has to be decided
+    private int nextColumn = 0;
+    // running sum of the flux in [windowStart, windowEnd)
+    private double windowSum = 0;
+    private int windowStart = 0;
+    private int windowEnd = 0;
+    private int lastOnset = Integer.MIN_VALUE / 2;
+
+    private int[] onsetColumns = new int[16];
+    private float[] onsetStrengths = new float[16];
+    // total number of onsets found
+    private int onsetCount = 0;
+    // number of discarded onsets, i.e., the index of the first onset in onsetColumns
+    private int discardedOnsets = 0;
+
+    /**
+     * @param columnPeriod time between two columns in ms
+     */
+    public OnsetDetector(float columnPeriod) {
+        this.columnPeriod = columnPeriod;
+        peakHalfWidth = toColumns(PEAK_WINDOW / 2);
+        meanBefore = toColumns(MEAN_BEFORE);
+        meanAfter = toColumns(MEAN_AFTER);
+        minInterval = toColumns(MIN_INTERVAL);
+        lookAhead = Math.max(peakHalfWidth, meanAfter);
+
+        final int history = Math.max(peakHalfWidth, meanBefore) + lookAhead + 2;
+        flux = new float[Integer.highestOneBit(history) * 2];
+        fluxMask = flux.length - 1;
+    }
+
+    private int toColumns(float time) {
+        return Math.max(1, Math.round(time / columnPeriod));
+    }
+
+    public float getColumnPeriod() {
+        return columnPeriod;
+    }
+
+    /**
+     * Approximates log2(1 + value) by the float bits of 1 + value, i.e., by the exponent plus the linear mantissa.
+     */
+    static private float log2(float value) {
+        return Float.floatToRawIntBits(1 + value) * (1f / (1 << 23)) - 127;
+    }
+
+    /**
+     * Adds the next column.
+     *
+     * @param magnitudes non-negative magnitudes of the frequency bins, all columns must have the same size
+     */
+    public void add(float[] magnitudes) {
+        float sum = 0;
+        if (previousLog == null) {
+            previousLog = new float[magnitudes.length];
+            for (int i = 0; i < magnitudes.length; i++)
+                previousLog[i] = log2(magnitudes[i]);
+        } else {
+            for (int i = 0; i < magnitudes.length; i++) {
+                final float log = log2(magnitudes[i]);
+                final float increase = log - previousLog[i];
+                // sum of the positive increases without a branch, i.e., twice the sum
+                sum += increase + Math.abs(increase);
+                previousLog[i] = log;
+            }
+        }
+        flux[columnCount & fluxMask] = magnitudes.length > 0 ? sum / (2 * magnitudes.length) : 0;
+        columnCount++;
+
+        while (nextColumn + lookAhead < columnCount)
+            decide(nextColumn++);
+    }
+
+    /**
+     * Decides the columns at the end of the stream for which there is no look ahead.
+     */
+    public void flush() {
+        while (nextColumn < columnCount)
+            decide(nextColumn++);
+    }
+
+    private void decide(int column) {
+        final int last = columnCount - 1;
+        // slide the mean window
+        final int start = Math.max(0, column - meanBefore);
+        final int end = Math.min(last, column + meanAfter) + 1;
+        for (; windowEnd < end; windowEnd++)
+            windowSum += flux[windowEnd & fluxMask];
+        for (; windowStart < start; windowStart++)
+            windowSum -= flux[windowStart & fluxMask];
+        final float mean = (float)(windowSum / (windowEnd - windowStart));
+
+        final float value = flux[column & fluxMask];
+        if (value <= MEAN_FACTOR * mean + MIN_FLUX)
+            return;
+        if (column - lastOnset < minInterval)
+            return;
+        final int peakEnd = Math.min(last, column + peakHalfWidth);
+        for (int i = Math.max(0, column - peakHalfWidth); i <= peakEnd; i++) {
+            if (flux[i & fluxMask] > value)
+                return;
+        }
+
+        lastOnset = column;
+        final int kept = onsetCount - discardedOnsets;
+        if (kept == onsetColumns.length) {
+            onsetColumns = Arrays.copyOf(onsetColumns, kept * 2);
+            onsetStrengths = Arrays.copyOf(onsetStrengths, kept * 2);
+        }
+        onsetColumns[kept] = column;
+        onsetStrengths[kept] = value - mean;
+        onsetCount++;
+    }
+
+    /**
+     * Discards the onsets before a column, e.g., when older live data has been discarded. The indices of the remaining
+     * onsets stay the same.
+     *
+     * @param column the first column whose onsets are kept
+     */
+    public void discardOnsetsBefore(int column) {
+        int discard = 0;
+        final int kept = onsetCount - discardedOnsets;
+        while (discard < kept && onsetColumns[discard] < column)
+            discard++;
+        if (discard == 0)
+            return;
+        System.arraycopy(onsetColumns, discard, onsetColumns, 0, kept - discard);
+        System.arraycopy(onsetStrengths, discard, onsetStrengths, 0, kept - discard);
+        discardedOnsets += discard;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @return number of onsets found including the discarded ones
+     */
+    public int getOnsetCount() {
+        return onsetCount;
+    }
+
+    /**
+     * @return index of the first onset that has not been discarded
+     */
+    public int getFirstOnset() {
+        return discardedOnsets;
+    }
+
+    /**
+     * @param index onset index in [getFirstOnset(), getOnsetCount())
+     * @return the column index of an onset, onsets are sorted by column
+     */
+    public int getOnsetColumn(int index) {
+        return onsetColumns[index - discardedOnsets];
+    }
+
+    /**
+     * @param index onset index in [getFirstOnset(), getOnsetCount())
+     * @return how much the flux of an onset exceeds the mean flux around it
+     */
+    public float getOnsetStrength(int index) {
+        return onsetStrengths[index - discardedOnsets];
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import nz.ac.auckland.lablet.views.marker.MarkerData;
+import nz.ac.auckland.lablet.views.marker.MarkerDataModel;
+import nz.ac.auckland.lablet.views.plotview.AbstractPlotDataAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps a marker data model in sync with the onsets of a frequency map.
+ *
+ * The x position of a marker is the onset time in ms, the y position the onset strength. New onsets of a growing map
+ * are appended and the markers of discarded onsets, e.g., of old live data, are removed. All other changes rebuild the
+ * model.
+ *
+ * The adapter only holds a weak reference to the updater, so the owner has to keep a reference.
+ */
+class OnsetMarkerUpdater implements AbstractPlotDataAdapter.IListener {
+    final private AudioFrequencyMapAdapter adapter;
+    final private MarkerDataModel markerModel;
+    private OnsetDetector syncedDetector = null;
+    // onsets [syncedFirst, syncedCount) are in the marker model
+    private int syncedFirst = 0;
+    private int syncedCount = 0;
+
+    public OnsetMarkerUpdater(AudioFrequencyMapAdapter adapter, MarkerDataModel markerModel) {
+        this.adapter = adapter;
+        this.markerModel = markerModel;
+
+        adapter.addListener(this);
+        update();
+    }
+
+    public void update() {
+        final OnsetDetector detector = adapter.getOnsetDetector();
+        if (detector != syncedDetector || detector == null || detector.getOnsetCount() < syncedCount) {
+            syncedDetector = detector;
+            syncedFirst = detector != null ? detector.getFirstOnset() : 0;
+            syncedCount = syncedFirst;
+            if (detector == null || detector.getOnsetCount() == syncedFirst) {
+                if (markerModel.getMarkerCount() > 0)
+                    markerModel.clear();
+                return;
+            }
+            // set all at once to only notify once
+            List<MarkerData> markers = new ArrayList<>();
+            for (; syncedCount < detector.getOnsetCount(); syncedCount++)
+                markers.add(createMarker(detector, syncedCount));
+            markerModel.setMarkerDataList(markers);
+            return;
+        }
+
+        // remove the markers of discarded onsets
+        for (; syncedFirst < detector.getFirstOnset(); syncedFirst++) {
+            if (syncedFirst < syncedCount)
+                markerModel.removeMarkerData(0);
+        }
+        syncedCount = Math.max(syncedCount, syncedFirst);
+
+        for (; syncedCount < detector.getOnsetCount(); syncedCount++)
+            markerModel.addMarkerData(createMarker(detector, syncedCount), false);
+    }
+
+    private MarkerData createMarker(OnsetDetector detector, int index) {
+        MarkerData marker = new MarkerData(index);
+        marker.getPosition().set(adapter.getX(detector.getOnsetColumn(index)), detector.getOnsetStrength(index));
+        return marker;
+    }
+
+    @Override
+    public void onDataAdded(AbstractPlotDataAdapter plot, int index, int number) {
+        update();
+    }
+
+    @Override
+    public void onDataRemoved(AbstractPlotDataAdapter plot, int index, int number) {
+        update();
+    }
+
+    @Override
+    public void onDataChanged(AbstractPlotDataAdapter plot, int index, int number) {
+        update();
+    }
+
+    @Override
+    public void onAllDataChanged(AbstractPlotDataAdapter plot) {
+        update();
+    }
+}
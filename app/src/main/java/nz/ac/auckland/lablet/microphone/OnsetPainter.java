@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import nz.ac.auckland.lablet.views.marker.MarkerData;
+import nz.ac.auckland.lablet.views.marker.MarkerDataModel;
+import nz.ac.auckland.lablet.views.plotview.AbstractPlotPainter;
+
+
+/**
+ * Marks the onsets of a marker data model (see {@link OnsetMarkerUpdater}) with vertical lines.
+ *
+ * In contrast to the cursors the onsets can't be selected or dragged. The markers must be sorted by time.
+ */
+public class OnsetPainter extends AbstractPlotPainter {
+    final private MarkerDataModel markerModel;
+    final private Paint linePaint = new Paint();
+    final private Paint tickPaint = new Paint();
+    final private PointF realPoint = new PointF();
+    final private PointF screenPoint = new PointF();
+
+    // keep a hard reference, the model only holds a weak reference
+    final private MarkerDataModel.IListener listener = new MarkerDataModel.IListener() {
+        @Override
+        public void onDataAdded(MarkerDataModel model, int index) {
+            invalidate();
+        }
+
+        @Override
+        public void onDataRemoved(MarkerDataModel model, int index, MarkerData data) {
+            invalidate();
+        }
+
+        @Override
+        public void onDataChanged(MarkerDataModel model, int index, int number) {
+            invalidate();
+        }
+
+        @Override
+        public void onAllDataChanged(MarkerDataModel model) {
+            invalidate();
+        }
+
+        @Override
+        public void onDataSelected(MarkerDataModel model, int index) {
+
+        }
+    };
+
+    public OnsetPainter(MarkerDataModel markerModel) {
+        this.markerModel = markerModel;
+        markerModel.addListener(listener);
+
+        linePaint.setColor(Color.argb(120, 255, 0, 255));
+        linePaint.setStrokeWidth(1);
+        tickPaint.setColor(Color.MAGENTA);
+        tickPaint.setStrokeWidth(3);
+    }
+
+    @Override
+    public void onSizeChanged(int width, int height, int oldw, int oldh) {
+
+    }
+
+    // first marker that is not left of time
+    private int findFirst(float time) {
+        int low = 0;
+        int high = markerModel.getMarkerCount();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (markerModel.getMarkerDataAt(middle).getPosition().x < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    @Override
+    public void onDraw(Canvas canvas) {
+        final RectF range = containerView.getRange();
+        final float left = Math.min(range.left, range.right);
+        final float right = Math.max(range.left, range.right);
+        final float height = containerView.getHeight();
+        final float tickLength = height / 10;
+        for (int i = findFirst(left); i < markerModel.getMarkerCount(); i++) {
+            final float time = markerModel.getMarkerDataAt(i).getPosition().x;
+            if (time > right)
+                break;
+            realPoint.set(time, range.top);
+            containerView.toScreen(realPoint, screenPoint);
+            canvas.drawLine(screenPoint.x, 0, screenPoint.x, height, linePaint);
+            canvas.drawLine(screenPoint.x, 0, screenPoint.x, tickLength, tickPaint);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Pure Java short time Fourier transform that distributes the windows over all available cores.
+ *
+ * The output has the same layout as the one of {@link FourierRenderScript}: for each window the magnitudes of the
+ * first windowSize / 2 frequency bins of the Hamming windowed signal.
+ *
+ * Plans (Hamming coefficients, twiddle factors and the bit reversal table) are cached per window size and shared
+ * between all instances. Apart from one work buffer per thread the transform does not allocate any memory.
+ */
+public class ParallelFourier implements IFourierTransform {
+    /**
+     * Immutable data to transform a window of a fixed size.
+     *
+     * A real window of size n is transformed as a complex FFT of size n / 2 whose result is then split into the real
+     * spectrum.
+     */
+    static class WindowPlan {
+        final public int windowSize;
+        final private int complexSize;
+        final private float[] hammingWindow;
+        final private float[] cosTable;
+        final private float[] sinTable;
+        final private int[] bitReverse;
+
+        public WindowPlan(int windowSize) {
+            if (windowSize < 4 || Integer.bitCount(windowSize) != 1)
+                throw new IllegalArgumentException("window size must be a power of two: " + windowSize);
+
+            this.windowSize = windowSize;
+            this.complexSize = windowSize / 2;
+
+            hammingWindow = new float[windowSize];
+            for (int i = 0; i < windowSize; i++)
+                hammingWindow[i] = (float)(0.54 - 0.46 * Math.cos(2 * Math.PI * i / (windowSize - 1)));
+
+            cosTable = new float[complexSize];
+            sinTable = new float[complexSize];
+            for (int i = 0; i < complexSize; i++) {
+                cosTable[i] = (float)Math.cos(2 * Math.PI * i / windowSize);
+                sinTable[i] = (float)Math.sin(2 * Math.PI * i / windowSize);
+            }
+
+            final int bits = Integer.numberOfTrailingZeros(complexSize);
+            bitReverse = new int[complexSize];
+            for (int i = 0; i < complexSize; i++)
+                bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        /**
+         * Calculates the magnitude spectrum of a single window.
+         *
+         * @param data input data
+         * @param offset start of the window in data
+         * @param workBuffer at least of size windowSize
+         * @param out receives windowSize / 2 magnitudes
+         * @param outOffset start position in out
+         */
+        public void magnitudes(float[] data, int offset, float[] workBuffer, float[] out, int outOffset) {
+            final float[] work = workBuffer;
+            final int n = complexSize;
+
+            // pack even samples into the real and odd samples into the imaginary part
+            for (int i = 0; i < n; i++) {
+                final int target = 2 * bitReverse[i];
+                work[target] = data[offset + 2 * i] * hammingWindow[2 * i];
+                work[target + 1] = data[offset + 2 * i + 1] * hammingWindow[2 * i + 1];
+            }
+
+            for (int size = 2; size <= n; size <<= 1) {
+                final int half = size >> 1;
+                final int tableStep = windowSize / size;
+                for (int start = 0; start < n; start += size) {
+                    for (int k = 0; k < half; k++) {
+                        final float wr = cosTable[k * tableStep];
+                        final float wi = -sinTable[k * tableStep];
+                        final int a = 2 * (start + k);
+                        final int b = a + 2 * half;
+                        final float tr = wr * work[b] - wi * work[b + 1];
+                        final float ti = wr * work[b + 1] + wi * work[b];
+                        work[b] = work[a] - tr;
+                        work[b + 1] = work[a + 1] - ti;
+                        work[a] += tr;
+                        work[a + 1] += ti;
+                    }
+                }
+            }
+
+            // split the complex spectrum into the spectrum of the real signal
+            for (int k = 0; k < n; k++) {
+                final int mirror = 2 * ((n - k) % n);
+                final float zr = work[2 * k];
+                final float zi = work[2 * k + 1];
+                final float cr = work[mirror];
+                final float ci = -work[mirror + 1];
+
+                final float evenR = (zr + cr) * 0.5f;
+                final float evenI = (zi + ci) * 0.5f;
+                final float oddR = (zi - ci) * 0.5f;
+                final float oddI = -(zr - cr) * 0.5f;
+
+                final float c = cosTable[k];
+                final float s = sinTable[k];
+                final float xr = evenR + c * oddR + s * oddI;
+                final float xi = evenI + c * oddI - s * oddR;
+                out[outOffset + k] = (float)Math.sqrt(xr * xr + xi * xi);
+            }
+        }
+    }
+
+    final static private Map<Integer, WindowPlan> planCache = new HashMap<>();
+
+    final private int nThreads;
+    private ExecutorService threadPool = null;
+
+    public ParallelFourier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nThreads max number of threads used for a transform; for 1 the transform runs in the calling thread
+     */
+    public ParallelFourier(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    static WindowPlan getPlan(int windowSize) {
+        synchronized (planCache) {
+            WindowPlan plan = planCache.get(windowSize);
+            if (plan == null) {
+                plan = new WindowPlan(windowSize);
+                planCache.put(windowSize, plan);
+            }
+            return plan;
+        }
+    }
+
+    static public int getOutputSize(int length, int windowSize, float stepFactor) {
+        final int stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        return Fourier.getNSteps(length, windowSize, stepWidth) * windowSize / 2;
+    }
+
+    @Override
+    public float[] transform(float[] data, int length, int windowSize, float stepFactor) {
+        final float[] out = new float[getOutputSize(length, windowSize, stepFactor)];
+        if (!transform(data, length, windowSize, stepFactor, out))
+            return null;
+        return out;
+    }
+
+    /**
+     * Transforms data into a preallocated output array.
+     *
+     * @param data input data
+     * @param length number of valid values in data
+     * @param windowSize size of the sampling window, a power of two
+     * @param stepFactor see {@link AudioFrequencyMapAdapter#setStepFactor(float)}
+     * @param out must have at least the size returned by
+     * {@link #getOutputSize(int, int, float)}
+     * @return false if the calling thread has been interrupted; out is incomplete then and running windows might
+     * still be written
+     */
+    public boolean transform(final float[] data, int length, final int windowSize, float stepFactor,
+                             final float[] out) {
+        final int stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        final int nSteps = Fourier.getNSteps(length, windowSize, stepWidth);
+        if (nSteps == 0)
+            return true;
+
+        final WindowPlan plan = getPlan(windowSize);
+        final int nTasks = Math.min(nThreads, nSteps);
+        if (nTasks <= 1) {
+            transformSteps(plan, data, stepWidth, 0, nSteps, out);
+            return true;
+        }
+
+        final List<Future<?>> futures = new ArrayList<>(nTasks);
+        for (int task = 0; task < nTasks; task++) {
+            final int firstStep = (int)((long)nSteps * task / nTasks);
+            final int endStep = (int)((long)nSteps * (task + 1) / nTasks);
+            futures.add(getThreadPool().submit(new Runnable() {
+                @Override
+                public void run() {
+                    transformSteps(plan, data, stepWidth, firstStep, endStep, out);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return true;
+    }
+
+    /**
+     * Transforms a single window.
+     *
+     * @param data input data
+     * @param offset start of the window in data
+     * @param windowSize size of the window, a power of two
+     * @param workBuffer at least of size windowSize
+     * @param out receives windowSize / 2 magnitudes starting at outOffset
+     * @param outOffset start position in out
+     */
+    public void transformWindow(float[] data, int offset, int windowSize, float[] workBuffer, float[] out,
+                                int outOffset) {
+        getPlan(windowSize).magnitudes(data, offset, workBuffer, out, outOffset);
+    }
+
+    static private void transformSteps(WindowPlan plan, float[] data, int stepWidth, int firstStep, int endStep,
+                                       float[] out) {
+        final int bunchSize = plan.windowSize / 2;
+        final float[] workBuffer = new float[plan.windowSize];
+        for (int step = firstStep; step < endStep; step++)
+            plan.magnitudes(data, step * stepWidth, workBuffer, out, step * bunchSize);
+    }
+
+    private synchronized ExecutorService getThreadPool() {
+        if (threadPool == null)
+            threadPool = Executors.newFixedThreadPool(nThreads);
+        return threadPool;
+    }
+
+    @Override
+    public synchronized void release() {
+        if (threadPool == null)
+            return;
+        threadPool.shutdown();
+        threadPool = null;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Single producer, multi consumer ring of pooled audio buffers.
+ *
+ * The producer (the capture thread) claims a slot, fills it and publishes it. Every consumer sees every slot in
+ * order and releases it when done. A slot is only reused when all consumers released it, i.e., the producer only
+ * waits if the slowest consumer is a whole ring behind. No locks are used; waiting threads are parked and woken up
+ * by the other side.
+ */
+public class SampleRing {
+    static public class Slot {
+        final public byte[] data;
+        final public float[] amplitudes;
+        // number of valid bytes in data
+        public int size;
+
+        public Slot(int bytes) {
+            data = new byte[bytes];
+            amplitudes = new float[bytes / 2];
+        }
+
+        public int getAmplitudeCount() {
+            return size / 2;
+        }
+    }
+
+    public class Consumer {
+        // sequence number of the next slot to read
+        final private AtomicLong sequence = new AtomicLong(0);
+        private volatile Thread thread = null;
+
+        /**
+         * Waits for the next slot.
+         *
+         * @return the next slot or null if the producer closed the ring and all slots have been consumed
+         */
+        public Slot next() {
+            thread = Thread.currentThread();
+            final long next = sequence.get();
+            while (published.get() <= next) {
+                if (closed)
+                    return published.get() <= next ? null : slots[(int)(next & mask)];
+                LockSupport.parkNanos(this, WAIT_TIMEOUT);
+            }
+            return slots[(int)(next & mask)];
+        }
+
+        /**
+         * Marks the slot returned by {@link #next()} as consumed.
+         */
+        public void release() {
+            sequence.incrementAndGet();
+            final Thread waiting = producerThread;
+            if (waiting != null)
+                LockSupport.unpark(waiting);
+        }
+    }
+
+    final static private long WAIT_TIMEOUT = 50 * 1000 * 1000;
+
+    final private Slot[] slots;
+    final private int mask;
+    final private List<Consumer> consumers = new ArrayList<>();
+    // number of published slots
+    final private AtomicLong published = new AtomicLong(0);
+    private volatile boolean closed = false;
+    private volatile Thread producerThread = null;
+
+    /**
+     * @param capacity number of slots, must be a power of two
+     * @param slotBytes size of each slot
+     */
+    public SampleRing(int capacity, int slotBytes) {
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++)
+            slots[i] = new Slot(slotBytes);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds a consumer; must be called before the producer starts.
+     */
+    public Consumer addConsumer() {
+        Consumer consumer = new Consumer();
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    private long getSlowestSequence() {
+        long slowest = Long.MAX_VALUE;
+        for (int i = 0; i < consumers.size(); i++)
+            slowest = Math.min(slowest, consumers.get(i).sequence.get());
+        return slowest;
+    }
+
+    /**
+     * Waits till the next slot is free and returns it. The slot is handed to the consumers with {@link #publish()}.
+     */
+    public Slot claim() {
+        producerThread = Thread.currentThread();
+        final long next = published.get();
+        while (!consumers.isEmpty() && next - getSlowestSequence() >= slots.length)
+            LockSupport.parkNanos(this, WAIT_TIMEOUT);
+        return slots[(int)(next & mask)];
+    }
+
+    public void publish() {
+        published.incrementAndGet();
+        wakeConsumers();
+    }
+
+    /**
+     * Signals the end of the stream; consumers get the remaining slots and then null.
+     */
+    public void close() {
+        closed = true;
+        wakeConsumers();
+    }
+
+    private void wakeConsumers() {
+        for (int i = 0; i < consumers.size(); i++) {
+            final Thread thread = consumers.get(i).thread;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+
+/**
+ * Short time Fourier transform of a continuous stream of samples.
+ *
+ * Incoming samples are kept in a ring buffer that holds exactly one window. Every time stepFactor * windowSize new
+ * samples arrived a new spectrum column is calculated. The window size is independent of the size of the incoming
+ * data chunks and any step factor is supported.
+ *
+ * Apart from the emitted columns, which are handed over to the listener, no memory is allocated.
+ */
+public class StreamingFourier {
+    public interface IListener {
+        /**
+         * @param frequencies windowSize / 2 magnitudes; the array is not reused by the StreamingFourier
+         */
+        void onNewFrequencies(float[] frequencies);
+    }
+
+    final private int windowSize;
+    final private int stepWidth;
+    final private ParallelFourier.WindowPlan plan;
+
+    final private float[] ringBuffer;
+    final private int ringMask;
+    // total number of samples that went into the ring buffer
+    private long sampleCount = 0;
+    // sample position where the next window ends
+    private long nextWindowEnd;
+
+    final private float[] windowBuffer;
+    final private float[] workBuffer;
+
+    /**
+     * @param windowSize size of the sampling window, a power of two
+     * @param stepFactor see {@link AudioFrequencyMapAdapter#setStepFactor(float)}
+     */
+    public StreamingFourier(int windowSize, float stepFactor) {
+        this.windowSize = windowSize;
+        this.stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        this.plan = ParallelFourier.getPlan(windowSize);
+
+        ringBuffer = new float[windowSize];
+        ringMask = windowSize - 1;
+        windowBuffer = new float[windowSize];
+        workBuffer = new float[windowSize];
+
+        reset();
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getStepWidth() {
+        return stepWidth;
+    }
+
+    /**
+     * Drops all buffered samples, e.g., when a new recording starts.
+     */
+    public void reset() {
+        sampleCount = 0;
+        nextWindowEnd = windowSize;
+    }
+
+    public void addData(float[] samples, IListener listener) {
+        addData(samples, 0, samples.length, listener);
+    }
+
+    public void addData(float[] samples, int offset, int length, IListener listener) {
+        final int end = offset + length;
+        while (offset < end) {
+            // only fill the ring buffer till the end of the next window so that it never overflows
+            final int count = (int)Math.min(end - offset, nextWindowEnd - sampleCount);
+            // with steps bigger than the window the samples before the next window are not needed
+            final int skip = (int)Math.min(count, Math.max(0, nextWindowEnd - windowSize - sampleCount));
+            final int ringPosition = (int)((sampleCount + skip) & ringMask);
+            final int firstPart = Math.min(count - skip, windowSize - ringPosition);
+            System.arraycopy(samples, offset + skip, ringBuffer, ringPosition, firstPart);
+            System.arraycopy(samples, offset + skip + firstPart, ringBuffer, 0, count - skip - firstPart);
+            offset += count;
+            sampleCount += count;
+
+            if (sampleCount == nextWindowEnd) {
+                listener.onNewFrequencies(transformCurrentWindow());
+                nextWindowEnd += stepWidth;
+            }
+        }
+    }
+
+    private float[] transformCurrentWindow() {
+        // the ring buffer is full, the oldest sample is at the current write position
+        final int start = (int)(sampleCount & ringMask);
+        System.arraycopy(ringBuffer, start, windowBuffer, 0, windowSize - start);
+        System.arraycopy(ringBuffer, 0, windowBuffer, windowSize - start, start);
+
+        final float[] frequencies = new float[windowSize / 2];
+        plan.magnitudes(windowBuffer, 0, workBuffer, frequencies, 0);
+        return frequencies;
+    }
+}
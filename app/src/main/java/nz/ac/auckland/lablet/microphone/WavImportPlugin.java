@@ -9,6 +9,7 @@ package nz.ac.auckland.lablet.microphone;
 
 import android.app.Activity;
 import nz.ac.auckland.lablet.experiment.AbstractFileImportPlugin;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
 import nz.ac.auckland.lablet.misc.StorageLib;
 import nz.ac.auckland.lablet.misc.StreamHelper;
 
@@ -36,9 +37,18 @@ public class WavImportPlugin extends AbstractFileImportPlugin {
 
     @Override
     protected boolean importFile(File importFile, File dataStorageDir) {
+        // make sure we are able to read the file
+        try {
+            new AudioWavInputStream(importFile).close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
         String fileName = importFile.getName();
+        File audioFile = new File(dataStorageDir, fileName);
         try {
-            StorageLib.copyFile(importFile, new File(dataStorageDir, fileName), new StreamHelper.IProgressListener() {
+            StorageLib.copyFile(importFile, audioFile, new StreamHelper.IProgressListener() {
                 @Override
                 public void onNewProgress(long totalProgress) {
 
@@ -49,6 +59,13 @@ public class WavImportPlugin extends AbstractFileImportPlugin {
             return false;
         }
 
+        // the peak file is optional, so failing to create it doesn't fail the import
+        try {
+            WaveformPeaks.create(audioFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         final AudioData sensorData = new AudioData();
 
         sensorData.setAudioFileName(fileName);
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone;
+
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * Peak file of a wav file, i.e., the amplitude statistics of blocks of 256, 4096 and 65536 samples.
+ *
+ * The peak file is a sidecar of the audio file (see {@link #getPeakFile(File)}). It is written in a streaming pass
+ * while recording or when a file is imported, see {@link Writer}. Opening a peak file just maps it into memory, so the
+ * waveform of a long recording is available without reading the audio data. Only when the view is zoomed in below the
+ * smallest block the raw samples have to be read.
+ *
+ * Besides min and max, the sum and the sum of squares of the blocks are stored so that the mean and the standard
+ * deviation can be shown as well.
+ *
+ * The stored length of the audio file is used to detect outdated peak files.
+ */
+public class WaveformPeaks {
+    final static private int[] BLOCK_SIZES = {256, 4096, 65536};
+    final static private int N_LEVELS = BLOCK_SIZES.length;
+    final static private String FILE_EXTENSION = ".peaks";
+    final static private int MAGIC = 0x4b50424c;
+    final static private int VERSION = 1;
+    // magic, version, sample rate, sample count, audio file length and the block count of each level
+    final static private int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4 * N_LEVELS;
+    // min and max as 16 bit values, sum and sum of squares as floats
+    final static private int RECORD_SIZE = 2 + 2 + 4 + 4;
+    // a query uses the biggest blocks that fit at least this many times into the range
+    final static private int MIN_BLOCKS_PER_QUERY = 4;
+
+    /**
+     * Collects the block statistics of a sample stream and writes the peak file.
+     */
+    static public class Writer {
+        static private class Level {
+            final int blockSize;
+            short[] min = new short[64];
+            short[] max = new short[64];
+            float[] sum = new float[64];
+            float[] sumSq = new float[64];
+            int count = 0;
+            final AmplitudeSummary.Statistics pending = new AmplitudeSummary.Statistics();
+
+            public Level(int blockSize) {
+                this.blockSize = blockSize;
+                pending.reset();
+            }
+
+            public void append() {
+                if (count == min.length) {
+                    final int capacity = min.length * 2;
+                    min = Arrays.copyOf(min, capacity);
+                    max = Arrays.copyOf(max, capacity);
+                    sum = Arrays.copyOf(sum, capacity);
+                    sumSq = Arrays.copyOf(sumSq, capacity);
+                }
+                min[count] = toShort((float)Math.floor(pending.min));
+                max[count] = toShort((float)Math.ceil(pending.max));
+                sum[count] = (float)pending.sum;
+                sumSq[count] = (float)pending.sumSq;
+                count++;
+                pending.reset();
+            }
+        }
+
+        final private int sampleRate;
+        final private Level[] levels = new Level[N_LEVELS];
+        private long sampleCount = 0;
+
+        public Writer(int sampleRate) {
+            this.sampleRate = sampleRate;
+            for (int i = 0; i < N_LEVELS; i++)
+                levels[i] = new Level(BLOCK_SIZES[i]);
+        }
+
+        public void add(float[] samples, int offset, int length) {
+            final Level base = levels[0];
+            for (int i = offset; i < offset + length; i++) {
+                base.pending.add(samples[i]);
+                if (base.pending.count == base.blockSize)
+                    completeBlock(0);
+            }
+            sampleCount += length;
+        }
+
+        private void completeBlock(int levelIndex) {
+            final Level level = levels[levelIndex];
+            if (levelIndex + 1 == N_LEVELS) {
+                level.append();
+                return;
+            }
+            final Level parent = levels[levelIndex + 1];
+            merge(level.pending, parent.pending);
+            level.append();
+            if (parent.pending.count == parent.blockSize)
+                completeBlock(levelIndex + 1);
+        }
+
+        static private void merge(AmplitudeSummary.Statistics block, AmplitudeSummary.Statistics parent) {
+            if (block.min < parent.min)
+                parent.min = block.min;
+            if (block.max > parent.max)
+                parent.max = block.max;
+            parent.sum += block.sum;
+            parent.sumSq += block.sumSq;
+            parent.count += block.count;
+        }
+
+        /**
+         * Writes the peak file; the last, incomplete blocks are included.
+         *
+         * @param peakFile see {@link #getPeakFile(File)}
+         * @param audioFileLength length of the finished audio file
+         * @throws IOException
+         */
+        public void write(File peakFile, long audioFileLength) throws IOException {
+            // the incomplete blocks are passed on to the next level like complete blocks
+            for (int i = 0; i < N_LEVELS; i++) {
+                if (levels[i].pending.count == 0)
+                    continue;
+                if (i + 1 < N_LEVELS)
+                    merge(levels[i].pending, levels[i + 1].pending);
+                levels[i].append();
+            }
+
+            RandomAccessFile file = new RandomAccessFile(peakFile, "rw");
+            try {
+                file.setLength(0);
+                FileChannel channel = file.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(sampleRate).putLong(sampleCount)
+                        .putLong(audioFileLength);
+                for (Level level : levels)
+                    buffer.putInt(level.count);
+                for (Level level : levels) {
+                    for (int i = 0; i < level.count; i++) {
+                        if (buffer.remaining() < RECORD_SIZE)
+                            writeBuffer(channel, buffer);
+                        buffer.putShort(level.min[i]).putShort(level.max[i]).putFloat(level.sum[i])
+                                .putFloat(level.sumSq[i]);
+                    }
+                }
+                writeBuffer(channel, buffer);
+            } finally {
+                file.close();
+            }
+        }
+
+        static private void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        static private short toShort(float value) {
+            if (value > Short.MAX_VALUE)
+                return Short.MAX_VALUE;
+            if (value < Short.MIN_VALUE)
+                return Short.MIN_VALUE;
+            return (short)value;
+        }
+    }
+
+    final private ByteBuffer data;
+    final private int sampleRate;
+    final private long sampleCount;
+    final private int[] blockCounts = new int[N_LEVELS];
+    final private int[] levelOffsets = new int[N_LEVELS];
+
+    private WaveformPeaks(ByteBuffer data) throws IOException {
+        this.data = data;
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION)
+            throw new IOException("Not a peak file");
+        sampleRate = data.getInt(8);
+        sampleCount = data.getLong(12);
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < N_LEVELS; i++) {
+            blockCounts[i] = data.getInt(28 + 4 * i);
+            levelOffsets[i] = offset;
+            offset += blockCounts[i] * RECORD_SIZE;
+        }
+        if (offset > data.capacity())
+            throw new IOException("Peak file is truncated");
+    }
+
+    static public File getPeakFile(File audioFile) {
+        return new File(audioFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the peak file of an audio file.
+     *
+     * @param audioFile the audio file
+     * @return the peaks or null if there is no valid peak file for the audio file
+     */
+    static public WaveformPeaks open(File audioFile) {
+        File peakFile = getPeakFile(audioFile);
+        if (!peakFile.exists() || peakFile.length() < HEADER_SIZE)
+            return null;
+        try {
+            RandomAccessFile file = new RandomAccessFile(peakFile, "r");
+            try {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getLong(20) != audioFile.length())
+                    return null;
+                return new WaveformPeaks(buffer);
+            } finally {
+                // the mapping stays valid after the file is closed
+                file.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Creates the peak file of an audio file in a single pass over the audio data.
+     *
+     * @param audioFile the audio file
+     * @return the peaks
+     * @throws IOException
+     */
+    static public WaveformPeaks create(File audioFile) throws IOException {
+        AudioWavInputStream inputStream = new AudioWavInputStream(audioFile);
+        Writer writer = new Writer(inputStream.getSampleRate());
+        try {
+            final float[] buffer = new float[BLOCK_SIZES[N_LEVELS - 1]];
+            int read;
+            while ((read = inputStream.readAmplitudes(buffer, 0, buffer.length)) > 0)
+                writer.add(buffer, 0, read);
+        } finally {
+            inputStream.close();
+        }
+        writer.write(getPeakFile(audioFile), audioFile.length());
+        WaveformPeaks peaks = open(audioFile);
+        if (peaks == null)
+            throw new IOException("Failed to create the peak file");
+        return peaks;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return ranges smaller than this can't be answered from the peaks
+     */
+    public int getMinBlockSize() {
+        return BLOCK_SIZES[0];
+    }
+
+    /**
+     * Adds sum, sum of squares and count of the blocks that exactly cover the samples [start, end).
+     *
+     * In contrast to {@link #getStatistics(long, long, AmplitudeSummary.Statistics)} the range is not extended, so the
+     * borders have to be aligned to the smallest blocks. The biggest blocks that fit are used. Min and max are not set.
+     *
+     * @param start first sample index, a multiple of {@link #getMinBlockSize()}
+     * @param end sample index after the last sample, a multiple of {@link #getMinBlockSize()} or the sample count
+     * @param statistics the sums are added to it
+     */
+    public void addBlockSums(long start, long end, AmplitudeSummary.Statistics statistics) {
+        if (end > sampleCount)
+            end = sampleCount;
+        long position = start;
+        while (position < end) {
+            int level = N_LEVELS - 1;
+            while (level > 0 && (position % BLOCK_SIZES[level] != 0
+                    || Math.min(position + BLOCK_SIZES[level], sampleCount) > end))
+                level--;
+            final int blockSize = BLOCK_SIZES[level];
+            final int block = (int)(position / blockSize);
+            if (block >= blockCounts[level])
+                break;
+            final int recordPosition = levelOffsets[level] + block * RECORD_SIZE;
+            statistics.sum += data.getFloat(recordPosition + 4);
+            statistics.sumSq += data.getFloat(recordPosition + 8);
+            statistics.count += (int)Math.min(blockSize, sampleCount - position);
+            position += blockSize;
+        }
+    }
+
+    /**
+     * Calculates the statistics of the samples [start, end) from the blocks.
+     *
+     * The range is extended to the borders of the used blocks, i.e., the result covers slightly more than the range.
+     *
+     * @param start first sample index
+     * @param end sample index after the last sample
+     * @param statistics the result
+     * @return false if the range is smaller than the smallest block; the raw samples have to be used then
+     */
+    public boolean getStatistics(long start, long end, AmplitudeSummary.Statistics statistics) {
+        statistics.reset();
+        if (end > sampleCount)
+            end = sampleCount;
+        if (end - start < BLOCK_SIZES[0])
+            return false;
+
+        int level = 0;
+        while (level + 1 < N_LEVELS && (end - start) / BLOCK_SIZES[level + 1] >= MIN_BLOCKS_PER_QUERY)
+            level++;
+
+        final int blockSize = BLOCK_SIZES[level];
+        final int firstBlock = (int)(start / blockSize);
+        final int lastBlock = (int)Math.min((end - 1) / blockSize, blockCounts[level] - 1);
+        for (int block = firstBlock; block <= lastBlock; block++) {
+            final int position = levelOffsets[level] + block * RECORD_SIZE;
+            final float min = data.getShort(position);
+            final float max = data.getShort(position + 2);
+            if (min < statistics.min)
+                statistics.min = min;
+            if (max > statistics.max)
+                statistics.max = max;
+            statistics.sum += data.getFloat(position + 4);
+            statistics.sumSq += data.getFloat(position + 8);
+            statistics.count += (int)Math.min(blockSize, sampleCount - (long)block * blockSize);
+        }
+        return true;
+    }
+}
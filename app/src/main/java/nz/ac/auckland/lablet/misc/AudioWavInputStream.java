@@ -10,26 +10,262 @@ package nz.ac.auckland.lablet.misc;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 
+/**
+ * Reads wav files.
+ *
+ * The header is parsed by walking through the RIFF chunks, unknown chunks (LIST, fact...) are skipped. Files bigger
+ * than 4GB in the RF64 or BW64 format are supported as well. Supported are
+ * 8, 16, 24 and 32 bit integer PCM and 32 and 64 bit float PCM (also in the extensible format) with any number of
+ * channels.
+ *
+ * The amplitudes returned by {@link #readAmplitudes(float[], int, int)} are down mixed to one channel and are scaled to
+ * the range of 16 bit samples, i.e., the analysis does not depend on the format of the file.
+ */
 public class AudioWavInputStream extends InputStream implements Closeable {
     private File file;
     private FileInputStream inputStream;
+    // shares the file position with the inputStream
+    private FileChannel channel;
     private int channelCount;
     private int sampleRate;
     private int byteRate;
-    private int audioDataSize;
+    private long audioDataSize;
+    // file offset of the audio data
+    private long audioDataOffset;
+
+    private int audioFormat;
+    private int bitsPerSample;
+    // bytes per frame, i.e., for all channels
+    private int blockAlign;
+
+    /**
+     * Bytes per sample of the format used for recording, see {@link #toAmplitudeData(byte[], int)}.
+     */
     final static public int BYTES_PER_SAMPLE = 2;
 
+    final static public int FORMAT_PCM = 1;
+    final static public int FORMAT_IEEE_FLOAT = 3;
+    final static private int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    final static private int READ_BUFFER_SIZE = 64 * 1024;
+    private ByteBuffer readBuffer = null;
+    // conversion buffers, only the one for the file format is allocated
+    private short[] shortBuffer = null;
+    private int[] intBuffer = null;
+    private float[] floatBuffer = null;
+    private double[] doubleBuffer = null;
+    private byte[] byteBuffer = null;
+
     public AudioWavInputStream(File file) throws IOException {
         this.file = file;
         inputStream = new FileInputStream(file);
-        readHeader();
+        channel = inputStream.getChannel();
+        try {
+            readHeader();
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        channel.position(audioDataOffset);
     }
 
     public void rewind() throws IOException {
-        inputStream = new FileInputStream(file);
-        inputStream.skip(44);
+        seekToSample(0);
+    }
+
+    /**
+     * Moves the read position to a certain sample without reopening the file.
+     *
+     * @param sample sample index, 0 is the start of the audio data
+     * @throws IOException
+     */
+    public void seekToSample(long sample) throws IOException {
+        sample = Math.max(0, Math.min(sample, getSampleCount()));
+        channel.position(audioDataOffset + sample * blockAlign);
+    }
+
+    /**
+     * @return index of the sample that is read next
+     * @throws IOException
+     */
+    public long getSamplePosition() throws IOException {
+        return (channel.position() - audioDataOffset) / blockAlign;
+    }
+
+    /**
+     * @return number of samples (frames) in the audio data
+     */
+    public int getSampleCount() {
+        return (int)Math.min(Integer.MAX_VALUE, audioDataSize / blockAlign);
+    }
+
+    /**
+     * Reads and decodes a block of samples.
+     *
+     * The data is read in big blocks through the file channel and decoded through little endian buffer views.
+     * Multiple channels are averaged.
+     *
+     * @param dst target array
+     * @param offset offset in dst
+     * @param length max number of samples to read
+     * @return the number of samples read or -1 if the end of the audio data is reached
+     * @throws IOException
+     */
+    public int readAmplitudes(float[] dst, int offset, int length) throws IOException {
+        final long remaining = getSampleCount() - getSamplePosition();
+        if (remaining <= 0)
+            return -1;
+        length = (int)Math.min(length, remaining);
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE - READ_BUFFER_SIZE % blockAlign);
+            readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        final int maxFrames = readBuffer.capacity() / blockAlign;
+        int read = 0;
+        while (read < length) {
+            final int count = Math.min(length - read, maxFrames);
+            readBuffer.clear();
+            readBuffer.limit(count * blockAlign);
+            while (readBuffer.hasRemaining()) {
+                if (channel.read(readBuffer) < 0)
+                    break;
+            }
+            final int frames = readBuffer.position() / blockAlign;
+            readBuffer.flip();
+            decode(frames, dst, offset + read);
+            read += frames;
+            if (frames < count)
+                break;
+        }
+        if (read == 0)
+            return -1;
+        return read;
+    }
+
+    private void decode(int frames, float[] dst, int offset) {
+        final int samples = frames * channelCount;
+        if (audioFormat == FORMAT_IEEE_FLOAT) {
+            if (bitsPerSample == 32) {
+                if (floatBuffer == null)
+                    floatBuffer = new float[readBuffer.capacity() / 4];
+                readBuffer.asFloatBuffer().get(floatBuffer, 0, samples);
+                downMix(floatBuffer, frames, 32768f, dst, offset);
+            } else {
+                if (doubleBuffer == null)
+                    doubleBuffer = new double[readBuffer.capacity() / 8];
+                readBuffer.asDoubleBuffer().get(doubleBuffer, 0, samples);
+                downMix(doubleBuffer, frames, 32768f, dst, offset);
+            }
+            return;
+        }
+
+        switch (bitsPerSample) {
+            case 8:
+                if (byteBuffer == null)
+                    byteBuffer = new byte[readBuffer.capacity()];
+                readBuffer.get(byteBuffer, 0, samples);
+                downMixUnsigned8(byteBuffer, frames, dst, offset);
+                break;
+            case 16:
+                if (shortBuffer == null)
+                    shortBuffer = new short[readBuffer.capacity() / 2];
+                readBuffer.asShortBuffer().get(shortBuffer, 0, samples);
+                downMix(shortBuffer, frames, dst, offset);
+                break;
+            case 24:
+                if (byteBuffer == null)
+                    byteBuffer = new byte[readBuffer.capacity()];
+                readBuffer.get(byteBuffer, 0, samples * 3);
+                downMix24(byteBuffer, frames, dst, offset);
+                break;
+            case 32:
+                if (intBuffer == null)
+                    intBuffer = new int[readBuffer.capacity() / 4];
+                readBuffer.asIntBuffer().get(intBuffer, 0, samples);
+                downMix(intBuffer, frames, 1f / 65536, dst, offset);
+                break;
+        }
+    }
+
+    private void downMix(short[] samples, int frames, float[] dst, int offset) {
+        if (channelCount == 1) {
+            for (int i = 0; i < frames; i++)
+                dst[offset + i] = samples[i];
+            return;
+        }
+        final float scale = 1f / channelCount;
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            for (int c = 0; c < channelCount; c++)
+                sum += samples[i * channelCount + c];
+            dst[offset + i] = sum * scale;
+        }
+    }
+
+    private void downMix(int[] samples, int frames, float scale, float[] dst, int offset) {
+        if (channelCount == 1) {
+            for (int i = 0; i < frames; i++)
+                dst[offset + i] = samples[i] * scale;
+            return;
+        }
+        scale /= channelCount;
+        for (int i = 0; i < frames; i++) {
+            long sum = 0;
+            for (int c = 0; c < channelCount; c++)
+                sum += samples[i * channelCount + c];
+            dst[offset + i] = sum * scale;
+        }
+    }
+
+    private void downMix(float[] samples, int frames, float scale, float[] dst, int offset) {
+        if (channelCount == 1) {
+            for (int i = 0; i < frames; i++)
+                dst[offset + i] = samples[i] * scale;
+            return;
+        }
+        scale /= channelCount;
+        for (int i = 0; i < frames; i++) {
+            float sum = 0;
+            for (int c = 0; c < channelCount; c++)
+                sum += samples[i * channelCount + c];
+            dst[offset + i] = sum * scale;
+        }
+    }
+
+    private void downMix(double[] samples, int frames, float scale, float[] dst, int offset) {
+        scale /= channelCount;
+        for (int i = 0; i < frames; i++) {
+            double sum = 0;
+            for (int c = 0; c < channelCount; c++)
+                sum += samples[i * channelCount + c];
+            dst[offset + i] = (float)(sum * scale);
+        }
+    }
+
+    private void downMixUnsigned8(byte[] samples, int frames, float[] dst, int offset) {
+        final float scale = 256f / channelCount;
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            for (int c = 0; c < channelCount; c++)
+                sum += (samples[i * channelCount + c] & 0xFF) - 128;
+            dst[offset + i] = sum * scale;
+        }
+    }
+
+    private void downMix24(byte[] samples, int frames, float[] dst, int offset) {
+        final float scale = 1f / (256 * channelCount);
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            for (int c = 0; c < channelCount; c++) {
+                final int index = (i * channelCount + c) * 3;
+                sum += (samples[index] & 0xFF) | (samples[index + 1] & 0xFF) << 8 | samples[index + 2] << 16;
+            }
+            dst[offset + i] = sum * scale;
+        }
     }
 
     @Override
@@ -48,7 +284,10 @@ public class AudioWavInputStream extends InputStream implements Closeable {
         inputStream.close();
     }
 
-    public int getSize() {
+    /**
+     * @return size of the audio data in bytes
+     */
+    public long getSize() {
         return audioDataSize;
     }
 
@@ -60,7 +299,25 @@ public class AudioWavInputStream extends InputStream implements Closeable {
         return sampleRate;
     }
 
-    public int lengthToMilliSeconds(int bytes) {
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    /**
+     * @return {@link #FORMAT_PCM} or {@link #FORMAT_IEEE_FLOAT}
+     */
+    public int getAudioFormat() {
+        return audioFormat;
+    }
+
+    /**
+     * @return number of bytes of one sample of all channels
+     */
+    public int getBytesPerFrame() {
+        return blockAlign;
+    }
+
+    public int lengthToMilliSeconds(long bytes) {
         return (int)(1000f / getByteRate() * bytes);
     }
 
@@ -72,48 +329,110 @@ public class AudioWavInputStream extends InputStream implements Closeable {
         return byteRate;
     }
 
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Unexpected end of wav file");
+        }
+        buffer.flip();
+    }
+
+    private String readChunkId(ByteBuffer buffer) {
+        byte[] id = new byte[4];
+        buffer.get(id);
+        return new String(id);
+    }
+
     private void readHeader() throws IOException {
-        byte[] buffer32 = new byte[4];
-        if (inputStream.read(buffer32) != 4 || !(new String(buffer32)).equals("RIFF"))
-            throw new IOException();
-        // data size
-        if (inputStream.read(buffer32) != 4)
-            throw new IOException();
-        if (inputStream.read(buffer32) != 4 || !(new String(buffer32)).equals("WAVE"))
-            throw new IOException();
-        if (inputStream.read(buffer32) != 4 || !(new String(buffer32)).equals("fmt "))
-            throw new IOException();
-        if (inputStream.read() != 16)
-            throw new IOException();
-        if (inputStream.read(buffer32) != 4 || buffer32[3] != 1)
-            throw new IOException();
-        inputStream.read();
-        // channel count
-        channelCount = inputStream.read();
-        inputStream.read();
-        // sample rate
-        if (inputStream.read(buffer32) != 4)
-            throw new IOException();
-        ByteBuffer buffer = ByteBuffer.wrap(buffer32);
+        ByteBuffer buffer = ByteBuffer.allocate(12);
         buffer.order(ByteOrder.LITTLE_ENDIAN);
-        sampleRate = buffer.getInt();
-        // byte rate
-        if (inputStream.read(buffer32) != 4)
-            throw new IOException();
-        buffer = ByteBuffer.wrap(buffer32);
+        readFully(buffer);
+        final String riffId = readChunkId(buffer);
+        // RF64 and BW64 files store sizes past 4GB in a ds64 chunk
+        final boolean rf64 = riffId.equals("RF64") || riffId.equals("BW64");
+        if (!riffId.equals("RIFF") && !rf64)
+            throw new IOException("Not a RIFF file");
+        // riff size
+        buffer.getInt();
+        if (!readChunkId(buffer).equals("WAVE"))
+            throw new IOException("Not a wave file");
+
+        final long fileLength = channel.size();
+        boolean fmtFound = false;
+        long ds64DataSize = -1;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+        chunkHeader.order(ByteOrder.LITTLE_ENDIAN);
+        while (true) {
+            chunkHeader.clear();
+            readFully(chunkHeader);
+            final String chunkId = readChunkId(chunkHeader);
+            long chunkSize = chunkHeader.getInt() & 0xFFFFFFFFL;
+            final long chunkStart = channel.position();
+
+            if (rf64 && chunkId.equals("ds64")) {
+                if (chunkSize < 24)
+                    throw new IOException("Invalid ds64 chunk");
+                ByteBuffer ds64 = ByteBuffer.allocate(24);
+                ds64.order(ByteOrder.LITTLE_ENDIAN);
+                readFully(ds64);
+                // riff size, data size and sample count
+                ds64.getLong();
+                ds64DataSize = ds64.getLong();
+            } else if (chunkId.equals("fmt ")) {
+                readFormatChunk(chunkSize);
+                fmtFound = true;
+            } else if (chunkId.equals("data")) {
+                if (!fmtFound)
+                    throw new IOException("Missing fmt chunk");
+                audioDataOffset = chunkStart;
+                if (chunkSize == 0xFFFFFFFFL && ds64DataSize >= 0)
+                    chunkSize = ds64DataSize;
+                // streaming writers may leave the size empty; also don't trust sizes past the end of the file
+                final long available = fileLength - chunkStart;
+                audioDataSize = chunkSize == 0 || chunkSize > available ? available : chunkSize;
+                audioDataSize -= audioDataSize % blockAlign;
+                return;
+            }
+            // chunks are word aligned
+            channel.position(chunkStart + chunkSize + (chunkSize & 1));
+        }
+    }
+
+    private void readFormatChunk(long chunkSize) throws IOException {
+        if (chunkSize < 16)
+            throw new IOException("Invalid fmt chunk");
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(chunkSize, 40));
         buffer.order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer);
+        audioFormat = buffer.getShort() & 0xFFFF;
+        channelCount = buffer.getShort() & 0xFFFF;
+        sampleRate = buffer.getInt();
         byteRate = buffer.getInt();
-        // some other data...
-        if (inputStream.read(buffer32) != 4)
-            throw new IOException();
-        if (inputStream.read(buffer32) != 4 || !(new String(buffer32)).equals("data"))
-            throw new IOException();
-        // audio data size
-        if (inputStream.read(buffer32) != 4)
-            throw new IOException();
-        buffer = ByteBuffer.wrap(buffer32);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        audioDataSize = buffer.getInt();
+        blockAlign = buffer.getShort() & 0xFFFF;
+        bitsPerSample = buffer.getShort() & 0xFFFF;
+        if (audioFormat == FORMAT_EXTENSIBLE) {
+            if (buffer.remaining() < 10)
+                throw new IOException("Invalid extensible fmt chunk");
+            // extension size, valid bits per sample and channel mask
+            buffer.position(buffer.position() + 8);
+            // the sub format GUID starts with the format code
+            audioFormat = buffer.getShort() & 0xFFFF;
+        }
+
+        if (channelCount < 1)
+            throw new IOException("Invalid channel count: " + channelCount);
+        if (audioFormat == FORMAT_PCM) {
+            if (bitsPerSample != 8 && bitsPerSample != 16 && bitsPerSample != 24 && bitsPerSample != 32)
+                throw new IOException("Unsupported bits per sample: " + bitsPerSample);
+        } else if (audioFormat == FORMAT_IEEE_FLOAT) {
+            if (bitsPerSample != 32 && bitsPerSample != 64)
+                throw new IOException("Unsupported bits per sample: " + bitsPerSample);
+        } else
+            throw new IOException("Unsupported audio format: " + audioFormat);
+        if (blockAlign != channelCount * bitsPerSample / 8)
+            throw new IOException("Unsupported block align: " + blockAlign);
+        if (byteRate <= 0)
+            byteRate = sampleRate * blockAlign;
     }
 
     static public float[] toAmplitudeData(byte[] buffer, int bufferSize) {
@@ -141,6 +460,8 @@ public class AudioWavInputStream extends InputStream implements Closeable {
     /**
      * This method allows to read amplitude float data from a stream.
      *
+     * Prefer {@link #readAmplitudes(float[], int, int)} to read blocks of samples.
+     *
      * AudioWavInputStream is not buffered this method allows to read from a buffered stream.
      *
      * @param inputStream the input stream to read the data from
@@ -8,94 +8,171 @@
 package nz.ac.auckland.lablet.misc;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 
+/**
+ * Writes 16 bit PCM wav files.
+ *
+ * The audio data is collected in a big direct buffer and written through a file channel, i.e., there is no system
+ * call per write. Every time the buffer is flushed the header is updated as well, so a file that has not been closed
+ * properly (e.g. after a crash) is still valid up to the last flush.
+ *
+ * The header reserves space for a ds64 chunk (as JUNK chunk). When the file grows past the 4GB limit of the RIFF
+ * format the header is turned into a RF64 header, see EBU Tech 3306.
+ */
 public class AudioWavOutputStream extends OutputStream implements Closeable {
     private RandomAccessFile outFile;
-    private long audioDataLength = 0;
+    private FileChannel channel;
+    // audio data that is in the file, i.e., not in the buffer anymore
+    private long writtenDataLength = 0;
     private long sampleRate = 0;
     final private int PCM_FORMAT = 1;
     final private int PCM_SUB_CHUNK_SIZE = 16;
     final private int BITS_PER_SAMPLE = 16;
     protected int channelCount;
 
+    final static private int BUFFER_SIZE = 256 * 1024;
+    // size of the ds64 chunk data: riff size, data size, sample count and table length
+    final static private int DS64_SIZE = 28;
+    final static public int HEADER_SIZE = 12 + 8 + DS64_SIZE + 8 + 16 + 8;
+    final static private long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    final private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final private ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+
+    // the file is extended in steps of this size, 0 for no preallocation
+    private long preallocationSize = 0;
+    private long allocatedLength = 0;
+
     public AudioWavOutputStream(File file, int channelCount, int sampleRate) throws IOException {
         this.outFile = new RandomAccessFile(file, "rw");
+        this.channel = outFile.getChannel();
 
         this.channelCount = channelCount;
         this.sampleRate = sampleRate;
 
+        headerBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        outFile.setLength(0);
+        writeHeader();
         // set position just after the header
-        outFile.seek(44);
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * Enables preallocation of the file.
+     *
+     * The file is extended in big steps, which reduces fragmentation and file system updates during long recordings.
+     * The preallocated space is cut off when the stream is closed.
+     *
+     * @param bytes the size of one allocation step, 0 to disable preallocation
+     */
+    public void setPreallocationSize(long bytes) {
+        this.preallocationSize = bytes;
     }
 
     @Override
     public void write(int i) throws IOException {
-        outFile.write(i);
-        audioDataLength++;
+        if (!buffer.hasRemaining())
+            flushBuffer();
+        buffer.put((byte)i);
     }
 
     @Override
     public void write(byte[] buffer) throws java.io.IOException {
-        outFile.write(buffer);
-        audioDataLength += buffer.length;
+        write(buffer, 0, buffer.length);
     }
 
     @Override
-    public void write(byte[] buffer, int offset, int count) throws java.io.IOException {
-        outFile.write(buffer, offset, count);
-        audioDataLength += count;
+    public void write(byte[] data, int offset, int count) throws java.io.IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining())
+                flushBuffer();
+            final int chunk = Math.min(count, buffer.remaining());
+            buffer.put(data, offset, chunk);
+            offset += chunk;
+            count -= chunk;
+        }
     }
 
+    /**
+     * Writes the buffered data and updates the header.
+     */
     @Override
-    public void close() throws IOException {
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        preallocate(channel.position() + buffer.remaining());
+        while (buffer.hasRemaining())
+            writtenDataLength += channel.write(buffer);
+        buffer.clear();
         writeHeader();
-        outFile.close();
     }
 
-    private void writeAsBigEndian(long value) throws IOException {
-        outFile.writeByte((int)(value & 0xff));
-        outFile.writeByte((int)((value >> 8) & 0xff));
-        outFile.writeByte((int)((value >> 16) & 0xff));
-        outFile.writeByte((int)((value >> 24) & 0xff));
+    private void preallocate(long length) throws IOException {
+        if (preallocationSize <= 0 || length <= allocatedLength)
+            return;
+        allocatedLength = Math.max(length, allocatedLength + preallocationSize);
+        outFile.setLength(allocatedLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+            // cut off the preallocated space and pad the data chunk to an even size
+            long length = HEADER_SIZE + writtenDataLength;
+            if ((writtenDataLength & 1) != 0) {
+                channel.write(ByteBuffer.allocate(1), length);
+                length++;
+            }
+            channel.truncate(length);
+        } finally {
+            outFile.close();
+        }
+    }
+
+    private void putId(String id) {
+        for (int i = 0; i < 4; i++)
+            headerBuffer.put((byte)id.charAt(i));
     }
 
     private void writeHeader() throws IOException {
-        long dataLength = audioDataLength + 36;
-
-        outFile.seek(0);
-        outFile.write('R');
-        outFile.write('I');
-        outFile.write('F');
-        outFile.write('F');
-        writeAsBigEndian(dataLength + 36);
-        outFile.write('W');
-        outFile.write('A');
-        outFile.write('V');
-        outFile.write('E');
-        outFile.write('f');
-        outFile.write('m');
-        outFile.write('t');
-        outFile.write(' ');
-        outFile.writeByte(PCM_SUB_CHUNK_SIZE);
-        outFile.writeByte(0);
-        outFile.writeByte(0);
-        outFile.writeByte(0);
-        outFile.writeByte(PCM_FORMAT);
-        outFile.writeByte(0);
-        outFile.writeByte(channelCount);
-        outFile.writeByte(0);
-        writeAsBigEndian(sampleRate);
-        long byteRate = sampleRate * 2 * channelCount;
-        writeAsBigEndian(byteRate);
-        outFile.writeByte(BITS_PER_SAMPLE / 2 * channelCount);
-        outFile.writeByte(0);
-        outFile.writeByte(BITS_PER_SAMPLE);
-        outFile.writeByte(0);
-        outFile.write('d');
-        outFile.write('a');
-        outFile.write('t');
-        outFile.write('a');
-        writeAsBigEndian(audioDataLength);
+        final long dataLength = writtenDataLength;
+        final long riffSize = HEADER_SIZE - 8 + dataLength + (dataLength & 1);
+        final boolean rf64 = riffSize > MAX_RIFF_SIZE;
+        final int bytesPerFrame = BITS_PER_SAMPLE / 8 * channelCount;
+
+        headerBuffer.clear();
+        putId(rf64 ? "RF64" : "RIFF");
+        headerBuffer.putInt((int)(rf64 ? MAX_RIFF_SIZE : riffSize));
+        putId("WAVE");
+        // placeholder for the ds64 chunk as long as the file is small enough
+        putId(rf64 ? "ds64" : "JUNK");
+        headerBuffer.putInt(DS64_SIZE);
+        headerBuffer.putLong(rf64 ? riffSize : 0);
+        headerBuffer.putLong(rf64 ? dataLength : 0);
+        headerBuffer.putLong(rf64 ? dataLength / bytesPerFrame : 0);
+        headerBuffer.putInt(0);
+        putId("fmt ");
+        headerBuffer.putInt(PCM_SUB_CHUNK_SIZE);
+        headerBuffer.putShort((short)PCM_FORMAT);
+        headerBuffer.putShort((short)channelCount);
+        headerBuffer.putInt((int)sampleRate);
+        headerBuffer.putInt((int)(sampleRate * bytesPerFrame));
+        headerBuffer.putShort((short)bytesPerFrame);
+        headerBuffer.putShort((short)BITS_PER_SAMPLE);
+        putId("data");
+        headerBuffer.putInt((int)(rf64 ? MAX_RIFF_SIZE : dataLength));
+        headerBuffer.flip();
+
+        long position = 0;
+        while (headerBuffer.hasRemaining())
+            position += channel.write(headerBuffer, position);
     }
 }
@@ -193,6 +193,12 @@ public class PlotPainterContainerView extends RangeDrawingView {
     public List<AbstractPlotDataAdapter> getPlotDataAdapters() {
         List<AbstractPlotDataAdapter> list = new ArrayList<>();
         for (IPlotPainter painter : allPainters) {
+            if (painter instanceof AbstractPlotDataPainter) {
+                AbstractPlotDataAdapter adapter = ((AbstractPlotDataPainter)painter).getDataAdapter();
+                if (adapter != null && !list.contains(adapter))
+                    list.add(adapter);
+                continue;
+            }
             if (!(painter instanceof StrategyPainter))
                 continue;
             List<ConcurrentPainter> childPainters = ((StrategyPainter)painter).getChildPainters();
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+import nz.ac.auckland.lablet.microphone.Fourier;
+import nz.ac.auckland.lablet.microphone.ParallelFourier;
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+
+
+/**
+ * Compares the transforms against {@link ReferenceDft} and checks that the PCM conversion is lossless.
+ *
+ * The error of a window is the max absolute difference to the reference, relative to the biggest reference
+ * magnitude of the window. Exits with an error if an error is above the tolerance.
+ */
+public class AccuracyCheck {
+    final static private double TOLERANCE = 1e-4;
+    final static private int[] WINDOW_SIZES = {256, 1024, 4096, 16384};
+    final static private float[] STEP_FACTORS = {0.1f, 0.5f, 1.0f};
+    final static private String[] SIGNALS = {"SWEEP", "NOISE"};
+    // number of windows that are compared per configuration
+    final static private int CHECKED_WINDOWS = 3;
+
+    static private boolean failed = false;
+
+    static private double relativeError(double[] reference, float[] values, int offset) {
+        double max = 0;
+        double maxError = 0;
+        for (int i = 0; i < reference.length; i++) {
+            max = Math.max(max, reference[i]);
+            maxError = Math.max(maxError, Math.abs(reference[i] - values[offset + i]));
+        }
+        if (max == 0)
+            return maxError;
+        return maxError / max;
+    }
+
+    static private void report(String name, int windowSize, float stepFactor, String signal, double error) {
+        final boolean ok = error <= TOLERANCE;
+        if (!ok)
+            failed = true;
+        System.out.println(String.format("%-22s %6d %5.2f %-6s %10.3e %s", name, windowSize, stepFactor, signal,
+                error, ok ? "ok" : "FAILED"));
+    }
+
+    static private void checkTransforms() {
+        System.out.println(String.format("%-22s %6s %5s %-6s %10s", "transform", "window", "step", "signal",
+                "error"));
+        final ParallelFourier parallelFourier = new ParallelFourier();
+        try {
+            for (int windowSize : WINDOW_SIZES) {
+                for (String signal : SIGNALS) {
+                    final float[] data = Signals.create(signal, windowSize * 8);
+                    for (float stepFactor : STEP_FACTORS) {
+                        final int stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+                        final int nSteps = Fourier.getNSteps(data.length, windowSize, stepWidth);
+                        final float[] out = parallelFourier.transform(data, data.length, windowSize, stepFactor);
+                        final float[] rsOut = new float[out.length];
+                        RenderScriptFftPort.transform(data, data.length, windowSize, stepFactor,
+                                new float[2 * windowSize], rsOut);
+
+                        double error = 0;
+                        double rsError = 0;
+                        for (int i = 0; i < CHECKED_WINDOWS; i++) {
+                            final int step = (int)((long)(nSteps - 1) * i / (CHECKED_WINDOWS - 1));
+                            final double[] reference = ReferenceDft.magnitudes(data, step * stepWidth,
+                                    windowSize);
+                            error = Math.max(error, relativeError(reference, out, step * windowSize / 2));
+                            rsError = Math.max(rsError, relativeError(reference, rsOut, step * windowSize / 2));
+                        }
+                        report("ParallelFourier", windowSize, stepFactor, signal, error);
+                        report("fft.rs (Java port)", windowSize, stepFactor, signal, rsError);
+                    }
+                }
+            }
+        } finally {
+            parallelFourier.release();
+        }
+    }
+
+    static private void checkAmplitudeConversion() {
+        final float[] samples = Signals.noise(Signals.SAMPLE_RATE, 7);
+        final byte[] bytes = Signals.toPcm16(samples);
+        final float[] converted = AudioWavInputStream.toAmplitudeData(bytes, bytes.length);
+        int mismatches = 0;
+        for (int i = 0; i < samples.length; i++) {
+            if (converted[i] != samples[i])
+                mismatches++;
+        }
+        if (mismatches > 0)
+            failed = true;
+        System.out.println("toAmplitudeData: " + mismatches + " mismatches " + (mismatches == 0 ? "ok" : "FAILED"));
+    }
+
+    static public void main(String[] args) {
+        checkTransforms();
+        checkAmplitudeConversion();
+        if (failed)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+import nz.ac.auckland.lablet.misc.AudioWavInputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Throughput of the PCM to float conversion of recorded buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AmplitudeConversionBenchmark {
+    // size of the converted buffer; 4096 is the size of a recording buffer
+    @Param({"4096", "1323000"})
+    public int samples;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long samples;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            samples = 0;
+        }
+    }
+
+    private byte[] pcm;
+    private float[] out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pcm = Signals.toPcm16(Signals.noise(samples, 42));
+        out = new float[samples];
+    }
+
+    @Benchmark
+    public float[] toAmplitudeData(Counters counters) {
+        AudioWavInputStream.toAmplitudeData(pcm, pcm.length, out);
+        counters.samples += samples;
+        return out;
+    }
+
+    @Benchmark
+    public float[] toAmplitudeDataAllocating(Counters counters) {
+        counters.samples += samples;
+        return AudioWavInputStream.toAmplitudeData(pcm, pcm.length);
+    }
+}
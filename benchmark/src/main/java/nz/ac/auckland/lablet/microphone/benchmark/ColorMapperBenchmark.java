@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+import nz.ac.auckland.lablet.microphone.FrequencyColorMapper;
+import nz.ac.auckland.lablet.microphone.ParallelFourier;
+import nz.ac.auckland.lablet.views.plotview.IScale;
+import nz.ac.auckland.lablet.views.plotview.LinearScale;
+import nz.ac.auckland.lablet.views.plotview.Log10Scale;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Throughput of the conversion of frequency columns to bitmap columns, i.e., the per column work of the
+ * frequency map painter. The columns are converted to levels and then colored through a palette.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorMapperBenchmark {
+    final static private int N_COLUMNS = 64;
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int windowSize;
+
+    @Param({"LINEAR", "LOG10"})
+    public String scale;
+
+    // height of the drawing area in pixels
+    @Param({"400", "1600"})
+    public int height;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long columns;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            columns = 0;
+        }
+    }
+
+    private float[][] columns;
+    private byte[] levels;
+    private int[] colors;
+    private int[] palette;
+    private IScale yScale;
+    private float bottom;
+    private float top;
+    private FrequencyColorMapper colorMapper;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final float[] data = Signals.sweep(windowSize * N_COLUMNS, 20, Signals.SAMPLE_RATE / 2);
+        final ParallelFourier fourier = new ParallelFourier(1);
+        columns = new float[N_COLUMNS][windowSize / 2];
+        for (int i = 0; i < N_COLUMNS; i++)
+            fourier.transformWindow(data, i * windowSize, windowSize, new float[windowSize], columns[i], 0);
+        fourier.release();
+
+        levels = new byte[height];
+        colors = new int[height];
+        if (scale.equals("LOG10")) {
+            yScale = new Log10Scale();
+            bottom = 20;
+        } else {
+            yScale = new LinearScale();
+            bottom = 0;
+        }
+        top = Signals.SAMPLE_RATE / 2;
+        colorMapper = new FrequencyColorMapper();
+        palette = colorMapper.createPalette(FrequencyColorMapper.DEFAULT_CONTRAST,
+                FrequencyColorMapper.DEFAULT_BRIGHTNESS);
+    }
+
+    @Benchmark
+    public int[] getColors(Counters counters) {
+        for (float[] column : columns) {
+            colorMapper.getLevels(levels, column, yScale, bottom, top, height);
+            FrequencyColorMapper.applyPalette(levels, palette, colors, height);
+        }
+        counters.columns += N_COLUMNS;
+        return colors;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+import nz.ac.auckland.lablet.microphone.Fourier;
+import nz.ac.auckland.lablet.microphone.ParallelFourier;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Throughput of the short time Fourier transforms of a whole recording.
+ *
+ * Besides the operations per second the windows and samples per second are reported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FourierBenchmark {
+    @Param({"256", "1024", "4096", "16384"})
+    public int windowSize;
+
+    @Param({"0.1", "0.5", "1.0"})
+    public float stepFactor;
+
+    @Param({"SWEEP", "NOISE"})
+    public String signal;
+
+    // length of the recording; use -p seconds=300 for multi-minute buffers
+    @Param({"10"})
+    public int seconds;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long windows;
+        public long samples;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            windows = 0;
+            samples = 0;
+        }
+    }
+
+    private float[] data;
+    private float[] out;
+    private float[] trafo;
+    private int nSteps;
+    private ParallelFourier singleThreaded;
+    private ParallelFourier parallel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = Signals.create(signal, seconds * Signals.SAMPLE_RATE);
+        out = new float[ParallelFourier.getOutputSize(data.length, windowSize, stepFactor)];
+        trafo = new float[2 * windowSize];
+        nSteps = Fourier.getNSteps(data.length, windowSize, Fourier.getStepWidth(windowSize, stepFactor));
+        singleThreaded = new ParallelFourier(1);
+        parallel = new ParallelFourier();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        singleThreaded.release();
+        parallel.release();
+    }
+
+    private void count(Counters counters) {
+        counters.windows += nSteps;
+        counters.samples += data.length;
+    }
+
+    @Benchmark
+    public float[] javaSingleThreaded(Counters counters) {
+        singleThreaded.transform(data, data.length, windowSize, stepFactor, out);
+        count(counters);
+        return out;
+    }
+
+    @Benchmark
+    public float[] javaParallel(Counters counters) {
+        parallel.transform(data, data.length, windowSize, stepFactor, out);
+        count(counters);
+        return out;
+    }
+
+    @Benchmark
+    public float[] renderScriptPort(Counters counters) {
+        RenderScriptFftPort.transform(data, data.length, windowSize, stepFactor, trafo, out);
+        count(counters);
+        return out;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+
+/**
+ * Straightforward O(n^2) DFT in double precision; the reference for the fast transforms.
+ *
+ * Uses the same Hamming window and output layout (magnitudes of the first windowSize / 2 bins) as the app.
+ */
+public class ReferenceDft {
+    static public double[] magnitudes(float[] data, int offset, int windowSize) {
+        final double[] windowed = new double[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            final double hamming = 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (windowSize - 1));
+            windowed[i] = data[offset + i] * hamming;
+        }
+        final double[] cos = new double[windowSize];
+        final double[] sin = new double[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / windowSize);
+            sin[i] = Math.sin(2 * Math.PI * i / windowSize);
+        }
+
+        final double[] out = new double[windowSize / 2];
+        for (int k = 0; k < out.length; k++) {
+            double real = 0;
+            double imag = 0;
+            int index = 0;
+            for (int i = 0; i < windowSize; i++) {
+                real += windowed[i] * cos[index];
+                imag -= windowed[i] * sin[index];
+                // (i * k) mod windowSize
+                index += k;
+                if (index >= windowSize)
+                    index -= windowSize;
+            }
+            out[k] = Math.sqrt(real * real + imag * imag);
+        }
+        return out;
+    }
+}
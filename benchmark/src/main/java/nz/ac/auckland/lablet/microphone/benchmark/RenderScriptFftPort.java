@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+import nz.ac.auckland.lablet.microphone.Fourier;
+
+
+/**
+ * Java port of the fft.rs kernel that is used by FourierRenderScript.
+ *
+ * RenderScript can't run on the JVM. The port uses the same algorithm and float precision, i.e., it shows how
+ * accurate the kernel is and gives a baseline for the Java transforms.
+ */
+public class RenderScriptFftPort {
+    static private void hammingWindow(float[] samples, int length) {
+        for (int i = 0; i < length; i++)
+            samples[2 * i] *= (0.54f - 0.46f * (float)Math.cos(2.f * (float)Math.PI / (length - 1) * i));
+    }
+
+    static private void swap(float[] array, int i, int j) {
+        float temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+
+    static private void four1(float[] data, int nn) {
+        int n, mmax, m, j, istep, i;
+        float wtemp, wr, wpr, wpi, wi, theta;
+        float tempr, tempi;
+
+        // reverse-binary reindexing
+        n = nn << 1;
+        j = 1;
+        for (i = 1; i < n; i += 2) {
+            if (j > i) {
+                swap(data, j - 1, i - 1);
+                swap(data, j, i);
+            }
+            m = nn;
+            while (m >= 2 && j > m) {
+                j -= m;
+                m >>= 1;
+            }
+            j += m;
+        }
+
+        // here begins the Danielson-Lanczos section
+        mmax = 2;
+        while (n > mmax) {
+            istep = mmax << 1;
+            theta = -(2 * (float)Math.PI / mmax);
+            wtemp = (float)Math.sin(0.5f * theta);
+            wpr = -2.0f * wtemp * wtemp;
+            wpi = (float)Math.sin(theta);
+            wr = 1.0f;
+            wi = 0.0f;
+            for (m = 1; m < mmax; m += 2) {
+                for (i = m; i <= n; i += istep) {
+                    j = i + mmax;
+                    tempr = wr * data[j - 1] - wi * data[j];
+                    tempi = wr * data[j] + wi * data[j - 1];
+
+                    data[j - 1] = data[i - 1] - tempr;
+                    data[j] = data[i] - tempi;
+                    data[i - 1] += tempr;
+                    data[i] += tempi;
+                }
+                wtemp = wr;
+                wr += wr * wpr - wi * wpi;
+                wi += wi * wpr + wtemp * wpi;
+            }
+            mmax = istep;
+        }
+    }
+
+    /**
+     * Transforms a single window like the root kernel of fft.rs.
+     *
+     * @param trafo work buffer of size 2 * windowSize
+     */
+    static public void transformWindow(float[] data, int start, int windowSize, float[] trafo, float[] out,
+                                       int outPosition) {
+        for (int i = 0; i < windowSize; i++) {
+            trafo[2 * i] = data[start + i];
+            trafo[2 * i + 1] = 0;
+        }
+
+        hammingWindow(trafo, windowSize);
+
+        four1(trafo, windowSize);
+
+        for (int i = 1; i < windowSize; i += 2)
+            out[outPosition + (i - 1) / 2] = (float)Math.sqrt(trafo[i] * trafo[i] + trafo[i - 1] * trafo[i - 1]);
+    }
+
+    static public void transform(float[] data, int length, int windowSize, float stepFactor, float[] trafo,
+                                 float[] out) {
+        final int stepWidth = Fourier.getStepWidth(windowSize, stepFactor);
+        final int nSteps = Fourier.getNSteps(length, windowSize, stepWidth);
+        for (int step = 0; step < nSteps; step++)
+            transformWindow(data, step * stepWidth, windowSize, trafo, out, step * windowSize / 2);
+    }
+}
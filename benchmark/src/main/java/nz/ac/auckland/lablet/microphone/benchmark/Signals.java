@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package nz.ac.auckland.lablet.microphone.benchmark;
+
+import java.util.Random;
+
+
+/**
+ * Synthetic test signals in the value range of 16 bit samples.
+ */
+public class Signals {
+    final static public int SAMPLE_RATE = 44100;
+    final static private float AMPLITUDE = 16000;
+
+    /**
+     * @param name SWEEP or NOISE
+     */
+    static public float[] create(String name, int length) {
+        if (name.equals("SWEEP"))
+            return sweep(length, 20, SAMPLE_RATE / 2);
+        if (name.equals("NOISE"))
+            return noise(length, 42);
+        throw new IllegalArgumentException("Unknown signal: " + name);
+    }
+
+    /**
+     * Exponential sine sweep from startFrequency to endFrequency over the whole length.
+     */
+    static public float[] sweep(int length, float startFrequency, float endFrequency) {
+        final float[] data = new float[length];
+        final double duration = (double)length / SAMPLE_RATE;
+        final double rate = Math.log(endFrequency / startFrequency) / duration;
+        for (int i = 0; i < length; i++) {
+            final double t = (double)i / SAMPLE_RATE;
+            final double phase = 2 * Math.PI * startFrequency * (Math.exp(rate * t) - 1) / rate;
+            data[i] = (float)(AMPLITUDE * Math.sin(phase));
+        }
+        return data;
+    }
+
+    /**
+     * Gaussian white noise, clipped to the 16 bit range.
+     */
+    static public float[] noise(int length, long seed) {
+        final Random random = new Random(seed);
+        final float[] data = new float[length];
+        for (int i = 0; i < length; i++) {
+            final double value = random.nextGaussian() * AMPLITUDE / 2;
+            data[i] = (float)Math.max(-32768, Math.min(32767, Math.rint(value)));
+        }
+        return data;
+    }
+
+    /**
+     * @return the samples as little endian 16 bit PCM
+     */
+    static public byte[] toPcm16(float[] samples) {
+        final byte[] bytes = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            final int value = (int)Math.max(-32768, Math.min(32767, Math.rint(samples[i])));
+            bytes[2 * i] = (byte)value;
+            bytes[2 * i + 1] = (byte)(value >> 8);
+        }
+        return bytes;
+    }
+}